@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.openjena.atlas.lib.Closeable;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Where {@link CachedQueryEngineHTTP} keeps its results, keyed by service URI
+ * and {@link QueryKey}.
+ * <p>
+ * A value is put as a {@link ResultTable}, a {@link FrozenGraph} or a Boolean,
+ * and comes back either as it was put or, from a backend which keeps values
+ * out of the heap or out of the process, encoded by {@link ResultCodec}.
+ * Backends can be stacked with {@link TieredBackend}.
+ */
+public interface CacheBackend extends Closeable {
+
+    /** The value for key, or null on a miss. */
+    public Object get(Pair<String, QueryKey> key);
+
+    /** The values for keys, in the same order, with nulls for the misses. */
+    public List<Object> getAll(List<Pair<String, QueryKey>> keys);
+
+    public void put(Pair<String, QueryKey> key, Object value);
+
+    /**
+     * Puts a value which took cost nanoseconds to compute. Backends which do
+     * not weigh their entries by cost treat this as a plain put.
+     */
+    public void put(Pair<String, QueryKey> key, Object value, long cost);
+
+    /**
+     * Called on a miss: computes the value with loader, puts it and returns
+     * it. A backend shared between processes may instead wait for, and
+     * return, the value another process is computing.
+     */
+    public Object load(Pair<String, QueryKey> key, Callable<Object> loader) throws Exception;
+
+    /** Drops every value for a service. */
+    public void invalidate(String serviceURI);
+
+    /**
+     * Drops the values for a service which a change to triple, in graph (null
+     * for the default graph), could have changed. A backend which does not
+     * know the {@link Footprint}s of its values drops every value for the
+     * service.
+     */
+    public void invalidate(String serviceURI, Node graph, Triple triple);
+
+}
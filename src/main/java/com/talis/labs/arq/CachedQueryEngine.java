@@ -1,72 +1,200 @@
-package com.talis.labs.arq;
-
-import com.hp.hpl.jena.query.Query ;
-import com.hp.hpl.jena.sparql.ARQInternalErrorException ;
-import com.hp.hpl.jena.sparql.algebra.Op ;
-import com.hp.hpl.jena.sparql.algebra.Transform ;
-import com.hp.hpl.jena.sparql.algebra.TransformCopy ;
-import com.hp.hpl.jena.sparql.algebra.Transformer ;
-import com.hp.hpl.jena.sparql.algebra.op.OpBGP ;
-import com.hp.hpl.jena.sparql.core.DatasetGraph ;
-import com.hp.hpl.jena.sparql.engine.Plan ;
-import com.hp.hpl.jena.sparql.engine.QueryEngineFactory ;
-import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry ;
-import com.hp.hpl.jena.sparql.engine.QueryIterator ;
-import com.hp.hpl.jena.sparql.engine.binding.Binding ;
-import com.hp.hpl.jena.sparql.engine.main.QueryEngineMain ;
-import com.hp.hpl.jena.sparql.util.Context ;
-
-public class CachedQueryEngine extends QueryEngineMain {
-
-    public CachedQueryEngine(Query query, DatasetGraph dataset, Binding initial, Context context) {
-        super(query, dataset, initial, context);
-    }
-
-    public CachedQueryEngine(Query query, DatasetGraph dataset) { 
-        this(query, dataset, null, null);
-    }
-
-    @Override
-    public QueryIterator eval(Op op, DatasetGraph dsg, Binding initial, Context context) {
-        Transform transform = new IdentityTransform();
-        op = Transformer.transform(transform, op);
-        return super.eval(op, dsg, initial, context);
-    }
-    
-    @Override
-    protected Op modifyOp(Op op) {
-        return super.modifyOp(op) ;
-    }
-    
-    static QueryEngineFactory factory = new CachedQueryEngineFactory();
-    static public QueryEngineFactory getFactory() { return factory; } 
-    static public void register() { QueryEngineRegistry.addFactory(factory); }
-    static public void unregister() { QueryEngineRegistry.removeFactory(factory); }
-
-    static class IdentityTransform extends TransformCopy {
-        @Override
-        public Op transform(OpBGP opBGP) { return opBGP; }
-    }
-
-    static class CachedQueryEngineFactory implements QueryEngineFactory {
-
-        @Override
-        public boolean accept(Query query, DatasetGraph dataset, Context context) { return true; }
-
-        @Override
-        public Plan create(Query query, DatasetGraph dataset, Binding initial, Context context) {
-            CachedQueryEngine engine = new CachedQueryEngine(query, dataset, initial, context) ;
-            return engine.getPlan() ;
-        }
-
-        @Override
-        public boolean accept(Op op, DatasetGraph dataset, Context context) { return false; }
-
-        @Override
-        public Plan create(Op op, DatasetGraph dataset, Binding inputBinding, Context context) {
-            throw new ARQInternalErrorException("CachedQueryEngineFactory: factory called directly with an algebra expression") ;
-        }
-
-    } 
-
-}
\ No newline at end of file
+package com.talis.labs.arq;
+
+import java.util.Collections ;
+import java.util.Map ;
+import java.util.WeakHashMap ;
+import java.util.concurrent.Callable ;
+
+import org.openjena.atlas.lib.Cache ;
+import org.openjena.atlas.lib.Pair ;
+
+import com.hp.hpl.jena.query.Query ;
+import com.hp.hpl.jena.sparql.ARQInternalErrorException ;
+import com.hp.hpl.jena.sparql.algebra.Algebra ;
+import com.hp.hpl.jena.sparql.algebra.Op ;
+import com.hp.hpl.jena.sparql.algebra.OpVisitor ;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase ;
+import com.hp.hpl.jena.sparql.algebra.Table ;
+import com.hp.hpl.jena.sparql.algebra.TransformCopy ;
+import com.hp.hpl.jena.sparql.algebra.Transformer ;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP ;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph ;
+import com.hp.hpl.jena.sparql.algebra.op.OpTable ;
+import com.hp.hpl.jena.sparql.algebra.table.TableN ;
+import com.hp.hpl.jena.sparql.core.DatasetGraph ;
+import com.hp.hpl.jena.sparql.core.Var ;
+import com.hp.hpl.jena.sparql.engine.Plan ;
+import com.hp.hpl.jena.sparql.engine.QueryEngineFactory ;
+import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry ;
+import com.hp.hpl.jena.sparql.engine.QueryIterator ;
+import com.hp.hpl.jena.sparql.engine.binding.Binding ;
+import com.hp.hpl.jena.sparql.engine.main.QueryEngineMain ;
+import com.hp.hpl.jena.sparql.util.Context ;
+import com.talis.labs.arq.DatasetWatcher.Version ;
+
+/**
+ * A query engine which caches the solutions of each basic graph pattern, as a
+ * table, and replaces the BGPs of later queries by the tables they match. The
+ * tables are kept for the current generation of their dataset, so any change
+ * to it is seen.
+ */
+public class CachedQueryEngine extends QueryEngineMain {
+
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024 * 1024 ;
+    public static int MAX_ROWS = 10000 ; // BGPs with more solutions are matched as usual, and not cached
+    private static final Object TOO_LARGE = new Object() ;
+    private static final Map<DatasetGraph, DatasetWatcher> watchers = Collections.synchronizedMap(new WeakHashMap<DatasetGraph, DatasetWatcher>()) ;
+    private static volatile Cache<Pair<Version, QueryKey>, Object> tables = new ConcurrentCache<Pair<Version, QueryKey>, Object>(DEFAULT_MAX_BYTES, new ResultWeigher()) ;
+    private static final SingleFlight<Pair<Version, QueryKey>, Object> flights = new SingleFlight<Pair<Version, QueryKey>, Object>() ;
+
+    public CachedQueryEngine(Query query, DatasetGraph dataset, Binding initial, Context context) {
+        super(query, dataset, initial, context);
+    }
+
+    public CachedQueryEngine(Query query, DatasetGraph dataset) { 
+        this(query, dataset, null, null);
+    }
+
+    @Override
+    public QueryIterator eval(Op op, DatasetGraph dsg, Binding initial, Context context) {
+        BGPTransform transform = new BGPTransform(dsg, watcher(dsg).current());
+        op = Transformer.transformSkipService(transform, op, transform.before, transform.after);
+        return super.eval(op, dsg, initial, context);
+    }
+    
+    @Override
+    protected Op modifyOp(Op op) {
+        return super.modifyOp(op) ;
+    }
+
+    public static void setMaxBytes(long maxBytes) {
+        tables = new ConcurrentCache<Pair<Version, QueryKey>, Object>(maxBytes, new ResultWeigher()) ;
+    }
+
+    private static DatasetWatcher watcher(DatasetGraph dsg) {
+        synchronized (watchers) {
+            DatasetWatcher watcher = watchers.get(dsg) ;
+            if ( watcher == null ) {
+                watcher = new DatasetWatcher(dsg) ;
+                watchers.put(dsg, watcher) ;
+            }
+            return watcher ;
+        }
+    }
+
+    // The QueryKey of the BGP is the key: the same BGP with its triples in
+    // another order, or other names for its variables, matches the same
+    // table. Tables are kept with the canonical names of the variables, and
+    // renamed back to those of each BGP which reads them.
+    private static Table table(final DatasetGraph dsg, Version version, final OpBGP opBGP) {
+        final QueryKey queryKey = QueryKey.create(opBGP) ;
+        final Pair<Version, QueryKey> key = new Pair<Version, QueryKey>(version, queryKey) ;
+        Object table = tables.get(key) ;
+        if ( table == null ) {
+            table = flights.execute(key, new Callable<Object>() {
+                @Override public Object call() {
+                    Object table = tables.get(key) ;
+                    if ( table == null ) {
+                        table = match(dsg, opBGP, queryKey.getRenaming()) ;
+                        tables.put(key, table) ;
+                    }
+                    return table ;
+                }
+            }) ;
+        }
+        return table == TOO_LARGE ? null : rename((Table) table, queryKey.getRenaming(), false) ;
+    }
+
+    private static Object match(DatasetGraph dsg, OpBGP opBGP, Map<Var, Var> renaming) {
+        QueryIterator iter = Algebra.exec(opBGP, dsg) ;
+        try {
+            TableN table = new TableN() ;
+            while ( iter.hasNext() ) {
+                if ( table.size() == MAX_ROWS ) {
+                    return TOO_LARGE ;
+                }
+                table.addBinding(iter.nextBinding()) ;
+            }
+            return rename(table, renaming, true) ;
+        } finally {
+            iter.close() ;
+        }
+    }
+
+    // Renames the variables of a table to their canonical names, or back. A
+    // key without a renaming was made from the BGP as written, names and all.
+    private static Table rename(Table table, Map<Var, Var> renaming, boolean canonical) {
+        if ( renaming.isEmpty() ) return table ;
+        Var[] from = new Var[renaming.size()] ;
+        Var[] to = new Var[renaming.size()] ;
+        int i = 0 ;
+        for ( Map.Entry<Var, Var> entry : renaming.entrySet() ) {
+            from[i] = canonical ? entry.getKey() : entry.getValue() ;
+            to[i] = canonical ? entry.getValue() : entry.getKey() ;
+            i++ ;
+        }
+        TableN renamed = new TableN() ;
+        QueryIterator iter = table.iterator(null) ;
+        try {
+            while ( iter.hasNext() ) {
+                renamed.addBinding(ResultSetRename.rename(iter.nextBinding(), from, to)) ;
+            }
+        } finally {
+            iter.close() ;
+        }
+        return renamed ;
+    }
+    
+    static QueryEngineFactory factory = new CachedQueryEngineFactory();
+    static public QueryEngineFactory getFactory() { return factory; } 
+    static public void register() { QueryEngineRegistry.addFactory(factory); }
+    static public void unregister() { QueryEngineRegistry.removeFactory(factory); }
+
+    // BGPs inside GRAPH, or SERVICE, are not matched against the default
+    // graph and are left alone.
+    static class BGPTransform extends TransformCopy {
+        private final DatasetGraph dsg ;
+        private final Version version ;
+        private int graphs = 0 ;
+        final OpVisitor before = new OpVisitorBase() {
+            @Override public void visit(OpGraph opGraph) { graphs++ ; }
+        } ;
+        final OpVisitor after = new OpVisitorBase() {
+            @Override public void visit(OpGraph opGraph) { graphs-- ; }
+        } ;
+
+        BGPTransform(DatasetGraph dsg, Version version) {
+            this.dsg = dsg ;
+            this.version = version ;
+        }
+
+        @Override
+        public Op transform(OpBGP opBGP) {
+            if ( graphs > 0 || opBGP.getPattern().isEmpty() ) return opBGP ;
+            Table table = table(dsg, version, opBGP) ;
+            return table == null ? opBGP : OpTable.create(table) ;
+        }
+    }
+
+    static class CachedQueryEngineFactory implements QueryEngineFactory {
+
+        @Override
+        public boolean accept(Query query, DatasetGraph dataset, Context context) { return true; }
+
+        @Override
+        public Plan create(Query query, DatasetGraph dataset, Binding initial, Context context) {
+            CachedQueryEngine engine = new CachedQueryEngine(query, dataset, initial, context) ;
+            return engine.getPlan() ;
+        }
+
+        @Override
+        public boolean accept(Op op, DatasetGraph dataset, Context context) { return false; }
+
+        @Override
+        public Plan create(Op op, DatasetGraph dataset, Binding inputBinding, Context context) {
+            throw new ARQInternalErrorException("CachedQueryEngineFactory: factory called directly with an algebra expression") ;
+        }
+
+    } 
+
+}
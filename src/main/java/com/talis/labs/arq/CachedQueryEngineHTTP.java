@@ -16,183 +16,1072 @@
 
 package com.talis.labs.arq;
 
-import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.openjena.atlas.lib.ActionKeyValue;
 import org.openjena.atlas.lib.Cache;
-import org.openjena.atlas.lib.CacheFactory;
 import org.openjena.atlas.lib.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ARQ;
 import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryExecException;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.OpDistinct;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
 import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
-import com.hp.hpl.jena.sparql.resultset.ResultSetRewindable;
+import com.hp.hpl.jena.sparql.expr.E_BNode;
+import com.hp.hpl.jena.sparql.expr.E_Call;
+import com.hp.hpl.jena.sparql.expr.E_Function;
+import com.hp.hpl.jena.sparql.expr.E_Now;
+import com.hp.hpl.jena.sparql.expr.E_Random;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprAggregator;
+import com.hp.hpl.jena.sparql.expr.ExprFunction;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.ExprList;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+import com.hp.hpl.jena.sparql.expr.aggregate.AggCount;
+import com.hp.hpl.jena.sparql.syntax.Element;
+import com.hp.hpl.jena.sparql.syntax.ElementFilter;
+import com.hp.hpl.jena.sparql.syntax.ElementGroup;
 import com.hp.hpl.jena.sparql.util.Timer;
 
 public class CachedQueryEngineHTTP extends QueryEngineHTTP {
 
-    private Pair<String, Query> key = null;
-    private static Cache<Pair<String, Query>, Object> cache = CacheFactory.createCacheUnbounded();
+    private final Pair<String, QueryKey> key;
+    private final Query query;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static volatile CacheBackend defaultBackend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(DEFAULT_MAX_BYTES, new ResultWeigher()));
+    // Keyed on the backend too: a waiter's value is only in the backend its
+    // leader put it in.
+    private static final SingleFlight<Pair<CacheBackend, Pair<String, QueryKey>>, Object> flights = new SingleFlight<Pair<CacheBackend, Pair<String, QueryKey>>, Object>();
+    public static boolean STREAM_MISSES = false; // pass the rows of a SELECT miss through as they arrive
+    public static long STREAM_MAX_BYTES = 8L * 1024 * 1024; // larger streamed results are not cached
+    public static boolean READ_ONLY_MODELS = false; // CONSTRUCT and DESCRIBE hits are copy-on-write unless set
+    private static final ThreadFactory threads = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "CachedQueryEngineHTTP " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+    private static volatile ExecutorService executor = Executors.newCachedThreadPool(threads);
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(threads);
+    public static long SOFT_TTL = 0; // milliseconds after which a hit is refreshed in the background, 0 for never
+    public static long HARD_TTL = 0; // milliseconds after which an entry is a miss, 0 for never
+    public static double REFRESH_AHEAD = 0.1; // fraction of the soft TTL before its end in which a hit is refreshed
+    public static long SLICE_PAGE = 0; // rows: a LIMIT which misses loads the aligned pages around its window, 0 for none
+    public static final int WINDOW_QUERIES = 10000; // queries whose cached LIMIT and OFFSET windows are remembered
+    public static final int WINDOWS = 8; // windows remembered per query, the latest
+    private static final Cache<Pair<String, QueryKey>, List<long[]>> windows = new ConcurrentCache<Pair<String, QueryKey>, List<long[]>>(WINDOW_QUERIES);
+    public static final int REFRESH_THREADS = 2;
+    public static final int REFRESH_QUEUE = 256; // refreshes waiting for a thread, others are dropped
+    private static final ThreadPoolExecutor refreshes = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE), threads);
+    private static final Set<Pair<String, QueryKey>> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<Pair<String, QueryKey>, Boolean>());
+    private static final Logger log = LoggerFactory.getLogger(CachedQueryEngineHTTP.class);
+    public static final int CONNECT_TIMEOUT = 10000; // milliseconds to connect to a service
+    public static final int READ_TIMEOUT = 300000; // milliseconds a service may send nothing, before and while answering
 
+    // QueryEngineHTTP opens its connections itself, with no way to give them
+    // timeouts, so they are set as the JVM's defaults unless already set.
+    // Without them a request stuck connecting, or waiting for its headers,
+    // could hold its thread for ever: abort() only closes a response.
     static {
-        cache.setDropHandler(new ActionKeyValue<Pair<String, Query>, Object>() {
-            @Override public void apply(Pair<String, Query> key, Object value) {}
-        });
+        if ( System.getProperty("sun.net.client.defaultConnectTimeout") == null ) {
+            System.setProperty("sun.net.client.defaultConnectTimeout", Integer.toString(CONNECT_TIMEOUT));
+        }
+        if ( System.getProperty("sun.net.client.defaultReadTimeout") == null ) {
+            System.setProperty("sun.net.client.defaultReadTimeout", Integer.toString(READ_TIMEOUT));
+        }
     }
+    private final CacheBackend backend;
+    private TeeResultSet tee = null;
+    private long timeout = 0; // milliseconds, 0 for none
+    private long softTTL = SOFT_TTL;
+    private long hardTTL = HARD_TTL;
 
     public CachedQueryEngineHTTP(String serviceURI, Query query) {
-        super(serviceURI, query);
-        this.key = new Pair<String, Query>(serviceURI, query);
+        this(serviceURI, query, defaultBackend);
     }
 
     public CachedQueryEngineHTTP(String serviceURI, String queryString) {
         this(serviceURI, QueryFactory.create(queryString));
     }
 
+    public CachedQueryEngineHTTP(String serviceURI, Query query, CacheBackend backend) {
+        super(serviceURI, query);
+        this.key = new Pair<String, QueryKey>(serviceURI, QueryKey.create(query));
+        this.query = query;
+        this.backend = backend;
+    }
+
+    public CacheBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Sets the time to live of the result this engine caches. Until soft, a
+     * hit is used as it is; between soft and hard, it is used and a refresh is
+     * started in the background, as it is a little before soft too. After
+     * hard it is a miss. 0 stands for never: by default, {@link #SOFT_TTL}
+     * and {@link #HARD_TTL}.
+     */
+    public void setTimeToLive(long soft, long hard, TimeUnit unit) {
+        this.softTTL = unit.toMillis(soft);
+        this.hardTTL = unit.toMillis(hard);
+    }
+
     @Override
     public ResultSet execSelect() {
-        ResultSetRewindable rs = null;
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                return (ResultSetRewindable) cache.get(key);
+        Object cached = fresh(backend.get(key));
+        if ( cached != null ) {
+            return cursor(cached);
+        }
+
+        Object related = related();
+        if ( related != null ) {
+            return (ResultSet) related;
+        }
+
+        // Streamed misses are not coalesced: a waiter could only start once
+        // the leader's caller had read the last row. The cost of the value is
+        // the time to open the result set and then to wait on its rows.
+        if ( STREAM_MISSES ) {
+            long start = System.nanoTime();
+            ResultSet rs = super.execSelect();
+            final long opened = System.nanoTime() - start;
+            tee = new TeeResultSet(rs, STREAM_MAX_BYTES, executor) {
+                @Override protected void commit(ResultTable table) {
+                    backend.put(key, stamp(table), opened + getCost());
+                    remember();
+                }
+            };
+            return tee;
+        }
+
+        return cursor(load());
+    }
+
+    // On a miss, the cached results of other queries which could answer this
+    // one: see derived, subsumed and window. Their keys are all built first
+    // and looked up with one getAll, a single round trip to a remote backend,
+    // and the first which answers does.
+    private Object related() {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        try {
+            derived(candidates);
+            if ( query.isSelectType() ) {
+                subsumed(candidates);
+                if ( query.hasLimit() || query.hasOffset() ) {
+                    window(candidates);
+                }
+            }
+            if ( candidates.isEmpty() ) {
+                return null;
+            }
+            List<Pair<String, QueryKey>> keys = new ArrayList<Pair<String, QueryKey>>(candidates.size());
+            for (Candidate candidate : candidates) {
+                keys.add(candidate.key);
+            }
+            List<Object> values = backend.getAll(keys);
+            for (int i = 0; i < candidates.size(); i++) {
+                Object value = candidates.get(i).value(values.get(i));
+                Object answer = value != null ? candidates.get(i).answer(value) : null;
+                if ( answer != null ) {
+                    return answer;
+                }
+            }
+            for (Candidate candidate : candidates) {
+                Object answer = candidate.miss();
+                if ( answer != null ) {
+                    return answer;
+                }
+            }
+            return null;
+        } finally {
+            for (Candidate candidate : candidates) {
+                candidate.close();
+            }
+        }
+    }
+
+    // A cached result which could answer this query, and how it does.
+    private abstract class Candidate {
+        final CachedQueryEngineHTTP engine; // of the cached query, if there is one
+        final Pair<String, QueryKey> key;
+
+        Candidate(Query other) {
+            this.engine = sibling(other);
+            this.key = engine.key;
+        }
+
+        Candidate(QueryKey other) {
+            this.engine = null;
+            this.key = new Pair<String, QueryKey>(CachedQueryEngineHTTP.this.key.getLeft(), other);
+        }
+
+        // The value without its time to live, or null if it has expired.
+        Object value(Object cached) {
+            return engine != null ? engine.fresh(cached) : live(cached);
+        }
+
+        // The answer, as execSelect or execAsk returns it, or null if the
+        // value cannot give it.
+        abstract Object answer(Object value);
+
+        // An answer for which a missing value is worth loading, or null.
+        Object miss() {
+            return null;
+        }
+
+        void close() {
+            if ( engine != null ) {
+                engine.close();
             }
         }
+    }
+
+    // An ASK, a SELECT (COUNT(*) AS ?c), or a SELECT which only projects
+    // or removes duplicates, is answered from the cached SELECT * over the
+    // same pattern and dataset, if there is one. Anything more (ORDER BY,
+    // LIMIT, GROUP BY, expressions, BINDINGS) is sent as it is.
+    private void derived(List<Candidate> candidates) {
+        if ( query.getQueryPattern() == null || query.hasOrderBy() || query.hasLimit() || query.hasOffset()
+                || query.getGroupBy().size() > 0 || query.hasHaving() || query.hasBindings() ) {
+            return;
+        }
+        final boolean count = query.isSelectType() && counts();
+        final boolean project = query.isSelectType() && !query.hasAggregators() && query.getProject().getExprs().isEmpty()
+                && !( query.isQueryResultStar() && !query.isDistinct() && !query.isReduced() );
+        if ( !query.isAskType() && !count && !project ) {
+            return;
+        }
 
-        rs = ResultSetFactory.makeRewindable(super.execSelect());
-        synchronized (cache) {
-            cache.put(key, rs);
+        final Query all = new Query();
+        all.setPrefixMapping(query.getPrefixMapping());
+        all.setQuerySelectType();
+        all.setQueryResultStar(true);
+        all.setQueryPattern(query.getQueryPattern());
+        for (String uri : query.getGraphURIs()) {
+            all.addGraphURI(uri);
+        }
+        for (String uri : query.getNamedGraphURIs()) {
+            all.addNamedGraphURI(uri);
+        }
+        all.setResultVars();
+        if ( project && !all.getResultVars().containsAll(query.getResultVars()) ) {
+            return;
         }
-        rs.reset();
 
-        return rs;
+        candidates.add(new Candidate(all) {
+            @Override Object answer(Object value) {
+                return derive(table(value), all, count);
+            }
+        });
     }
 
-    @Override
-    public Model execConstruct() {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                return model.add((Model) cache.get(key));
+    private Object derive(ResultTable table, Query all, boolean count) {
+        if ( query.isAskType() ) {
+            return table.size() > 0;
+        }
+        List<Binding> rows = new ArrayList<Binding>();
+        if ( count ) {
+            Binding row = new BindingMap();
+            row.add(Var.alloc(query.getResultVars().get(0)), NodeValue.makeInteger(table.size()).asNode());
+            rows.add(row);
+        } else {
+            List<Var> vars = Var.varList(query.getResultVars());
+            Set<List<Node>> seen = new HashSet<List<Node>>();
+            ResultSet cursor = table.cursor(all.getResultVars());
+            while ( cursor.hasNext() ) {
+                Binding binding = cursor.nextBinding();
+                List<Node> values = new ArrayList<Node>(vars.size());
+                Binding row = new BindingMap();
+                for (Var var : vars) {
+                    Node node = binding.get(var);
+                    values.add(node);
+                    if ( node != null ) {
+                        row.add(var, node);
+                    }
+                }
+                if ( !( query.isDistinct() || query.isReduced() ) || seen.add(values) ) {
+                    rows.add(row);
+                }
             }
         }
+        return ResultTable.create(query.getResultVars(), rows).cursor();
+    }
+
+    // Whether the query is SELECT (COUNT(*) AS ?c), without DISTINCT.
+    private boolean counts() {
+        if ( query.isDistinct() || query.isReduced() || query.getAggregators().size() != 1 || query.getProject().size() != 1 ) {
+            return false;
+        }
+        ExprAggregator aggregator = query.getAggregators().get(0);
+        Expr expr = query.getProject().getExpr(query.getProject().getVars().get(0));
+        return aggregator.getAggregator() instanceof AggCount && expr instanceof ExprAggregator
+                && ((ExprAggregator) expr).getVar().equals(aggregator.getVar());
+    }
+
+    // A SELECT which only adds FILTERs to a cached query is answered by
+    // filtering that query's result here. The cached query has the same
+    // pattern, projection and DISTINCT. The extra filters may only use the
+    // variables it returns, and no function whose value could differ here,
+    // or from one call to the next.
+    private void subsumed(List<Candidate> candidates) {
+        if ( !filters(query.getQueryPattern()) ) {
+            return;
+        }
+        Op op = Algebra.compile(query);
+        boolean distinct = op instanceof OpDistinct;
+        if ( distinct ) {
+            op = ((OpDistinct) op).getSubOp();
+        }
+        List<Var> project = null;
+        if ( op instanceof OpProject ) {
+            project = ((OpProject) op).getVars();
+            op = ((OpProject) op).getSubOp();
+        }
+        if ( !( op instanceof OpFilter ) ) {
+            return;
+        }
+        List<Expr> exprs = ((OpFilter) op).getExprs().getList();
+        Op pattern = ((OpFilter) op).getSubOp();
+        Set<Var> vars = new HashSet<Var>(Var.varList(query.getResultVars()));
 
-        model = super.execConstruct();
-        synchronized (cache) {
-            cache.put(key, model);
+        // The query without any of its filters, then without each one.
+        for (int i = -1; i < exprs.size() && !( i == 0 && exprs.size() == 1 ); i++) {
+            ExprList kept = new ExprList();
+            final ExprList extra = new ExprList();
+            for (int j = 0; j < exprs.size(); j++) {
+                ( i < 0 || i == j ? extra : kept ).add(exprs.get(j));
+            }
+            if ( !vars.containsAll(extra.getVarsMentioned()) || !deterministic(extra.getList()) ) {
+                continue;
+            }
+            Op cached = kept.isEmpty() ? pattern : OpFilter.filter(kept, pattern);
+            if ( project != null ) {
+                cached = new OpProject(cached, project);
+            }
+            if ( distinct ) {
+                cached = new OpDistinct(cached);
+            }
+            candidates.add(new Candidate(QueryKey.create(query, cached)) {
+                @Override Object answer(Object value) {
+                    return filter(table(value), extra);
+                }
+            });
         }
+    }
 
-        return model;
+    // Whether the group pattern has a FILTER of its own: a cheap test before
+    // the query is compiled.
+    private static boolean filters(Element element) {
+        if ( !( element instanceof ElementGroup ) ) {
+            return false;
+        }
+        for (Element e : ((ElementGroup) element).getElements()) {
+            if ( e instanceof ElementFilter ) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    @Override
-    public Model execConstruct(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                return model.add((Model) cache.get(key));
+    private static boolean deterministic(List<Expr> exprs) {
+        for (Expr expr : exprs) {
+            if ( expr.isFunction() ) {
+                ExprFunction function = expr.getFunction();
+                if ( function instanceof ExprFunctionOp || function instanceof E_Function || function instanceof E_Call
+                        || function instanceof E_Random || function instanceof E_Now || function instanceof E_BNode ) {
+                    return false;
+                }
+                if ( !deterministic(function.getArgs()) ) {
+                    return false;
+                }
             }
         }
+        return true;
+    }
 
-        model = super.execConstruct(m);
-        synchronized (cache) {
-            cache.put(key, model);
+    private ResultSet filter(ResultTable table, ExprList exprs) {
+        ExecutionContext context = new ExecutionContext(ARQ.getContext(), null, null, null);
+        List<Binding> rows = new ArrayList<Binding>();
+        ResultSet cursor = table.cursor(query.getResultVars());
+        while ( cursor.hasNext() ) {
+            Binding row = cursor.nextBinding();
+            if ( exprs.isSatisfied(row, context) ) {
+                rows.add(row);
+            }
         }
+        return ResultTable.create(query.getResultVars(), rows).cursor();
+    }
 
-        return model;
+    // A query which differs from this one only by its LIMIT and OFFSET can
+    // answer it if its window covers this one: the complete result, any of
+    // the windows remembered as cached and, with SLICE_PAGE, the aligned
+    // pages around this window. A window with fewer rows than its limit
+    // reached the end, and covers everything after its offset. If none is
+    // cached the pages are loaded, so that the next windows hit them.
+    private void window(List<Candidate> candidates) {
+        long offset = query.hasOffset() ? query.getOffset() : 0;
+        long limit = query.hasLimit() ? query.getLimit() : Long.MAX_VALUE;
+
+        Candidate complete = new Window(0, Long.MAX_VALUE, false);
+        candidates.add(complete);
+        List<long[]> known = windows.get(complete.key);
+        if ( known != null ) {
+            for (long[] window : known) {
+                if ( window[0] <= offset && window[1] > offset - window[0] && !( window[0] == offset && window[1] == limit ) ) {
+                    candidates.add(new Window(window[0], window[1], false));
+                }
+            }
+        }
+        if ( SLICE_PAGE > 0 && query.hasLimit() ) {
+            long start = offset / SLICE_PAGE * SLICE_PAGE;
+            long end = ( offset + limit + SLICE_PAGE - 1 ) / SLICE_PAGE * SLICE_PAGE;
+            if ( start != offset || end - start != limit ) {
+                candidates.add(new Window(start, end - start, true));
+            }
+        }
     }
 
-    @Override
-    public Model execDescribe() {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                model.add((Model) cache.get(key));
+    private class Window extends Candidate {
+        private final long offset;
+        private final long limit; // Long.MAX_VALUE for none
+        private final boolean pages;
+
+        Window(long offset, long limit, boolean pages) {
+            super(slice(offset, limit == Long.MAX_VALUE ? Query.NOLIMIT : limit));
+            this.offset = offset;
+            this.limit = limit;
+            this.pages = pages;
+        }
+
+        @Override
+        Object answer(Object value) {
+            long first = ( query.hasOffset() ? query.getOffset() : 0 ) - offset;
+            long rows = query.hasLimit() ? query.getLimit() : Long.MAX_VALUE;
+            ResultTable table = table(value);
+            if ( limit - first >= rows || table.size() < limit ) {
+                return table.cursor(query.getResultVars(), first, rows);
             }
+            return null;
         }
 
-        model = super.execDescribe();
-        synchronized (cache) {
-            cache.put(key, model);
+        @Override
+        Object miss() {
+            return pages ? answer(engine.load()) : null;
         }
+    }
 
-        return model;
+    private Query slice(long offset, long limit) {
+        Query slice = query.cloneQuery();
+        slice.setOffset(offset > 0 ? offset : Query.NOLIMIT);
+        slice.setLimit(limit);
+        return slice;
     }
 
-    @Override
-    public Model execDescribe(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                model.add((Model) cache.get(key));
+    // Remembers that the window of this SELECT is cached, under the key of
+    // the complete query, for the smaller windows inside it to find.
+    private void remember() {
+        if ( !query.isSelectType() || !( query.hasLimit() || query.hasOffset() ) ) {
+            return;
+        }
+        Pair<String, QueryKey> all = new Pair<String, QueryKey>(key.getLeft(), QueryKey.create(slice(0, Query.NOLIMIT)));
+        long[] window = { query.hasOffset() ? query.getOffset() : 0, query.hasLimit() ? query.getLimit() : Long.MAX_VALUE };
+        List<long[]> known = windows.get(all);
+        List<long[]> latest = new ArrayList<long[]>(WINDOWS);
+        latest.add(window);
+        if ( known != null ) {
+            for (long[] w : known) {
+                if ( latest.size() < WINDOWS && !( w[0] == window[0] && w[1] == window[1] ) ) {
+                    latest.add(w);
+                }
             }
         }
+        windows.put(all, Collections.unmodifiableList(latest));
+    }
 
-        model = super.execDescribe(m);
-        synchronized (cache) {
-            cache.put(key, model);
+    // An engine for another query, on the same service and backend, whose
+    // results live as long.
+    private CachedQueryEngineHTTP sibling(Query other) {
+        CachedQueryEngineHTTP engine = new CachedQueryEngineHTTP(key.getLeft(), other, backend);
+        engine.softTTL = softTTL;
+        engine.hardTTL = hardTTL;
+        return engine;
+    }
+
+    private static ResultTable table(Object value) {
+        if ( value instanceof byte[] ) {
+            return ResultTable.create(ResultCodec.decodeResultSet((byte[]) value));
         }
+        return (ResultTable) value;
+    }
+
+    // Values are held as they are, or encoded by backends outside the heap.
+    private ResultSet cursor(Object value) {
+        if ( value instanceof byte[] ) {
+            return ResultSetRename.rename(ResultCodec.decodeResultSet((byte[]) value, ModelFactory.createDefaultModel()), query.getResultVars());
+        }
+        return ((ResultTable) value).cursor(query.getResultVars());
+    }
+
+    @Override
+    public Model execConstruct() {
+        return view(frozenGraph());
+    }
 
-        return model;
+    @Override
+    public Model execConstruct(Model m) {
+        return m.add(frozenGraph().readOnly());
+    }
+
+    @Override
+    public Model execDescribe() {
+        return view(frozenGraph());
+    }
+
+    @Override
+    public Model execDescribe(Model m) {
+        return m.add(frozenGraph().readOnly());
+    }
+
+    private FrozenGraph frozenGraph() {
+        Object cached = fresh(backend.get(key));
+        return graph(cached != null ? cached : load());
+    }
+
+    private static FrozenGraph graph(Object value) {
+        if ( value instanceof byte[] ) {
+            return new FrozenGraph(ResultCodec.decodeModel((byte[]) value, ModelFactory.createDefaultModel()));
+        }
+        return (FrozenGraph) value;
+    }
+
+    private static Model view(FrozenGraph graph) {
+        return READ_ONLY_MODELS ? graph.readOnly() : graph.copyOnWrite();
     }
 
     @Override
     public boolean execAsk() {
-        boolean ask;
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                ask = (Boolean) cache.get(key);
+        Object cached = fresh(backend.get(key));
+        if ( cached == null ) {
+            Object related = related();
+            if ( related != null ) {
+                return (Boolean) related;
             }
+            cached = load();
         }
+        return cached instanceof byte[] ? ResultCodec.decodeBoolean((byte[]) cached) : (Boolean) cached;
+    }
 
-        ask = super.execAsk();
-        synchronized (cache) {
-            cache.put(key, ask);
+    @Override
+    public void close() {
+        if ( tee != null ) {
+            tee.abandon();
         }
+        super.close();
+    }
 
-        return ask;
+    /**
+     * Sets how long an asynchronous execution may take before it is
+     * cancelled. The synchronous methods ignore it.
+     */
+    @Override
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
     }
 
-    public static void invalidate(String serviceURI) {
-        synchronized (cache) {
-            Iterator<Pair<String, Query>> iter = cache.keys();
-            while (iter.hasNext()) {
-                Pair<String, Query> key = iter.next();
-                if (key.getLeft().equals(serviceURI)) {
-                    iter.remove();
+    @Override
+    public void setTimeout(long timeout, TimeUnit unit) {
+        setTimeout(unit.toMillis(timeout));
+    }
+
+    public Future<ResultSet> execSelectAsync() {
+        return async();
+    }
+
+    public Future<Model> execConstructAsync() {
+        return async();
+    }
+
+    public Future<Model> execDescribeAsync() {
+        return async();
+    }
+
+    public Future<Boolean> execAskAsync() {
+        return async();
+    }
+
+    // A hit is looked up by the caller and returned as a future which is
+    // already done; a miss joins the flight of its key, which is started on
+    // the executor if there is none. Cancelling the future, or its timeout,
+    // only detaches this caller: the HTTP request is aborted, and the
+    // executor's thread interrupted, once no caller is left waiting for it.
+    @SuppressWarnings("unchecked")
+    private <T> Future<T> async() {
+        Object cached = fresh(backend.get(key));
+        if ( cached != null ) {
+            FutureTask<T> hit = new FutureTask<T>(new Runnable() { @Override public void run() {} }, (T) result(cached));
+            hit.run();
+            return hit;
+        }
+
+        Future<Object> flight = flights.submit(new Pair<CacheBackend, Pair<String, QueryKey>>(backend, key), loader(), executor, new Runnable() {
+            @Override public void run() { abort(); }
+        });
+        final QueryFuture<T> future = new QueryFuture<T>(flight);
+        if ( timeout > 0 ) {
+            future.deadline = timeouts.schedule(new Runnable() {
+                @Override public void run() { future.cancel(true); }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    // A caller's view of a flight, whose value it gives as the matching exec
+    // method would.
+    private class QueryFuture<T> implements Future<T> {
+        private final Future<Object> flight;
+        volatile ScheduledFuture<?> deadline = null;
+
+        QueryFuture(Future<Object> flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = flight.cancel(mayInterruptIfRunning);
+            expire();
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return flight.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return flight.isDone();
+        }
+
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            return result(flight.get());
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return result(flight.get(timeout, unit));
+        }
+
+        @SuppressWarnings("unchecked")
+        private T result(Object value) {
+            expire();
+            return (T) CachedQueryEngineHTTP.this.result(value);
+        }
+
+        private void expire() {
+            ScheduledFuture<?> d = deadline;
+            if ( d != null ) {
+                d.cancel(false);
+            }
+        }
+    }
+
+    // Computes a missing value once for all the threads which ask for it.
+    private Object load() {
+        return flights.execute(new Pair<CacheBackend, Pair<String, QueryKey>>(backend, key), loader());
+    }
+
+    private Callable<Object> loader() {
+        return new Callable<Object>() {
+            @Override public Object call() throws Exception {
+                Object value = fresh(backend.get(key));
+                if ( value == null ) {
+                    value = unwrap(backend.load(key, new Callable<Object>() {
+                        @Override public Object call() { return stamp(compute()); }
+                    }));
+                    remember();
                 }
+                return value;
             }
+        };
+    }
+
+    // Values get a time to live only if one is set.
+    private Object stamp(Object value) {
+        if ( softTTL <= 0 && hardTTL <= 0 ) {
+            return value;
+        }
+        long now = System.currentTimeMillis();
+        return new Expiring(value, now, softTTL > 0 ? now + softTTL : Long.MAX_VALUE, hardTTL > 0 ? now + hardTTL : Long.MAX_VALUE);
+    }
+
+    // A hit without its time to live: null once it has expired, and the
+    // value, with a refresh started, once it is due one.
+    private Object fresh(Object cached) {
+        Expiring expiring = expiring(cached);
+        if ( expiring == null ) {
+            return cached;
         }
+        long now = System.currentTimeMillis();
+        if ( now >= expiring.getHardExpiry() ) {
+            return null;
+        }
+        if ( now >= expiring.getRefreshTime(REFRESH_AHEAD) ) {
+            refresh();
+        }
+        return expiring.getValue();
+    }
+
+    // A hit without its time to live, or null once it has expired. Unlike
+    // fresh, this does not start a refresh.
+    private static Object live(Object value) {
+        Expiring expiring = expiring(value);
+        if ( expiring == null ) {
+            return value;
+        }
+        return System.currentTimeMillis() < expiring.getHardExpiry() ? expiring.getValue() : null;
+    }
+
+    private static Object unwrap(Object value) {
+        Expiring expiring = expiring(value);
+        return expiring != null ? expiring.getValue() : value;
     }
 
-    public static void main(String[] args) {
-        Random random = new Random();
-        String serviceURI = "http://api.talis.com/stores/bbc-wildlife/services/sparql";
-        for (int i = 0; i < 100000; i++) {
-            Timer timerQuery = new Timer();
-            timerQuery.startTimer();
-            CachedQueryEngineHTTP qexec = new CachedQueryEngineHTTP(serviceURI,
-                    "SELECT * { ?s_" + random.nextInt(100) + " ?p ?o } LIMIT 100");
-            if (i % 1000 == 0) {
-                Timer timerInvalidate = new Timer();
-                timerInvalidate.startTimer();
-                CachedQueryEngineHTTP.invalidate(serviceURI);
-                System.out.println("cache invalidated " + timerInvalidate.endTimer());
+    // Backends outside the heap give back an Expiring value encoded; its
+    // value is left encoded until it is used.
+    private static Expiring expiring(Object value) {
+        if ( value instanceof byte[] && ResultCodec.isExpiring((byte[]) value) ) {
+            return ResultCodec.decodeExpiring((byte[]) value);
+        }
+        return value instanceof Expiring ? (Expiring) value : null;
+    }
+
+    // An entry has at most one refresh at a time, run by a new engine on the
+    // bounded pool. If the pool is full the refresh is dropped: a later hit
+    // starts another, or once the entry has expired a miss loads it.
+    private void refresh() {
+        if ( !refreshing.add(key) ) {
+            return;
+        }
+        final CachedQueryEngineHTTP engine = sibling(query);
+        try {
+            refreshes.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        long start = System.nanoTime();
+                        Object value = engine.compute();
+                        engine.backend.put(engine.key, engine.stamp(value), System.nanoTime() - start);
+                    } catch (RuntimeException e) {
+                        log.warn("Could not refresh a result from " + engine.key.getLeft() + ": " + e.getMessage());
+                    } finally {
+                        engine.close();
+                        refreshing.remove(engine.key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            engine.close();
+            refreshing.remove(key);
+        }
+    }
+
+    // Calls the one argument forms of execConstruct and execDescribe: the
+    // others would come back through execConstruct(Model) and wait on their
+    // own flight.
+    private Object compute() {
+        if ( query.isSelectType() ) return ResultTable.create(super.execSelect());
+        if ( query.isConstructType() ) return new FrozenGraph(super.execConstruct(ModelFactory.createDefaultModel()));
+        if ( query.isDescribeType() ) return new FrozenGraph(super.execDescribe(ModelFactory.createDefaultModel()));
+        return super.execAsk();
+    }
+
+    // A value as execSelect, execConstruct, execDescribe or execAsk return it.
+    private Object result(Object value) {
+        if ( query.isSelectType() ) return cursor(value);
+        if ( query.isAskType() ) return value instanceof byte[] ? ResultCodec.decodeBoolean((byte[]) value) : (Boolean) value;
+        return view(graph(value));
+    }
+
+    /**
+     * Runs a batch of queries, given as pairs of a service URI and a query,
+     * with the default backend.
+     *
+     * @see #execBatch(CacheBackend, List, int)
+     */
+    public static List<Object> execBatch(List<Pair<String, Query>> queries, int parallelism) {
+        return execBatch(defaultBackend, queries, parallelism);
+    }
+
+    /**
+     * Runs a batch of queries, given as pairs of a service URI and a query.
+     * All the results are looked up at once, with
+     * {@link CacheBackend#getAll(List)}, and only the misses are sent to their
+     * services, at most parallelism at a time, on the executor.
+     * <p>
+     * The results come back in the same order as the queries: a ResultSet for
+     * a SELECT, a Model for a CONSTRUCT or a DESCRIBE and a Boolean for an ASK.
+     * If a query fails the batch fails, once the other queries are done.
+     */
+    public static List<Object> execBatch(CacheBackend backend, List<Pair<String, Query>> queries, int parallelism) {
+        final List<CachedQueryEngineHTTP> engines = new ArrayList<CachedQueryEngineHTTP>(queries.size());
+        try {
+            List<Pair<String, QueryKey>> keys = new ArrayList<Pair<String, QueryKey>>(queries.size());
+            for (Pair<String, Query> query : queries) {
+                CachedQueryEngineHTTP engine = new CachedQueryEngineHTTP(query.getLeft(), query.getRight(), backend);
+                engines.add(engine);
+                keys.add(engine.key);
+            }
+
+            final List<Object> values = new ArrayList<Object>(backend.getAll(keys));
+            final List<Integer> misses = new ArrayList<Integer>();
+            for (int i = 0; i < values.size(); i++) {
+                values.set(i, engines.get(i).fresh(values.get(i)));
+                if ( values.get(i) == null ) {
+                    misses.add(i);
+                }
+            }
+
+            // Each worker takes the next miss until there are none left.
+            final AtomicInteger next = new AtomicInteger();
+            List<Future<Void>> workers = new ArrayList<Future<Void>>();
+            for (int w = 0; w < Math.min(parallelism, misses.size()); w++) {
+                workers.add(executor.submit(new Callable<Void>() {
+                    @Override public Void call() {
+                        int m;
+                        while ( ( m = next.getAndIncrement() ) < misses.size() ) {
+                            int i = misses.get(m);
+                            values.set(i, engines.get(i).load());
+                        }
+                        return null;
+                    }
+                }));
             }
+            await(workers);
+
+            List<Object> results = new ArrayList<Object>(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                results.add(engines.get(i).result(values.get(i)));
+            }
+            return results;
+        } finally {
+            for (CachedQueryEngineHTTP engine : engines) {
+                engine.close();
+            }
+        }
+    }
+
+    private static void await(List<Future<Void>> workers) {
+        Throwable failure = null;
+        for (Future<Void> worker : workers) {
             try {
-                ResultSet results = qexec.execSelect();
-                for (; results.hasNext();) {
-                    results.nextSolution();
+                worker.get();
+            } catch (InterruptedException e) {
+                for (Future<Void> w : workers) {
+                    w.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new QueryCancelledException();
+            } catch (ExecutionException e) {
+                if ( failure == null ) {
+                    failure = e.getCause();
                 }
-            } finally {
-                qexec.close();
             }
-            System.out.println("query " + i + " " + timerQuery.endTimer());
         }
+        if ( failure instanceof RuntimeException ) throw (RuntimeException) failure;
+        if ( failure instanceof Error ) throw (Error) failure;
+        if ( failure != null ) throw new QueryExecException(failure);
+    }
+
+    /**
+     * Sets the executor which {@link #execBatch(CacheBackend, List, int)}
+     * and the asynchronous methods run misses on. By default it is a pool
+     * of daemon threads, created as they are needed.
+     */
+    public static void setExecutor(ExecutorService executor) {
+        CachedQueryEngineHTTP.executor = executor;
+    }
+
+    /**
+     * Sets the backend used by engines created without one. The backend it
+     * replaces is closed.
+     */
+    public static void setDefaultBackend(CacheBackend backend) {
+        CacheBackend previous = defaultBackend;
+        defaultBackend = backend;
+        previous.close();
+    }
+
+    public static CacheBackend getDefaultBackend() {
+        return defaultBackend;
+    }
+
+    public static void setCacheSize(int maxSize) {
+        setDefaultBackend(new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(maxSize)));
+    }
+
+    public static void setMaxBytes(long maxBytes) {
+        setDefaultBackend(new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(maxBytes, new ResultWeigher())));
+    }
+
+    /**
+     * Keeps up to maxBytes of the results which took longest to compute, per
+     * byte, and are used most, in a {@link GreedyDualCache}. Results which
+     * took less than minCost to compute are not kept at all.
+     */
+    public static void setCostAwareBytes(long maxBytes, long minCost, TimeUnit unit) {
+        setDefaultBackend(new LocalBackend(new GreedyDualCache<Pair<String, QueryKey>, Object>(maxBytes, new ResultWeigher(), unit.toNanos(minCost))));
+    }
+
+    /**
+     * Keeps results outside the Java heap, in up to maxBytes of direct
+     * memory, rather than in a {@link ConcurrentCache}.
+     */
+    public static void setOffHeapBytes(long maxBytes) {
+        setDefaultBackend(new LocalBackend(new OffHeapCache<Pair<String, QueryKey>>(maxBytes)));
+    }
+
+    /**
+     * Keeps results on disk, in up to maxBytes of segment files in directory,
+     * so that the cache is still warm after a restart.
+     */
+    public static void setDiskCache(File directory, long maxBytes) throws IOException {
+        setDefaultBackend(new LocalBackend(new DiskCache<Pair<String, QueryKey>>(directory, maxBytes, new DiskKeyFormat())));
+    }
+
+    // A key is written as the digest of the query, the length of its
+    // footprint, the footprint and the service URI, so that reopened keys are
+    // invalidated as selectively as new ones. Keys written without their
+    // footprint, the digest followed by the URI, are read back with
+    // Footprint.ANY.
+    private static class DiskKeyFormat implements DiskCache.KeyFormat<Pair<String, QueryKey>> {
+        @Override public byte[] write(Pair<String, QueryKey> key) {
+            byte[] footprint = key.getRight().getFootprint().getBytes();
+            byte[] uri = key.getLeft().getBytes(UTF8);
+            ByteBuffer bytes = ByteBuffer.allocate(QueryKey.LENGTH + 4 + footprint.length + uri.length);
+            bytes.put(key.getRight().getBytes()).putInt(footprint.length).put(footprint).put(uri);
+            return bytes.array();
+        }
+        @Override public Pair<String, QueryKey> read(byte[] bytes) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            byte[] digest = new byte[QueryKey.LENGTH];
+            buffer.get(digest);
+            int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+            if ( length >= 0 && length <= buffer.remaining() ) {
+                byte[] footprint = new byte[length];
+                buffer.get(footprint);
+                try {
+                    String uri = new String(bytes, buffer.position(), buffer.remaining(), UTF8);
+                    return new Pair<String, QueryKey>(uri, QueryKey.create(digest, Footprint.create(footprint)));
+                } catch (IllegalArgumentException e) {
+                    // Not a footprint: a key written without one
+                }
+            }
+            String uri = new String(bytes, QueryKey.LENGTH, bytes.length - QueryKey.LENGTH, UTF8);
+            return new Pair<String, QueryKey>(uri, QueryKey.create(digest));
+        }
+    }
+
+    public static void invalidate(String serviceURI) {
+        defaultBackend.invalidate(serviceURI);
+    }
+
+    /**
+     * Drops the results a change to triple, in graph (null for the default
+     * graph) of a service, could have changed.
+     *
+     * @see CacheBackend#invalidate(String, Node, Triple)
+     */
+    public static void invalidate(String serviceURI, Node graph, Triple triple) {
+        defaultBackend.invalidate(serviceURI, graph, triple);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final String serviceURI = "http://api.talis.com/stores/bbc-wildlife/services/sparql";
+        final int queries = 100000;
+        final AtomicInteger counter = new AtomicInteger();
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+
+        Timer timer = new Timer();
+        timer.startTimer();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    Random random = new Random();
+                    int i;
+                    while ((i = counter.getAndIncrement()) < queries) {
+                        CachedQueryEngineHTTP qexec = new CachedQueryEngineHTTP(serviceURI,
+                                "SELECT * { ?s_" + random.nextInt(100) + " ?p ?o } LIMIT 100");
+                        if (i % 1000 == 0) {
+                            Timer timerInvalidate = new Timer();
+                            timerInvalidate.startTimer();
+                            CachedQueryEngineHTTP.invalidate(serviceURI);
+                            System.out.println("cache invalidated " + timerInvalidate.endTimer());
+                        }
+                        try {
+                            ResultSet results = qexec.execSelect();
+                            for (; results.hasNext();) {
+                                results.nextSolution();
+                            }
+                        } finally {
+                            qexec.close();
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long time = timer.endTimer();
+        System.out.println(threads + " threads, " + queries + " queries in " + time + " ms (" + (queries * 1000L / Math.max(1, time)) + " queries/s)");
     }
 
 }
\ No newline at end of file
@@ -18,164 +18,345 @@ package com.talis.labs.arq;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openjena.atlas.lib.ActionKeyValue;
 import org.openjena.atlas.lib.Cache;
-import org.openjena.atlas.lib.CacheFactory;
+import org.openjena.atlas.lib.Closeable;
 import org.openjena.atlas.lib.Pair;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.ARQ;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.DatasetFactory;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
 import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
 import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
-import com.hp.hpl.jena.sparql.resultset.ResultSetRewindable;
 import com.hp.hpl.jena.sparql.util.Context;
 import com.hp.hpl.jena.sparql.util.Timer;
+import com.talis.labs.arq.DatasetWatcher.Version;
 
 public class CachedQueryExecutionBase extends QueryExecutionBase {
 
-    private Pair<Dataset, Query> key = null;
-    private static Cache<Pair<Dataset, Query>, Object> cache = CacheFactory.createCacheUnbounded();
-
-    static {
-        cache.setDropHandler(new ActionKeyValue<Pair<Dataset, Query>, Object>() {
-            @Override public void apply(Pair<Dataset, Query> key, Object value) {}
-        });
-    }
+    private final DatasetWatcher watcher;
+    private final Pair<Version, QueryKey> key;
+    private final Query query;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final Map<Dataset, DatasetWatcher> watchers = Collections.synchronizedMap(new WeakHashMap<Dataset, DatasetWatcher>());
+    private static volatile Cache<Pair<Version, QueryKey>, Object> cache = track(new ConcurrentCache<Pair<Version, QueryKey>, Object>(DEFAULT_MAX_BYTES, new ResultWeigher()));
+    private static final SingleFlight<Pair<Version, QueryKey>, Object> flights = new SingleFlight<Pair<Version, QueryKey>, Object>();
+    public static boolean STREAM_MISSES = false; // pass the rows of a SELECT miss through as they arrive
+    public static long STREAM_MAX_BYTES = 8L * 1024 * 1024; // larger streamed results are not cached
+    public static boolean READ_ONLY_MODELS = false; // CONSTRUCT and DESCRIBE hits are copy-on-write unless set
+    private TeeResultSet tee = null;
 
     public CachedQueryExecutionBase(Query query, Dataset dataset, Context context, QueryEngineFactory qeFactory) {
         super(query, dataset, context, qeFactory);
-        this.key = new Pair<Dataset, Query>(dataset, query);
+        this.watcher = watcher(dataset);
+        this.key = new Pair<Version, QueryKey>(watcher.current(), QueryKey.create(query));
+        this.query = query;
+    }
+
+    // Changes queued since the key was made are applied first, so that a
+    // result they drop is not read.
+    private Object lookup() {
+        watcher.flush();
+        return cache.get(key);
     }
 
     @Override
     public ResultSet execSelect() {
-        ResultSetRewindable rs = null;
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                return (ResultSetRewindable) cache.get(key);
-            }
+        Object cached = lookup();
+        if ( cached != null ) {
+            return cursor(cached);
         }
 
-        rs = ResultSetFactory.makeRewindable(super.execSelect());
-        synchronized (cache) {
-            cache.put(key, rs);
+        // Streamed misses are not coalesced: a waiter could only start once
+        // the leader's caller had read the last row. The cost of the value is
+        // the time to open the result set and then to wait on its rows.
+        if ( STREAM_MISSES ) {
+            final long seen = key.getLeft().changes.get();
+            long start = System.nanoTime();
+            ResultSet rs = super.execSelect();
+            final long opened = System.nanoTime() - start;
+            tee = new TeeResultSet(rs, STREAM_MAX_BYTES) {
+                @Override protected void commit(ResultTable table) { put(key, table, seen, opened + getCost()); }
+            };
+            return tee;
         }
-        rs.reset();
 
-        return rs;
+        return cursor(flights.execute(key, new Loader() {
+            @Override Object load() { return ResultTable.create(CachedQueryExecutionBase.super.execSelect()); }
+        }));
+    }
+
+    // Values are held as they are, or encoded if the cache is an OffHeapCache.
+    // Resources in the solutions are in the dataset's default model, as
+    // they are on a miss.
+    private ResultSet cursor(Object value) {
+        Model model = getDataset() != null ? getDataset().getDefaultModel() : ModelFactory.createDefaultModel();
+        if ( value instanceof byte[] ) {
+            return ResultSetRename.rename(ResultCodec.decodeResultSet((byte[]) value, model), query.getResultVars());
+        }
+        return ((ResultTable) value).cursor(query.getResultVars(), model);
     }
 
     @Override
     public Model execConstruct() {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                return model.add((Model) cache.get(key));
-            }
-        }
+        return view(construct());
+    }
 
-        model = super.execConstruct();
-        synchronized (cache) {
-            cache.put(key, model);
-        }
+    @Override
+    public Model execConstruct(Model m) {
+        return m.add(construct().readOnly());
+    }
 
-        return model;
+    @Override
+    public Model execDescribe() {
+        return view(describe());
     }
 
     @Override
-    public Model execConstruct(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                return model.add((Model) cache.get(key));
-            }
-        }
+    public Model execDescribe(Model m) {
+        return m.add(describe().readOnly());
+    }
 
-        model = super.execConstruct(m);
-        synchronized (cache) {
-            cache.put(key, model);
+    // The loaders call the one argument forms: the others would come back
+    // through execConstruct(Model) and wait on their own flight.
+    private FrozenGraph construct() {
+        Object cached = lookup();
+        if ( cached != null ) {
+            return graph(cached);
         }
 
-        return model;
+        return graph(flights.execute(key, new Loader() {
+            @Override Object load() { return new FrozenGraph(CachedQueryExecutionBase.super.execConstruct(ModelFactory.createDefaultModel())); }
+        }));
     }
 
-    @Override
-    public Model execDescribe() {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                model.add((Model) cache.get(key));
-            }
+    private FrozenGraph describe() {
+        Object cached = lookup();
+        if ( cached != null ) {
+            return graph(cached);
         }
 
-        model = super.execDescribe();
-        synchronized (cache) {
-            cache.put(key, model);
+        return graph(flights.execute(key, new Loader() {
+            @Override Object load() { return new FrozenGraph(CachedQueryExecutionBase.super.execDescribe(ModelFactory.createDefaultModel())); }
+        }));
+    }
+
+    private static FrozenGraph graph(Object value) {
+        if ( value instanceof byte[] ) {
+            return new FrozenGraph(ResultCodec.decodeModel((byte[]) value, ModelFactory.createDefaultModel()));
         }
+        return (FrozenGraph) value;
+    }
 
-        return model;
+    private static Model view(FrozenGraph graph) {
+        return READ_ONLY_MODELS ? graph.readOnly() : graph.copyOnWrite();
     }
 
     @Override
-    public Model execDescribe(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                model.add((Model) cache.get(key));
+    public boolean execAsk() {
+        Object cached = lookup();
+        if ( cached == null ) {
+            cached = flights.execute(key, new Loader() {
+                @Override Object load() { return CachedQueryExecutionBase.super.execAsk(); }
+            });
+        }
+        return cached instanceof byte[] ? ResultCodec.decodeBoolean((byte[]) cached) : (Boolean) cached;
+    }
+
+    @Override
+    public void close() {
+        if ( tee != null ) {
+            tee.abandon();
+        }
+        super.close();
+    }
+
+    private abstract class Loader implements Callable<Object> {
+        @Override
+        public Object call() {
+            Object value = lookup();
+            if ( value == null ) {
+                long seen = key.getLeft().changes.get();
+                long start = System.nanoTime();
+                value = load();
+                put(key, value, seen, System.nanoTime() - start);
             }
+            return value;
         }
 
-        model = super.execDescribe(m);
-        synchronized (cache) {
-            cache.put(key, model);
+        abstract Object load();
+    }
+
+    // Entries are indexed by their footprint before they are put, and until
+    // they are dropped or invalidated. A value is dropped again if the index
+    // entry went in between, or if any triple of its generation changed
+    // since seen: the change may have been missed by the load.
+    private static void put(Pair<Version, QueryKey> key, Object value, long seen) {
+        key.getLeft().dependencies.add(key.getRight(), key.getRight().getFootprint());
+        cache.put(key, value);
+        check(key, seen);
+    }
+
+    // A GreedyDualCache is told how many nanoseconds the value took.
+    @SuppressWarnings("unchecked")
+    private static void put(Pair<Version, QueryKey> key, Object value, long seen, long cost) {
+        Cache<Pair<Version, QueryKey>, Object> c = cache;
+        if ( c instanceof GreedyDualCache ) {
+            key.getLeft().dependencies.add(key.getRight(), key.getRight().getFootprint());
+            ((GreedyDualCache<Pair<Version, QueryKey>, Object>) c).put(key, value, cost);
+            check(key, seen);
+        } else {
+            put(key, value, seen);
         }
+    }
 
-        return model;
+    private static void check(Pair<Version, QueryKey> key, long seen) {
+        Version version = key.getLeft();
+        if ( version.changes.get() != seen || !version.dependencies.contains(key.getRight()) ) {
+            version.dependencies.remove(key.getRight());
+            cache.remove(key);
+        }
     }
 
-    @Override
-    public boolean execAsk() {
-        boolean ask;
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                ask = (Boolean) cache.get(key);
+    // The first query on a dataset starts listening to its graphs; a change
+    // of a few triples drops only the results it touches.
+    private static DatasetWatcher watcher(Dataset dataset) {
+        synchronized (watchers) {
+            DatasetWatcher watcher = watchers.get(dataset);
+            if ( watcher == null ) {
+                watcher = new DatasetWatcher(dataset.asDatasetGraph(), new DatasetWatcher.Invalidator() {
+                    @Override public void invalidate(Version version, Node graph, Triple triple) {
+                        CachedQueryExecutionBase.invalidate(version, graph, triple);
+                    }
+                });
+                watchers.put(dataset, watcher);
+            }
+            return watcher;
+        }
+    }
+
+    // A new cache starts every dataset on a new generation, with nothing
+    // indexed. The tables it drops give back their nodes.
+    private static Cache<Pair<Version, QueryKey>, Object> track(Cache<Pair<Version, QueryKey>, Object> cache) {
+        synchronized (watchers) {
+            for (DatasetWatcher watcher : watchers.values()) {
+                watcher.invalidate();
             }
         }
+        cache.setDropHandler(new ActionKeyValue<Pair<Version, QueryKey>, Object>() {
+            @Override public void apply(Pair<Version, QueryKey> key, Object value) {
+                key.getLeft().dependencies.remove(key.getRight());
+                if ( value instanceof ResultTable ) {
+                    ((ResultTable) value).release();
+                }
+            }
+        });
+        return cache;
+    }
 
-        ask = super.execAsk();
-        synchronized (cache) {
-            cache.put(key, ask);
+    // The cache it replaces is closed, which frees the memory of an
+    // OffHeapCache at once.
+    private static void use(Cache<Pair<Version, QueryKey>, Object> c) {
+        Cache<Pair<Version, QueryKey>, Object> previous = cache;
+        cache = track(c);
+        if ( previous instanceof Closeable ) {
+            ((Closeable) previous).close();
         }
+    }
 
-        return ask;
+    public static void setCacheSize(int maxSize) {
+        use(new ConcurrentCache<Pair<Version, QueryKey>, Object>(maxSize));
     }
 
+    public static void setMaxBytes(long maxBytes) {
+        use(new ConcurrentCache<Pair<Version, QueryKey>, Object>(maxBytes, new ResultWeigher()));
+    }
+
+    /**
+     * Keeps up to maxBytes of the results which took longest to compute, per
+     * byte, and are used most, in a {@link GreedyDualCache}. Results which
+     * took less than minCost to compute are not kept at all.
+     */
+    public static void setCostAwareBytes(long maxBytes, long minCost, TimeUnit unit) {
+        use(new GreedyDualCache<Pair<Version, QueryKey>, Object>(maxBytes, new ResultWeigher(), unit.toNanos(minCost)));
+    }
+
+    /**
+     * Keeps results outside the Java heap, in up to maxBytes of direct
+     * memory, rather than in a {@link ConcurrentCache}.
+     */
+    public static void setOffHeapBytes(long maxBytes) {
+        use(new OffHeapCache<Pair<Version, QueryKey>>(maxBytes));
+    }
+
+    /**
+     * Moves a dataset on to a new generation. Changes made through its graphs
+     * do so by themselves: this is for those made behind their backs.
+     */
     public static void invalidate(Dataset dataset) {
-        synchronized (cache) {
-            Iterator<Pair<Dataset, Query>> iter = cache.keys();
-            while (iter.hasNext()) {
-                Pair<Dataset, Query> key = iter.next();
-                if (key.getLeft().equals(dataset)) {
-                    iter.remove();
-                }
-            }
+        DatasetWatcher watcher = watchers.get(dataset);
+        if ( watcher != null ) {
+            watcher.invalidate();
+        }
+    }
+
+    /**
+     * Drops the results a change to triple, in graph (null for the default
+     * graph), could have changed: those of the queries whose
+     * {@link Footprint} it touches.
+     */
+    public static void invalidate(Dataset dataset, Node graph, Triple triple) {
+        DatasetWatcher watcher = watchers.get(dataset);
+        if ( watcher != null ) {
+            invalidate(watcher.current(), graph, triple);
         }
     }
 
-    public static void main(String[] args) {
-        Random random = new Random();
+    /**
+     * Drops the results a change to any number of triples in graph (null for
+     * the default graph) could have changed.
+     */
+    public static void invalidate(Dataset dataset, Node graph) {
+        DatasetWatcher watcher = watchers.get(dataset);
+        if ( watcher != null ) {
+            Version version = watcher.current();
+            version.changes.incrementAndGet();
+            invalidate(version, version.dependencies.affected(graph));
+        }
+    }
+
+    // The count goes up first, so that a load which could have missed the
+    // change is not put after its key was looked for.
+    private static void invalidate(Version version, Node graph, Triple triple) {
+        version.changes.incrementAndGet();
+        invalidate(version, version.dependencies.affected(graph, triple));
+    }
+
+    private static void invalidate(Version version, List<QueryKey> keys) {
+        for (QueryKey key : keys) {
+            version.dependencies.remove(key);
+            cache.remove(new Pair<Version, QueryKey>(version, key));
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
         File path = new File ("src/test/resources/dataset/");
         List<String> uriList = new ArrayList<String>();
         for (File file : path.listFiles()) {
@@ -183,30 +364,52 @@ public class CachedQueryExecutionBase extends QueryExecutionBase {
                 uriList.add(file.getAbsolutePath());
             }
         }
-        Dataset dataset = DatasetFactory.create("src/test/resources/dataset/dft.n3", uriList);
-        for (int i = 0; i < 100000; i++) {
-            Timer timerQuery = new Timer();
-            timerQuery.startTimer();
-            Query query = QueryFactory.create("SELECT * { ?s_" + random.nextInt(100) + " ?p ?o } LIMIT 100");
-            Context context = ARQ.getContext().copy();
-            QueryEngineFactory qeFactory = QueryEngineRegistry.get().find(query, dataset.asDatasetGraph(), context);
-            CachedQueryExecutionBase qexec = new CachedQueryExecutionBase(query, dataset, context, qeFactory);
-            if (i % 1000 == 0) {
-                Timer timerInvalidate = new Timer();
-                timerInvalidate.startTimer();
-                CachedQueryExecutionBase.invalidate(dataset);
-                System.out.println("cache invalidated " + timerInvalidate.endTimer());
-            }
-            try {
-                ResultSet results = qexec.execSelect();
-                for (; results.hasNext();) {
-                    results.nextSolution();
+        final Dataset dataset = DatasetFactory.create("src/test/resources/dataset/dft.n3", uriList);
+        final int queries = 100000;
+        final AtomicInteger counter = new AtomicInteger();
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        if ( args.length > 1 ) {
+            setOffHeapBytes(Long.parseLong(args[1]) * 1024 * 1024); // megabytes
+        }
+
+        Timer timer = new Timer();
+        timer.startTimer();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    Random random = new Random();
+                    int i;
+                    while ((i = counter.getAndIncrement()) < queries) {
+                        Query query = QueryFactory.create("SELECT * { ?s_" + random.nextInt(100) + " ?p ?o } LIMIT 100");
+                        Context context = ARQ.getContext().copy();
+                        QueryEngineFactory qeFactory = QueryEngineRegistry.get().find(query, dataset.asDatasetGraph(), context);
+                        CachedQueryExecutionBase qexec = new CachedQueryExecutionBase(query, dataset, context, qeFactory);
+                        if (i % 1000 == 0) {
+                            Timer timerUpdate = new Timer();
+                            timerUpdate.startTimer();
+                            Model model = dataset.getDefaultModel();
+                            model.add(model.createResource(), model.createProperty("http://example.org/updated"), model.createTypedLiteral(i));
+                            System.out.println("dataset updated " + timerUpdate.endTimer());
+                        }
+                        try {
+                            ResultSet results = qexec.execSelect();
+                            for (; results.hasNext();) {
+                                results.nextSolution();
+                            }
+                        } finally {
+                            qexec.close();
+                        }
+                    }
                 }
-            } finally {
-                qexec.close();
-            }
-            System.out.println("query " + i + " " + timerQuery.endTimer());
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
         }
+        long time = timer.endTimer();
+        System.out.println(threads + " threads, " + queries + " queries in " + time + " ms (" + (queries * 1000L / Math.max(1, time)) + " queries/s)");
     }
 
 }
\ No newline at end of file
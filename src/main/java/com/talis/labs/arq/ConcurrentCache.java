@@ -0,0 +1,383 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjena.atlas.lib.ActionKeyValue;
+import org.openjena.atlas.lib.Cache;
+
+/**
+ * A bounded cache split into independently locked segments. Each segment is
+ * a segmented LRU: new entries go into a probationary area and are promoted
+ * to a protected area on their second hit, so one-off queries cannot flush
+ * the entries which are actually reused.
+ * <p>
+ * The bound is a total weight shared by all the segments. By default every
+ * entry weighs 1, so the bound is a number of entries; with a {@link Weigher}
+ * it can be, for example, a number of bytes.
+ */
+public class ConcurrentCache<K, V> implements Cache<K, V> {
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    private static final float PROTECTED_RATIO = 0.8f;
+
+    private static final Weigher<Object, Object> ONE = new Weigher<Object, Object>() {
+        @Override public long weigh(Object key, Object value) { return 1; }
+    };
+
+    private final Segment<K, V>[] segments;
+    private final int mask;
+    private final long maxWeight;
+    private final Weigher<? super K, ? super V> weigher;
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(); // orders uses across segments
+    private volatile ActionKeyValue<K, V> dropHandler = null;
+
+    public ConcurrentCache(int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY);
+    }
+
+    public ConcurrentCache(int maxSize, int concurrency) {
+        this(maxSize, ONE, concurrency);
+    }
+
+    public ConcurrentCache(long maxWeight, Weigher<? super K, ? super V> weigher) {
+        this(maxWeight, weigher, DEFAULT_CONCURRENCY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ConcurrentCache(long maxWeight, Weigher<? super K, ? super V> weigher, int concurrency) {
+        if ( maxWeight <= 0 ) throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+        int n = 1;
+        while ( n < concurrency && n < maxWeight ) n <<= 1;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[n]; // arrays of a type parameter cannot be created
+        this.mask = n - 1;
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        long maxProtected = Math.max(1, (long) (maxWeight * PROTECTED_RATIO / n));
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment<K, V>(maxProtected, clock);
+        }
+    }
+
+    private int indexFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & mask;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return segments[indexFor(key)].containsKey(key);
+    }
+
+    @Override
+    public V get(K key) {
+        return segments[indexFor(key)].get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        long w = weigher.weigh(key, value);
+        List<Map.Entry<K, V>> dropped = new ArrayList<Map.Entry<K, V>>(1);
+        int index = indexFor(key);
+        V old;
+        if ( w > maxWeight ) {
+            // Can never fit: do not flush the whole cache trying.
+            old = segments[index].remove(key, weight);
+            dropped.add(new AbstractMap.SimpleImmutableEntry<K, V>(key, value));
+        } else {
+            old = segments[index].put(key, value, w, weight);
+            evict(dropped);
+        }
+        drop(dropped);
+        return old;
+    }
+
+    @Override
+    public boolean remove(K key) {
+        return segments[indexFor(key)].remove(key, weight) != null;
+    }
+
+    @Override
+    public Iterator<K> keys() {
+        List<K> keys = new ArrayList<K>();
+        for (Segment<K, V> segment : segments) {
+            segment.keys(keys);
+        }
+        final Iterator<K> iter = keys.iterator();
+        return new Iterator<K>() {
+            private K current = null;
+            @Override public boolean hasNext() { return iter.hasNext(); }
+            @Override public K next() { current = iter.next(); return current; }
+            @Override public void remove() { ConcurrentCache.this.remove(current); }
+        };
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear(weight);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public void setDropHandler(ActionKeyValue<K, V> dropHandler) {
+        this.dropHandler = dropHandler;
+    }
+
+    // Evict the least recently used probationary entries of all the segments,
+    // and only once there are none left the least recently used protected
+    // ones, until the total weight is back within the bound. Each scan of the
+    // segments finds the one used longest ago and evicts from it every entry
+    // older than the eldest of any other segment, not just the first.
+    private void evict(List<Map.Entry<K, V>> dropped) {
+        boolean protect = false;
+        while ( weight.get() > maxWeight ) {
+            Segment<K, V> victim = null;
+            long oldest = Long.MAX_VALUE;
+            long next = Long.MAX_VALUE;
+            for (Segment<K, V> segment : segments) {
+                long used = segment.eldest(protect);
+                if ( used < oldest ) {
+                    next = oldest;
+                    oldest = used;
+                    victim = segment;
+                } else if ( used < next ) {
+                    next = used;
+                }
+            }
+            if ( victim != null ) {
+                victim.evict(protect, next, maxWeight, weight, dropped);
+            } else if ( protect ) {
+                return;
+            } else {
+                protect = true;
+            }
+        }
+    }
+
+    private void drop(List<Map.Entry<K, V>> dropped) {
+        ActionKeyValue<K, V> handler = dropHandler;
+        if ( handler == null ) return;
+        for (Map.Entry<K, V> entry : dropped) {
+            handler.apply(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static class Weighted<V> {
+        final V value;
+        final long weight;
+        long used; // guarded by the segment's lock
+        Weighted(V value, long weight, long used) {
+            this.value = value;
+            this.weight = weight;
+            this.used = used;
+        }
+    }
+
+    private static class Segment<K, V> extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long maxProtected;
+        private final AtomicLong clock;
+        private long protectedWeight = 0;
+        // Both maps are kept in insertion order, least recently used first.
+        private final LinkedHashMap<K, Weighted<V>> probation = new LinkedHashMap<K, Weighted<V>>();
+        private final LinkedHashMap<K, Weighted<V>> protect = new LinkedHashMap<K, Weighted<V>>();
+
+        Segment(long maxProtected, AtomicLong clock) {
+            this.maxProtected = maxProtected;
+            this.clock = clock;
+        }
+
+        boolean containsKey(Object key) {
+            lock();
+            try {
+                return protect.containsKey(key) || probation.containsKey(key);
+            } finally {
+                unlock();
+            }
+        }
+
+        V get(K key) {
+            lock();
+            try {
+                Weighted<V> entry = protect.remove(key);
+                if ( entry != null ) {
+                    entry.used = clock.incrementAndGet();
+                    protect.put(key, entry);
+                    return entry.value;
+                }
+                entry = probation.remove(key);
+                if ( entry != null ) {
+                    entry.used = clock.incrementAndGet();
+                    promote(key, entry);
+                    return entry.value;
+                }
+                return null;
+            } finally {
+                unlock();
+            }
+        }
+
+        V put(K key, V value, long w, AtomicLong total) {
+            lock();
+            try {
+                Weighted<V> old = removeEntry(key);
+                probation.put(key, new Weighted<V>(value, w, clock.incrementAndGet()));
+                total.addAndGet(w - (old == null ? 0 : old.weight));
+                return old == null ? null : old.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        V remove(Object key, AtomicLong total) {
+            lock();
+            try {
+                Weighted<V> old = removeEntry(key);
+                if ( old == null ) return null;
+                total.addAndGet(-old.weight);
+                return old.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        // When the least recently used entry of one area was last used, or
+        // Long.MAX_VALUE if the area is empty.
+        long eldest(boolean inProtect) {
+            lock();
+            try {
+                LinkedHashMap<K, Weighted<V>> area = inProtect ? protect : probation;
+                return area.isEmpty() ? Long.MAX_VALUE : area.values().iterator().next().used;
+            } finally {
+                unlock();
+            }
+        }
+
+        // Evicts the eldest entry of one area, then those after it which were
+        // used before another segment's eldest, while total is over the bound.
+        void evict(boolean inProtect, long before, long maxWeight, AtomicLong total, List<Map.Entry<K, V>> dropped) {
+            lock();
+            try {
+                LinkedHashMap<K, Weighted<V>> victims = inProtect ? protect : probation;
+                boolean first = true;
+                for (Iterator<Map.Entry<K, Weighted<V>>> iter = victims.entrySet().iterator(); iter.hasNext();) {
+                    Map.Entry<K, Weighted<V>> eldest = iter.next();
+                    if ( !first && ( total.get() <= maxWeight || eldest.getValue().used >= before ) ) break;
+                    first = false;
+                    iter.remove();
+                    if ( inProtect ) protectedWeight -= eldest.getValue().weight;
+                    total.addAndGet(-eldest.getValue().weight);
+                    dropped.add(new AbstractMap.SimpleImmutableEntry<K, V>(eldest.getKey(), eldest.getValue().value));
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        void keys(List<K> keys) {
+            lock();
+            try {
+                keys.addAll(probation.keySet());
+                keys.addAll(protect.keySet());
+            } finally {
+                unlock();
+            }
+        }
+
+        void clear(AtomicLong total) {
+            lock();
+            try {
+                for (Weighted<V> entry : probation.values()) total.addAndGet(-entry.weight);
+                for (Weighted<V> entry : protect.values()) total.addAndGet(-entry.weight);
+                probation.clear();
+                protect.clear();
+                protectedWeight = 0;
+            } finally {
+                unlock();
+            }
+        }
+
+        int size() {
+            lock();
+            try {
+                return probation.size() + protect.size();
+            } finally {
+                unlock();
+            }
+        }
+
+        private Weighted<V> removeEntry(Object key) {
+            Weighted<V> old = protect.remove(key);
+            if ( old != null ) {
+                protectedWeight -= old.weight;
+                return old;
+            }
+            return probation.remove(key);
+        }
+
+        private void promote(K key, Weighted<V> entry) {
+            protect.put(key, entry);
+            protectedWeight += entry.weight;
+            while ( protectedWeight > maxProtected && protect.size() > 1 ) {
+                Iterator<Map.Entry<K, Weighted<V>>> iter = protect.entrySet().iterator();
+                Map.Entry<K, Weighted<V>> eldest = iter.next();
+                iter.remove();
+                protectedWeight -= eldest.getValue().weight;
+                eldest.getValue().used = clock.incrementAndGet();
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.talis.labs.arq;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+
+/**
+ * Listens to the graphs of a dataset and moves it on to a new generation
+ * whenever one of them changes. The generation is part of each cache key, so
+ * an update costs a single increment: the results of older generations are
+ * never read again and go when the cache evicts them.
+ * <p>
+ * With an {@link Invalidator}, a change of a few triples is passed to it
+ * instead, to drop only the results those triples could have changed; bulk
+ * changes still move the dataset on. The writer only queues the triples:
+ * they are passed on by the next {@link #current()} or {@link #flush()}.
+ * <p>
+ * Graphs added to, removed from or replaced in the dataset are found, and the
+ * generation moved on, the next time {@link #current()} is called. The dataset is only weakly held:
+ * once it is gone the watcher stops listening to its graphs as they change.
+ */
+final class DatasetWatcher implements GraphListener {
+
+    private static final int MAX_TRIPLES = 100; // larger changes move the dataset on to a new generation
+
+    private final WeakReference<DatasetGraph> dataset;
+    private final Invalidator invalidator;
+    private final Map<Graph, List<Node>> names = new IdentityHashMap<Graph, List<Node>>(); // guarded by this, null for the default graph
+    private final Queue<Change> pending = new ConcurrentLinkedQueue<Change>();
+    private volatile Graph defaultGraph = null;
+    private volatile Map<Node, Graph> graphs = Collections.emptyMap();
+    private volatile long size = -1;
+    private volatile Version version = new Version(0);
+
+    DatasetWatcher(DatasetGraph dataset) {
+        this(dataset, null);
+    }
+
+    DatasetWatcher(DatasetGraph dataset, Invalidator invalidator) {
+        this.dataset = new WeakReference<DatasetGraph>(dataset);
+        this.invalidator = invalidator;
+        watch(dataset);
+    }
+
+    /** The generation of the dataset, with the queries cached for it. */
+    Version current() {
+        DatasetGraph dsg = dataset.get();
+        if ( dsg != null && replaced(dsg) ) {
+            watch(dsg);
+        }
+        flush();
+        return version;
+    }
+
+    /** Passes the triples changed since the last call on to the invalidator. */
+    void flush() {
+        if ( pending.isEmpty() ) return;
+        // Held while the results are dropped, so that no caller goes on to
+        // read one of them before they are gone.
+        synchronized (pending) {
+            Change change;
+            while ( ( change = pending.poll() ) != null ) {
+                for (Node name : change.names) {
+                    for (Triple triple : change.triples) {
+                        invalidator.invalidate(change.version, name, triple);
+                    }
+                }
+            }
+        }
+    }
+
+    // A graph removed and added again under the same name leaves the size as
+    // it was, so each name is checked for the graph it was watched with.
+    private boolean replaced(DatasetGraph dsg) {
+        if ( dsg.getDefaultGraph() != defaultGraph || dsg.size() != size ) {
+            return true;
+        }
+        Map<Node, Graph> watched = graphs;
+        for (Iterator<Node> iter = dsg.listGraphNodes(); iter.hasNext();) {
+            Node name = iter.next();
+            if ( watched.get(name) != dsg.getGraph(name) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void invalidate() {
+        version = new Version(version.generation + 1);
+    }
+
+    private synchronized void watch(DatasetGraph dsg) {
+        defaultGraph = dsg.getDefaultGraph();
+        size = dsg.size();
+        listen(defaultGraph, null);
+        Map<Node, Graph> watched = new HashMap<Node, Graph>();
+        for (Iterator<Node> iter = dsg.listGraphNodes(); iter.hasNext();) {
+            Node name = iter.next();
+            Graph graph = dsg.getGraph(name);
+            watched.put(name, graph);
+            listen(graph, name);
+        }
+        graphs = watched;
+        invalidate();
+    }
+
+    private void listen(Graph graph, Node name) {
+        if ( graph == null ) return;
+        List<Node> list = names.get(graph);
+        if ( list == null ) {
+            list = new ArrayList<Node>(1);
+            names.put(graph, list);
+            graph.getEventManager().register(this);
+        }
+        if ( !list.contains(name) ) {
+            list.add(name);
+        }
+    }
+
+    private synchronized List<Node> names(Graph graph) {
+        List<Node> list = names.get(graph);
+        return list == null ? null : new ArrayList<Node>(list);
+    }
+
+    // The count of changes goes up at once, so that a load running across
+    // the write is not kept; the triples are copied, as the writer may reuse
+    // its array or list.
+    private void changed(Graph g, List<Triple> triples) {
+        if ( dataset.get() == null ) {
+            g.getEventManager().unregister(this);
+            return;
+        }
+        List<Node> list = names(g);
+        if ( invalidator == null || list == null || triples.size() > MAX_TRIPLES ) {
+            invalidate();
+            return;
+        }
+        Version v = version;
+        v.changes.incrementAndGet();
+        pending.add(new Change(v, list, new ArrayList<Triple>(triples)));
+    }
+
+    private void changed(Graph g) {
+        if ( dataset.get() == null ) {
+            g.getEventManager().unregister(this);
+            return;
+        }
+        invalidate();
+    }
+
+    @Override public void notifyAddTriple(Graph g, Triple t) { changed(g, Collections.singletonList(t)); }
+    @Override public void notifyAddArray(Graph g, Triple[] triples) { changed(g, Arrays.asList(triples)); }
+    @Override public void notifyAddList(Graph g, List<Triple> triples) { changed(g, triples); }
+    @Override public void notifyAddIterator(Graph g, Iterator<Triple> it) { changed(g); }
+    @Override public void notifyAddGraph(Graph g, Graph added) { changed(g); }
+    @Override public void notifyDeleteTriple(Graph g, Triple t) { changed(g, Collections.singletonList(t)); }
+    @Override public void notifyDeleteList(Graph g, List<Triple> triples) { changed(g, triples); }
+    @Override public void notifyDeleteArray(Graph g, Triple[] triples) { changed(g, Arrays.asList(triples)); }
+    @Override public void notifyDeleteIterator(Graph g, Iterator<Triple> it) { changed(g); }
+    @Override public void notifyDeleteGraph(Graph g, Graph removed) { changed(g); }
+    @Override public void notifyEvent(Graph source, Object value) { changed(source); }
+
+    private static final class Change {
+        final Version version;
+        final List<Node> names;
+        final List<Triple> triples;
+        Change(Version version, List<Node> names, List<Triple> triples) {
+            this.version = version;
+            this.names = names;
+            this.triples = triples;
+        }
+    }
+
+    /**
+     * Drops the results a change to triple, in graph (null for the default
+     * graph), could have changed from those cached for version.
+     */
+    interface Invalidator {
+        void invalidate(Version version, Node graph, Triple triple);
+    }
+
+    /**
+     * A generation of a dataset. Each is a new instance, equal only to
+     * itself, and indexes the footprints of the results cached under it.
+     * Results loaded while its triples changed may be stale: changes counts
+     * the invalidations, so that they can be told apart.
+     */
+    static final class Version {
+        final long generation;
+        final Dependencies<QueryKey> dependencies = new Dependencies<QueryKey>();
+        final AtomicLong changes = new AtomicLong();
+        Version(long generation) {
+            this.generation = generation;
+        }
+        @Override public String toString() { return "generation " + generation; }
+    }
+
+}
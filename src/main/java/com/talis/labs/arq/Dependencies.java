@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * A reverse index from the constants in the {@link Footprint}s of cached
+ * queries to their keys, so that the entries a change can affect are found
+ * without looking at every key.
+ */
+public class Dependencies<K> {
+
+    private final Map<K, Footprint> footprints = new HashMap<K, Footprint>();
+    private final Map<Node, Set<K>> subjects = new HashMap<Node, Set<K>>();
+    private final Map<Node, Set<K>> predicates = new HashMap<Node, Set<K>>();
+    private final Map<Node, Set<K>> objects = new HashMap<Node, Set<K>>();
+    private final Set<K> any = new HashSet<K>();
+
+    public synchronized void add(K key, Footprint footprint) {
+        if ( footprints.containsKey(key) ) {
+            remove(key);
+        }
+        footprints.put(key, footprint);
+        add(subjects, footprint.getSubjects(), key);
+        add(predicates, footprint.getPredicates(), key);
+        add(objects, footprint.getObjects(), key);
+        if ( footprint.isAnyTriple() ) {
+            any.add(key);
+        }
+    }
+
+    public synchronized void remove(K key) {
+        Footprint footprint = footprints.remove(key);
+        if ( footprint == null ) {
+            return;
+        }
+        remove(subjects, footprint.getSubjects(), key);
+        remove(predicates, footprint.getPredicates(), key);
+        remove(objects, footprint.getObjects(), key);
+        any.remove(key);
+    }
+
+    /** The keys of the entries which a change to triple in graph could affect. */
+    public synchronized List<K> affected(Node graph, Triple triple) {
+        Set<K> candidates = new HashSet<K>(any);
+        add(candidates, subjects.get(triple.getSubject()));
+        add(candidates, predicates.get(triple.getPredicate()));
+        add(candidates, objects.get(triple.getObject()));
+        List<K> affected = new ArrayList<K>();
+        for (K key : candidates) {
+            if ( footprints.get(key).touches(graph, triple) ) {
+                affected.add(key);
+            }
+        }
+        return affected;
+    }
+
+    /** The keys of the entries which a change to any triple in graph could affect. */
+    public synchronized List<K> affected(Node graph) {
+        List<K> affected = new ArrayList<K>();
+        for (Map.Entry<K, Footprint> entry : footprints.entrySet()) {
+            if ( entry.getValue().touches(graph) ) {
+                affected.add(entry.getKey());
+            }
+        }
+        return affected;
+    }
+
+    public synchronized boolean contains(K key) {
+        return footprints.containsKey(key);
+    }
+
+    public synchronized List<K> keys() {
+        return new ArrayList<K>(footprints.keySet());
+    }
+
+    public synchronized int size() {
+        return footprints.size();
+    }
+
+    private static <K> void add(Set<K> candidates, Set<K> keys) {
+        if ( keys != null ) {
+            candidates.addAll(keys);
+        }
+    }
+
+    private static <K> void add(Map<Node, Set<K>> index, Set<Node> nodes, K key) {
+        for (Node node : nodes) {
+            Set<K> keys = index.get(node);
+            if ( keys == null ) {
+                keys = new HashSet<K>();
+                index.put(node, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    private static <K> void remove(Map<Node, Set<K>> index, Set<Node> nodes, K key) {
+        for (Node node : nodes) {
+            Set<K> keys = index.get(node);
+            if ( keys != null && keys.remove(key) && keys.isEmpty() ) {
+                index.remove(node);
+            }
+        }
+    }
+
+}
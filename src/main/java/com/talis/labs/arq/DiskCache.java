@@ -0,0 +1,662 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.openjena.atlas.lib.ActionKeyValue;
+import org.openjena.atlas.lib.Cache;
+import org.openjena.atlas.lib.Closeable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.sparql.ARQInternalErrorException;
+
+/**
+ * A cache which keeps query results, encoded with {@link ResultCodec}, in a
+ * directory on disk, so that it is still warm after a restart.
+ * <p>
+ * Entries are appended to a log of memory-mapped segment files; an index of
+ * the keys, and of where their entries are, is kept in memory. Each record
+ * is a key length, a value length (-1 for a removal), a CRC of the key and
+ * value, the key and the value. When a segment is full it is sealed: a hint
+ * file lists its keys and offsets, so that reopening the cache reads the hint
+ * files rather than the segments. Only the last, unsealed, segment is
+ * scanned, and the scan stops at the first record which fails its CRC.
+ * <p>
+ * When there are more segments than fit in maxBytes the oldest is dropped,
+ * with its entries. Sealed segments which hold mostly overwritten or removed
+ * entries are compacted in the background: their live entries are appended
+ * to the log again, and the files deleted.
+ * <p>
+ * Keys are written with a {@link KeyFormat}. As with {@link OffHeapCache},
+ * {@link #get(Object)} returns the encoded byte[], {@link #put(Object, Object)}
+ * does not return the previous value, and the drop handler is given a null
+ * value.
+ */
+public class DiskCache<K> implements Cache<K, Object>, Closeable {
+
+    public interface KeyFormat<K> {
+        byte[] write(K key);
+        K read(byte[] bytes);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(DiskCache.class);
+
+    public static int SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static float COMPACT_RATIO = 0.5f; // sealed segments with less live data than this are compacted
+
+    private static final int MAGIC = 0x53504331; // "SPC1"
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 12;
+    private static final int REMOVED = -1;
+    private static final String SEGMENT = ".seg";
+    private static final String HINT = ".hint";
+
+    private final File directory;
+    private final KeyFormat<K> format;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final ConcurrentMap<ByteKey, Location> index = new ConcurrentHashMap<ByteKey, Location>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final LinkedList<Segment> segments = new LinkedList<Segment>(); // oldest first, guarded by writeLock
+    private Segment active; // guarded by writeLock
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final ExecutorService compactor;
+    private volatile ActionKeyValue<K, Object> dropHandler = null;
+
+    public DiskCache(File directory, long maxBytes, KeyFormat<K> format) throws IOException {
+        if ( maxBytes <= 0 ) throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("Cannot create " + directory);
+        }
+        this.directory = directory;
+        this.format = format;
+        this.segmentBytes = (int) Math.max(64 * 1024, Math.min(SEGMENT_BYTES, maxBytes / 4));
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        this.lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+        FileLock lock;
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null; // held elsewhere in this process
+        }
+        this.lock = lock;
+        if ( lock == null ) {
+            lockFile.close();
+            throw new IOException(directory + " is in use by another process");
+        }
+        this.compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DiskCache compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        open();
+    }
+
+    private void open() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override public boolean accept(File file) { return file.getName().endsWith(SEGMENT); }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            @Override public int compare(File f1, File f2) { return f1.getName().compareTo(f2.getName()); }
+        });
+        long id = 0;
+        for (int i = 0; i < files.length; i++) {
+            id = Long.parseLong(files[i].getName().substring(0, files[i].getName().length() - SEGMENT.length()));
+            Segment segment = Segment.open(files[i], id);
+            if ( segment == null ) {
+                log.warn("Ignoring " + files[i] + ", which is not a segment of this version");
+                delete(files[i], id);
+                continue;
+            }
+            segments.add(segment);
+            if ( hint(segment).exists() ) {
+                loadHint(segment);
+                segment.sealed = true;
+            } else {
+                scan(segment);
+                if ( i < files.length - 1 ) {
+                    seal(segment);
+                }
+            }
+        }
+        writeLock.lock();
+        try {
+            if ( segments.isEmpty() || segments.getLast().sealed ) {
+                active = Segment.create(segmentFile(id + 1), id + 1, segmentBytes);
+                segments.add(active);
+            } else {
+                active = segments.getLast();
+            }
+            List<ByteKey> dropped = new ArrayList<ByteKey>();
+            while ( segments.size() > maxSegments ) {
+                evictOldest(dropped);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        compactor.execute(compaction);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return index.containsKey(new ByteKey(format.write(key)));
+    }
+
+    @Override
+    public Object get(K key) {
+        Location location = index.get(new ByteKey(format.write(key)));
+        if ( location == null ) {
+            return null;
+        }
+        return location.read();
+    }
+
+    @Override
+    public Object put(K key, Object value) {
+        ByteKey k = new ByteKey(format.write(key));
+        byte[] bytes = ResultCodec.encodeValue(value);
+        if ( HEADER + RECORD_HEADER + k.bytes.length + bytes.length > segmentBytes ) {
+            // Can never fit: do not drop a segment trying.
+            remove(key);
+            drop(Collections.singletonList(k));
+            return null;
+        }
+        List<ByteKey> dropped = new ArrayList<ByteKey>();
+        writeLock.lock();
+        try {
+            append(k, bytes, dropped);
+        } catch (IOException e) {
+            log.warn("Cannot write to " + directory, e);
+        } finally {
+            writeLock.unlock();
+        }
+        drop(dropped);
+        return null;
+    }
+
+    @Override
+    public boolean remove(K key) {
+        ByteKey k = new ByteKey(format.write(key));
+        List<ByteKey> dropped = new ArrayList<ByteKey>();
+        writeLock.lock();
+        try {
+            if ( !index.containsKey(k) ) {
+                return false;
+            }
+            append(k, null, dropped);
+        } catch (IOException e) {
+            log.warn("Cannot write to " + directory, e);
+            index.remove(k);
+        } finally {
+            writeLock.unlock();
+        }
+        drop(dropped);
+        return true;
+    }
+
+    @Override
+    public Iterator<K> keys() {
+        List<K> keys = new ArrayList<K>(index.size());
+        for (ByteKey k : index.keySet()) {
+            keys.add(format.read(k.bytes));
+        }
+        final Iterator<K> iter = keys.iterator();
+        return new Iterator<K>() {
+            private K current = null;
+            @Override public boolean hasNext() { return iter.hasNext(); }
+            @Override public K next() { current = iter.next(); return current; }
+            @Override public void remove() { DiskCache.this.remove(current); }
+        };
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        writeLock.lock();
+        try {
+            index.clear();
+            long id = active.id;
+            for (Segment segment : segments) {
+                delete(segment.file, segment.id);
+            }
+            segments.clear();
+            active = Segment.create(segmentFile(id + 1), id + 1, segmentBytes);
+            segments.add(active);
+        } catch (IOException e) {
+            throw new ARQInternalErrorException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return index.size();
+    }
+
+    @Override
+    public void setDropHandler(ActionKeyValue<K, Object> dropHandler) {
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * Stops the compaction and flushes the log. The last segment is not
+     * sealed: it is scanned when the cache is reopened.
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeLock.lock();
+        try {
+            active.buffer.force();
+            lock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            log.warn("Cannot close " + directory, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Called holding writeLock: a null value records a removal.
+    private void append(ByteKey key, byte[] value, List<ByteKey> dropped) throws IOException {
+        int length = RECORD_HEADER + key.bytes.length + ( value == null ? 0 : value.length );
+        if ( active.position + length > active.capacity ) {
+            seal(active);
+            active = Segment.create(segmentFile(active.id + 1), active.id + 1, segmentBytes);
+            segments.add(active);
+            while ( segments.size() > maxSegments ) {
+                evictOldest(dropped);
+            }
+            compactor.execute(compaction);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(key.bytes);
+        if ( value != null ) {
+            crc.update(value);
+        }
+        int offset = active.position;
+        ByteBuffer buffer = active.buffer.duplicate();
+        buffer.position(offset);
+        buffer.putInt(key.bytes.length);
+        buffer.putInt(value == null ? REMOVED : value.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(key.bytes);
+        if ( value != null ) {
+            buffer.put(value);
+        }
+        active.position += length;
+        active.records.add(new Record(key, offset, value == null ? REMOVED : value.length));
+        apply(active, key, offset, value == null ? REMOVED : value.length);
+    }
+
+    // Brings the index up to date with a record, as it is written or read back.
+    private void apply(Segment segment, ByteKey key, int offset, int valueLength) {
+        Location old;
+        if ( valueLength == REMOVED ) {
+            old = index.remove(key);
+            segment.removed.add(key);
+        } else {
+            Location location = new Location(segment, offset, key.bytes.length, valueLength);
+            old = index.put(key, location);
+            segment.live.addAndGet(location.length());
+            segment.keys.add(key);
+        }
+        if ( old != null ) {
+            old.segment.live.addAndGet(-old.length());
+        }
+    }
+
+    // Called holding writeLock.
+    private void seal(Segment segment) throws IOException {
+        segment.buffer.force();
+        File tmp = new File(directory, segment.file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(segment.records.size());
+            for (Record record : segment.records) {
+                out.writeInt(record.offset);
+                out.writeInt(record.valueLength);
+                out.writeInt(record.key.bytes.length);
+                out.write(record.key.bytes);
+            }
+        } finally {
+            out.close();
+        }
+        if ( !tmp.renameTo(hint(segment)) ) {
+            throw new IOException("Cannot rename " + tmp);
+        }
+        segment.records.clear();
+        segment.sealed = true;
+    }
+
+    private void loadHint(Segment segment) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(hint(segment))));
+        try {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException("Not a hint file: " + hint(segment));
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                int offset = in.readInt();
+                int valueLength = in.readInt();
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                apply(segment, new ByteKey(key), offset, valueLength);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Reads back the records of a segment which was not sealed, up to the
+    // first one which is incomplete or corrupt.
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = HEADER;
+        while ( position + RECORD_HEADER <= segment.capacity ) {
+            buffer.position(position);
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            int checksum = buffer.getInt();
+            int length = RECORD_HEADER + keyLength + Math.max(0, valueLength);
+            if ( keyLength <= 0 || valueLength < REMOVED || length < 0 || position + length > segment.capacity ) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(key);
+            CRC32 crc = new CRC32();
+            crc.update(key);
+            if ( valueLength > 0 ) {
+                byte[] value = new byte[valueLength];
+                buffer.get(value);
+                crc.update(value);
+            }
+            if ( (int) crc.getValue() != checksum ) {
+                break;
+            }
+            ByteKey k = new ByteKey(key);
+            segment.records.add(new Record(k, position, valueLength));
+            apply(segment, k, position, valueLength);
+            position += length;
+        }
+        segment.position = position;
+    }
+
+    // Called holding writeLock. The oldest segment holds the oldest records,
+    // so its removals can go with it. Only the keys written to it are looked
+    // up, not the whole index.
+    private void evictOldest(List<ByteKey> dropped) {
+        Segment oldest = segments.removeFirst();
+        for (ByteKey key : oldest.keys) {
+            Location location = index.get(key);
+            if ( location != null && location.segment == oldest && index.remove(key, location) ) {
+                dropped.add(key);
+            }
+        }
+        delete(oldest.file, oldest.id);
+    }
+
+    private final Runnable compaction = new Runnable() {
+        @Override public void run() {
+            List<Segment> candidates = new ArrayList<Segment>();
+            writeLock.lock();
+            try {
+                for (Segment segment : segments) {
+                    if ( segment.sealed && segment.live.get() < ( segment.capacity - HEADER ) * COMPACT_RATIO ) {
+                        candidates.add(segment);
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+            for (Segment segment : candidates) {
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    log.warn("Cannot compact " + segment.file, e);
+                }
+            }
+        }
+    };
+
+    // A sealed segment's keys no longer change.
+    private void compact(Segment segment) throws IOException {
+        List<ByteKey> dropped = new ArrayList<ByteKey>();
+        for (ByteKey key : segment.keys) {
+            Location location = index.get(key);
+            if ( location == null || location.segment != segment ) {
+                continue;
+            }
+            byte[] value = location.read();
+            writeLock.lock();
+            try {
+                if ( !segments.contains(segment) ) {
+                    return;
+                }
+                if ( index.get(key) == location ) {
+                    append(key, value, dropped);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        writeLock.lock();
+        try {
+            if ( !segments.contains(segment) ) {
+                return;
+            }
+            // A removal must be kept while an older segment may hold the entry.
+            if ( segments.getFirst() != segment ) {
+                for (ByteKey key : segment.removed) {
+                    if ( !index.containsKey(key) ) {
+                        append(key, null, dropped);
+                    }
+                }
+            }
+            segments.remove(segment);
+            delete(segment.file, segment.id);
+        } finally {
+            writeLock.unlock();
+        }
+        drop(dropped);
+    }
+
+    private void drop(List<ByteKey> dropped) {
+        ActionKeyValue<K, Object> handler = dropHandler;
+        if ( handler == null ) return;
+        for (ByteKey key : dropped) {
+            handler.apply(format.read(key.bytes), null);
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%016d", id) + SEGMENT);
+    }
+
+    private File hint(Segment segment) {
+        return new File(directory, String.format("%016d", segment.id) + HINT);
+    }
+
+    // Readers may still hold the mapping of a deleted segment, which stays
+    // valid until it is garbage collected.
+    private void delete(File file, long id) {
+        file.delete();
+        new File(directory, String.format("%016d", id) + HINT).delete();
+    }
+
+    private static class Segment {
+
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        int position = HEADER; // guarded by writeLock
+        boolean sealed = false; // guarded by writeLock
+        final AtomicLong live = new AtomicLong(); // bytes of the records still in the index
+        final Set<ByteKey> removed = new HashSet<ByteKey>(); // guarded by writeLock
+        final List<ByteKey> keys = new ArrayList<ByteKey>(); // written to it, guarded by writeLock until sealed
+        final List<Record> records = new ArrayList<Record>(); // until sealed, guarded by writeLock
+
+        private Segment(long id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+
+        static Segment create(File file, long id, int capacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(capacity);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, ResultCodec.VERSION);
+                return new Segment(id, file, buffer);
+            } finally {
+                raf.close();
+            }
+        }
+
+        // Null if the file was not written by this version.
+        static Segment open(File file, long id) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if ( raf.length() < HEADER || raf.length() > Integer.MAX_VALUE ) {
+                    return null;
+                }
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+                if ( buffer.getInt(0) != MAGIC || buffer.getInt(4) != ResultCodec.VERSION ) {
+                    return null;
+                }
+                return new Segment(id, file, buffer);
+            } finally {
+                raf.close();
+            }
+        }
+
+    }
+
+    private static class Location {
+
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int valueLength;
+
+        Location(Segment segment, int offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        int length() {
+            return RECORD_HEADER + keyLength + valueLength;
+        }
+
+        byte[] read() {
+            byte[] value = new byte[valueLength];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + RECORD_HEADER + keyLength);
+            buffer.get(value);
+            return value;
+        }
+
+    }
+
+    private static class Record {
+        final ByteKey key;
+        final int offset;
+        final int valueLength;
+        Record(ByteKey key, int offset, int valueLength) {
+            this.key = key;
+            this.offset = offset;
+            this.valueLength = valueLength;
+        }
+    }
+
+    private static class ByteKey {
+
+        final byte[] bytes;
+        private final int hashCode;
+
+        ByteKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof ByteKey && Arrays.equals(bytes, ((ByteKey) obj).bytes);
+        }
+
+    }
+
+}
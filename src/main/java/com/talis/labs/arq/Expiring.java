@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.talis.labs.arq;
+
+/**
+ * A cached value with its time to live: the times, in milliseconds since the
+ * epoch, at which it was computed, after which it should be refreshed (its
+ * soft expiry) and after which it may no longer be used (its hard expiry).
+ * Long.MAX_VALUE stands for never.
+ */
+public final class Expiring {
+
+    private final Object value;
+    private final long created;
+    private final long softExpiry;
+    private final long hardExpiry;
+
+    public Expiring(Object value, long created, long softExpiry, long hardExpiry) {
+        this.value = value;
+        this.created = created;
+        this.softExpiry = Math.min(softExpiry, hardExpiry);
+        this.hardExpiry = hardExpiry;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public long getSoftExpiry() {
+        return softExpiry;
+    }
+
+    public long getHardExpiry() {
+        return hardExpiry;
+    }
+
+    /**
+     * The time after which a hit should start a refresh: the soft expiry, or
+     * earlier by a fraction ahead of the soft time to live.
+     */
+    public long getRefreshTime(double ahead) {
+        if ( softExpiry == Long.MAX_VALUE ) {
+            return Long.MAX_VALUE;
+        }
+        return softExpiry - (long) ( ( softExpiry - created ) * ahead );
+    }
+
+    /**
+     * The seconds a shared cache should keep the value for: until its hard
+     * expiry, at least one and at most max.
+     */
+    public int getSecondsToLive(int max) {
+        long millis = hardExpiry - System.currentTimeMillis();
+        if ( hardExpiry == Long.MAX_VALUE || millis >= max * 1000L ) {
+            return max;
+        }
+        return (int) Math.max(1, ( millis + 999 ) / 1000);
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.sparql.ARQInternalErrorException;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.Op1;
+import com.hp.hpl.jena.sparql.algebra.op.Op2;
+import com.hp.hpl.jena.sparql.algebra.op.OpAssign;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpDatasetNames;
+import com.hp.hpl.jena.sparql.algebra.op.OpExtend;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph;
+import com.hp.hpl.jena.sparql.algebra.op.OpLeftJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpN;
+import com.hp.hpl.jena.sparql.algebra.op.OpNull;
+import com.hp.hpl.jena.sparql.algebra.op.OpPath;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadPattern;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.algebra.op.OpTable;
+import com.hp.hpl.jena.sparql.algebra.op.OpTriple;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.core.VarExprList;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprFunction;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.ExprList;
+import com.hp.hpl.jena.sparql.sse.SSE;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+
+/**
+ * What data a query can read: the graphs it reads from (the default graph,
+ * named graphs, or any graph) and, for each of its triple patterns, the most
+ * selective constant in it (its predicate, else its subject, else its
+ * object), or that it matches any triple.
+ * <p>
+ * A change to a triple in a graph can only change the results of a query if
+ * {@link #touches(Node, Triple)}. The footprint over-approximates: patterns
+ * and graphs are not kept together, and anything which cannot be analysed
+ * (property paths, property functions, extensions, DESCRIBE) matches any
+ * triple.
+ */
+public final class Footprint {
+
+    /** The footprint of a query about which nothing is known. */
+    public static final Footprint ANY = new Footprint();
+    static {
+        ANY.anyGraph = true;
+        ANY.defaultGraph = true;
+        ANY.anyTriple = true;
+    }
+
+    // Flags of the written out form
+    private static final int ANY_GRAPH = 1;
+    private static final int DEFAULT_GRAPH = 2;
+    private static final int ANY_TRIPLE = 4;
+
+    private final Set<Node> graphs = new HashSet<Node>();
+    private boolean anyGraph = false;
+    private boolean defaultGraph = false;
+    private final Set<Node> subjects = new HashSet<Node>();
+    private final Set<Node> predicates = new HashSet<Node>();
+    private final Set<Node> objects = new HashSet<Node>();
+    private boolean anyTriple = false;
+
+    // Graphs from the dataset description of the query, if any
+    private Set<Node> from = null;
+    private Set<Node> fromNamed = null;
+
+    private volatile byte[] bytes = null; // written out once, when first asked for
+
+    private Footprint() {}
+
+    public static Footprint create(Query query) {
+        return create(query, Algebra.compile(query));
+    }
+
+    static Footprint create(Query query, Op op) {
+        if ( query.isDescribeType() ) {
+            return ANY;
+        }
+        Footprint footprint = new Footprint();
+        if ( query.hasDatasetDescription() ) {
+            footprint.from = nodes(query.getGraphURIs());
+            footprint.fromNamed = nodes(query.getNamedGraphURIs());
+        }
+        footprint.walk(op, null);
+        return footprint;
+    }
+
+    public static Footprint create(Op op) {
+        Footprint footprint = new Footprint();
+        footprint.walk(op, null);
+        return footprint;
+    }
+
+    /**
+     * Whether a change to triple, in graph (null or one of the default graph
+     * nodes of {@link Quad} for the default graph), could change the results.
+     */
+    public boolean touches(Node graph, Triple triple) {
+        boolean inGraph;
+        if ( graph == null || Quad.isDefaultGraph(graph) ) {
+            inGraph = defaultGraph;
+        } else {
+            inGraph = anyGraph || graphs.contains(graph);
+        }
+        return inGraph && ( anyTriple || predicates.contains(triple.getPredicate()) || subjects.contains(triple.getSubject()) || objects.contains(triple.getObject()) );
+    }
+
+    /** Whether a change to any triple in graph could change the results. */
+    public boolean touches(Node graph) {
+        if ( graph == null || Quad.isDefaultGraph(graph) ) {
+            return defaultGraph;
+        }
+        return anyGraph || graphs.contains(graph);
+    }
+
+    /**
+     * The footprint written out, for example next to its key in a persistent
+     * cache. The same footprint is always written the same way.
+     */
+    public byte[] getBytes() {
+        byte[] b = bytes;
+        if ( b == null ) {
+            b = write();
+            bytes = b;
+        }
+        return b.clone();
+    }
+
+    /** A footprint read back from its {@link #getBytes() bytes}. */
+    public static Footprint create(byte[] bytes) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            Footprint footprint = new Footprint();
+            int flags = in.readByte();
+            footprint.anyGraph = ( flags & ANY_GRAPH ) != 0;
+            footprint.defaultGraph = ( flags & DEFAULT_GRAPH ) != 0;
+            footprint.anyTriple = ( flags & ANY_TRIPLE ) != 0;
+            read(in, footprint.graphs);
+            read(in, footprint.subjects);
+            read(in, footprint.predicates);
+            read(in, footprint.objects);
+            if ( in.available() != 0 ) {
+                throw new IllegalArgumentException("Not a footprint: " + in.available() + " bytes left over");
+            }
+            return footprint;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not a footprint", e);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Not a footprint", e);
+        }
+    }
+
+    private byte[] write() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(( anyGraph ? ANY_GRAPH : 0 ) | ( defaultGraph ? DEFAULT_GRAPH : 0 ) | ( anyTriple ? ANY_TRIPLE : 0 ));
+            write(out, graphs);
+            write(out, subjects);
+            write(out, predicates);
+            write(out, objects);
+            out.flush();
+        } catch (IOException e) {
+            throw new ARQInternalErrorException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Sorted, so that the order the set was built in makes no difference.
+    private static void write(DataOutputStream out, Set<Node> nodes) throws IOException {
+        List<String> strings = new ArrayList<String>(nodes.size());
+        for (Node node : nodes) {
+            strings.add(FmtUtils.stringForNode(node));
+        }
+        Collections.sort(strings);
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            byte[] b = string.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private static void read(DataInputStream in, Set<Node> nodes) throws IOException {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            int length = in.readInt();
+            if ( length < 0 || length > in.available() ) {
+                throw new IOException("Truncated node");
+            }
+            byte[] b = new byte[length];
+            in.readFully(b);
+            nodes.add(SSE.parseNode(new String(b, "UTF-8")));
+        }
+    }
+
+    Set<Node> getSubjects() {
+        return Collections.unmodifiableSet(subjects);
+    }
+
+    Set<Node> getPredicates() {
+        return Collections.unmodifiableSet(predicates);
+    }
+
+    Set<Node> getObjects() {
+        return Collections.unmodifiableSet(objects);
+    }
+
+    boolean isAnyTriple() {
+        return anyTriple;
+    }
+
+    @Override
+    public String toString() {
+        return "Footprint(graphs=" + ( anyGraph ? "*" : graphs ) + ( defaultGraph ? " default" : "" )
+            + " s=" + subjects + " p=" + predicates + " o=" + objects + ( anyTriple ? " *" : "" ) + ")";
+    }
+
+    private static Set<Node> nodes(Iterable<String> uris) {
+        Set<Node> nodes = new HashSet<Node>();
+        for (String uri : uris) {
+            nodes.add(Node.createURI(uri));
+        }
+        return nodes;
+    }
+
+    // graph is null outside of GRAPH, the graph name or a variable inside it.
+    private void walk(Op op, Node graph) {
+        if ( op instanceof OpBGP ) {
+            for (Triple triple : ((OpBGP) op).getPattern()) {
+                pattern(graph, triple.getSubject(), triple.getPredicate(), triple.getObject());
+            }
+        } else if ( op instanceof OpTriple ) {
+            Triple triple = ((OpTriple) op).getTriple();
+            pattern(graph, triple.getSubject(), triple.getPredicate(), triple.getObject());
+        } else if ( op instanceof OpQuadPattern ) {
+            OpQuadPattern quads = (OpQuadPattern) op;
+            Node g = quads.isDefaultGraph() ? null : quads.getGraphNode();
+            for (Triple triple : quads.getBasicPattern()) {
+                pattern(g, triple.getSubject(), triple.getPredicate(), triple.getObject());
+            }
+        } else if ( op instanceof OpPath ) {
+            // A path of more than one step reads triples whose subjects and
+            // objects are not in the query: it can read anything.
+            TriplePath path = ((OpPath) op).getTriplePath();
+            if ( path.isTriple() ) {
+                pattern(graph, path.getSubject(), path.getPredicate(), path.getObject());
+            } else {
+                pattern(graph, Node.ANY, Node.ANY, Node.ANY);
+            }
+        } else if ( op instanceof OpGraph ) {
+            walk(((OpGraph) op).getSubOp(), ((OpGraph) op).getNode());
+        } else if ( op instanceof OpDatasetNames ) {
+            pattern(((OpDatasetNames) op).getGraphNode(), Node.ANY, Node.ANY, Node.ANY);
+        } else if ( op instanceof OpService || op instanceof OpTable || op instanceof OpNull ) {
+            // Nothing read from the dataset
+        } else if ( op instanceof Op1 ) {
+            if ( op instanceof OpFilter ) exprs(((OpFilter) op).getExprs(), graph);
+            if ( op instanceof OpExtend ) exprs(((OpExtend) op).getVarExprList(), graph);
+            if ( op instanceof OpAssign ) exprs(((OpAssign) op).getVarExprList(), graph);
+            walk(((Op1) op).getSubOp(), graph);
+        } else if ( op instanceof Op2 ) {
+            if ( op instanceof OpLeftJoin && ((OpLeftJoin) op).getExprs() != null ) exprs(((OpLeftJoin) op).getExprs(), graph);
+            walk(((Op2) op).getLeft(), graph);
+            walk(((Op2) op).getRight(), graph);
+        } else if ( op instanceof OpN ) {
+            for (Op element : ((OpN) op).getElements()) {
+                walk(element, graph);
+            }
+        } else {
+            // Property functions, procedures, extensions...
+            anyGraph = true;
+            defaultGraph = true;
+            anyTriple = true;
+        }
+    }
+
+    // EXISTS and NOT EXISTS read graph patterns too.
+    private void exprs(ExprList exprs, Node graph) {
+        for (Expr expr : exprs) {
+            expr(expr, graph);
+        }
+    }
+
+    private void exprs(VarExprList exprs, Node graph) {
+        for (Expr expr : exprs.getExprs().values()) {
+            expr(expr, graph);
+        }
+    }
+
+    private void expr(Expr expr, Node graph) {
+        if ( expr instanceof ExprFunctionOp ) {
+            walk(((ExprFunctionOp) expr).getGraphPattern(), graph);
+        }
+        if ( expr instanceof ExprFunction ) {
+            for (Expr arg : ((ExprFunction) expr).getArgs()) {
+                expr(arg, graph);
+            }
+        }
+    }
+
+    private void pattern(Node graph, Node s, Node p, Node o) {
+        if ( graph == null ) {
+            if ( from != null && !from.isEmpty() ) {
+                graphs.addAll(from);
+            } else {
+                defaultGraph = true;
+            }
+        } else if ( graph.isConcrete() && !Quad.isUnionGraph(graph) ) {
+            graphs.add(graph);
+        } else if ( fromNamed != null && !fromNamed.isEmpty() ) {
+            graphs.addAll(fromNamed);
+        } else {
+            anyGraph = true;
+        }
+
+        if ( p.isConcrete() ) {
+            predicates.add(p);
+        } else if ( s.isConcrete() ) {
+            subjects.add(s);
+        } else if ( o.isConcrete() ) {
+            objects.add(o);
+        } else {
+            anyTriple = true;
+        }
+    }
+
+}
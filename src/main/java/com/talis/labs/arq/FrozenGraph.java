@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import com.hp.hpl.jena.graph.BulkUpdateHandler;
+import com.hp.hpl.jena.graph.Capabilities;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.compose.Delta;
+import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.AddDeniedException;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.shared.impl.PrefixMappingImpl;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+
+/**
+ * A graph which is no longer changed once it is in the cache, and the views
+ * over it handed out on cache hits. Views keep the indexes of the frozen
+ * graph, so a view costs the same whatever the size of the graph: a read only
+ * view refuses updates, a copy-on-write view keeps them to itself.
+ */
+public class FrozenGraph {
+
+    private final Graph graph;
+
+    /**
+     * Takes over the graph of a model: neither should be used, other than
+     * through views, afterwards.
+     */
+    public FrozenGraph(Model model) {
+        this(model.getGraph());
+    }
+
+    public FrozenGraph(Graph graph) {
+        this.graph = graph;
+    }
+
+    public Graph getGraph() {
+        return new View(graph);
+    }
+
+    public Model readOnly() {
+        return ModelFactory.createModelForGraph(new View(graph));
+    }
+
+    public Model copyOnWrite() {
+        Delta delta = new Delta(new View(graph));
+        delta.getPrefixMapping().setNsPrefixes(graph.getPrefixMapping());
+        return ModelFactory.createModelForGraph(delta);
+    }
+
+    public int size() {
+        return graph.size();
+    }
+
+    // Closing a view, or its model, does not close the frozen graph.
+    private static class View extends WrappedGraph {
+
+        private final PrefixMapping prefixes;
+        private boolean closed = false;
+
+        View(Graph base) {
+            super(base);
+            this.prefixes = new PrefixMappingImpl().setNsPrefixes(base.getPrefixMapping());
+        }
+
+        @Override
+        public void add(Triple t) {
+            throw new AddDeniedException("Cached graphs are read only", t);
+        }
+
+        @Override
+        public void performAdd(Triple t) {
+            add(t);
+        }
+
+        @Override
+        public void delete(Triple t) {
+            throw new DeleteDeniedException("Cached graphs are read only", t);
+        }
+
+        @Override
+        public void performDelete(Triple t) {
+            delete(t);
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(TripleMatch m) {
+            return WrappedIterator.createNoRemove(base.find(m));
+        }
+
+        @Override
+        public ExtendedIterator<Triple> find(Node s, Node p, Node o) {
+            return WrappedIterator.createNoRemove(base.find(s, p, o));
+        }
+
+        @Override
+        public BulkUpdateHandler getBulkUpdateHandler() {
+            if ( bud == null ) {
+                bud = new SimpleBulkUpdateHandler(this) {
+                    @Override public void remove(Node s, Node p, Node o) { throw new DeleteDeniedException("Cached graphs are read only"); }
+                    @Override public void removeAll() { throw new DeleteDeniedException("Cached graphs are read only"); }
+                };
+            }
+            return bud;
+        }
+
+        @Override
+        public Capabilities getCapabilities() {
+            final Capabilities capabilities = base.getCapabilities();
+            return new Capabilities() {
+                @Override public boolean sizeAccurate() { return capabilities.sizeAccurate(); }
+                @Override public boolean addAllowed() { return false; }
+                @Override public boolean addAllowed(boolean everyTriple) { return false; }
+                @Override public boolean deleteAllowed() { return false; }
+                @Override public boolean deleteAllowed(boolean everyTriple) { return false; }
+                @Override public boolean iteratorRemoveAllowed() { return false; }
+                @Override public boolean canBeEmpty() { return capabilities.canBeEmpty(); }
+                @Override public boolean findContractSafe() { return capabilities.findContractSafe(); }
+                @Override public boolean handlesLiteralTyping() { return capabilities.handlesLiteralTyping(); }
+            };
+        }
+
+        @Override
+        public PrefixMapping getPrefixMapping() {
+            return prefixes;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The generation of each service, kept in a shared store by a backend and
+ * remembered here for up to maxAge milliseconds, so that most lookups cost
+ * no round trip. A backend puts the generation in its keys: invalidating a
+ * service is then a single increment, after which the old entries are never
+ * read again and expire by themselves.
+ * <p>
+ * Another process may go on using the old generation until it next looks it
+ * up, that is for up to maxAge milliseconds.
+ */
+abstract class Generations {
+
+    private final long maxAge;
+    private final ConcurrentMap<String, Generation> generations = new ConcurrentHashMap<String, Generation>();
+
+    Generations(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /** The generation of a service in the shared store. */
+    abstract long lookup(String serviceURI);
+
+    /** Increments the generation of a service in the shared store, returning the new one. */
+    abstract long increment(String serviceURI);
+
+    long get(String serviceURI) {
+        Generation generation = generations.get(serviceURI);
+        long now = System.currentTimeMillis();
+        if ( generation == null || now - generation.time > maxAge ) {
+            return remember(serviceURI, lookup(serviceURI), now);
+        }
+        return generation.value;
+    }
+
+    long invalidate(String serviceURI) {
+        return remember(serviceURI, increment(serviceURI), System.currentTimeMillis());
+    }
+
+    // Generations only go up: a lookup which was overtaken by an increment
+    // must not bring back the old generation.
+    private synchronized long remember(String serviceURI, long value, long time) {
+        Generation generation = generations.get(serviceURI);
+        if ( generation != null && generation.value > value ) {
+            value = generation.value;
+        }
+        generations.put(serviceURI, new Generation(value, time));
+        return value;
+    }
+
+    private static class Generation {
+        final long value;
+        final long time;
+        Generation(long value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.talis.labs.arq;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjena.atlas.lib.ActionKeyValue;
+import org.openjena.atlas.lib.Cache;
+
+/**
+ * A bounded cache which keeps the entries that cost the most to compute, per
+ * unit of weight, and are used the most: a GreedyDual-Size-Frequency policy,
+ * split into independently locked segments like a {@link ConcurrentCache}.
+ * <p>
+ * Each entry has a priority of L + hits * cost / weight and the entry with the
+ * lowest, in any segment, is evicted first. L, the priority of the last entry
+ * evicted, is shared by the segments and ages the entries which are no longer
+ * used. A new entry is only admitted if it costs at least minCost and, when
+ * the cache is full, if its priority is higher than the lowest in the cache:
+ * otherwise it is the first to be evicted. The drop handler is called for the
+ * entries which are not admitted too.
+ * <p>
+ * The cost is whatever the caller measures, for example the nanoseconds it
+ * took to compute the value; an entry put without one is taken to cost
+ * minCost.
+ */
+public class GreedyDualCache<K, V> implements Cache<K, V> {
+
+    private static final Weigher<Object, Object> ONE = new Weigher<Object, Object>() {
+        @Override public long weigh(Object key, Object value) { return 1; }
+    };
+
+    private final Segment<K, V>[] segments;
+    private final int mask;
+    private final long maxWeight;
+    private final long minCost;
+    private final Weigher<? super K, ? super V> weigher;
+    private final AtomicLong weight = new AtomicLong();
+    private final Inflation inflation = new Inflation();
+    private final AtomicLong clock = new AtomicLong(); // orders equal priorities across segments
+    private volatile ActionKeyValue<K, V> dropHandler = null;
+
+    public GreedyDualCache(int maxSize, long minCost) {
+        this(maxSize, minCost, ConcurrentCache.DEFAULT_CONCURRENCY);
+    }
+
+    public GreedyDualCache(int maxSize, long minCost, int concurrency) {
+        this(maxSize, ONE, minCost, concurrency);
+    }
+
+    public GreedyDualCache(long maxWeight, Weigher<? super K, ? super V> weigher, long minCost) {
+        this(maxWeight, weigher, minCost, ConcurrentCache.DEFAULT_CONCURRENCY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public GreedyDualCache(long maxWeight, Weigher<? super K, ? super V> weigher, long minCost, int concurrency) {
+        if ( maxWeight <= 0 ) throw new IllegalArgumentException("maxWeight must be positive: " + maxWeight);
+        int n = 1;
+        while ( n < concurrency && n < maxWeight ) n <<= 1;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[n]; // arrays of a type parameter cannot be created
+        this.mask = n - 1;
+        this.maxWeight = maxWeight;
+        this.minCost = minCost;
+        this.weigher = weigher;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment<K, V>(inflation, clock);
+        }
+    }
+
+    private int indexFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & mask;
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return segments[indexFor(key)].containsKey(key);
+    }
+
+    @Override
+    public V get(K key) {
+        return segments[indexFor(key)].get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, minCost);
+    }
+
+    public V put(K key, V value, long cost) {
+        long w = weigher.weigh(key, value);
+        List<Map.Entry<K, V>> dropped = new ArrayList<Map.Entry<K, V>>(1);
+        int index = indexFor(key);
+        V old;
+        if ( w > maxWeight || cost < minCost ) {
+            old = segments[index].remove(key, weight);
+            dropped.add(new AbstractMap.SimpleImmutableEntry<K, V>(key, value));
+        } else {
+            old = segments[index].put(key, value, w, cost, weight);
+            evict(dropped);
+        }
+        drop(dropped);
+        return old;
+    }
+
+    @Override
+    public boolean remove(K key) {
+        return segments[indexFor(key)].remove(key, weight) != null;
+    }
+
+    @Override
+    public Iterator<K> keys() {
+        List<K> keys = new ArrayList<K>();
+        for (Segment<K, V> segment : segments) {
+            segment.keys(keys);
+        }
+        final Iterator<K> iter = keys.iterator();
+        return new Iterator<K>() {
+            private K current = null;
+            @Override public boolean hasNext() { return iter.hasNext(); }
+            @Override public K next() { current = iter.next(); return current; }
+            @Override public void remove() { GreedyDualCache.this.remove(current); }
+        };
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear(weight);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long weight() {
+        return weight.get();
+    }
+
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public void setDropHandler(ActionKeyValue<K, V> dropHandler) {
+        this.dropHandler = dropHandler;
+    }
+
+    // Evict the entry of lowest priority of all the segments, until the total
+    // weight is back within the bound. Each scan of the segments finds the
+    // one holding it and evicts from it every entry of lower priority than
+    // the lowest of any other segment, not just the first.
+    private void evict(List<Map.Entry<K, V>> dropped) {
+        while ( weight.get() > maxWeight ) {
+            Segment<K, V> victim = null;
+            double lowest = Double.POSITIVE_INFINITY;
+            double next = Double.POSITIVE_INFINITY;
+            for (Segment<K, V> segment : segments) {
+                double priority = segment.lowest();
+                if ( priority < lowest ) {
+                    next = lowest;
+                    lowest = priority;
+                    victim = segment;
+                } else if ( priority < next ) {
+                    next = priority;
+                }
+            }
+            if ( victim == null ) return;
+            victim.evict(next, maxWeight, weight, dropped);
+        }
+    }
+
+    private void drop(List<Map.Entry<K, V>> dropped) {
+        ActionKeyValue<K, V> handler = dropHandler;
+        if ( handler == null ) return;
+        for (Map.Entry<K, V> entry : dropped) {
+            handler.apply(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static class Entry<K, V> implements Comparable<Entry<K, V>> {
+        final K key;
+        final V value;
+        final long weight;
+        final long cost;
+        int hits = 1;
+        // Only changed while the entry is out of the queue.
+        double priority;
+        long sequence;
+
+        Entry(K key, V value, long weight, long cost) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.cost = cost;
+        }
+
+        void prioritize(double inflation, long sequence) {
+            this.priority = inflation + hits * (double) cost / Math.max(1, weight);
+            this.sequence = sequence;
+        }
+
+        // Lowest priority first, and the least recently used of equals.
+        @Override
+        public int compareTo(Entry<K, V> other) {
+            if ( priority != other.priority ) return priority < other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : ( sequence == other.sequence ? 0 : 1 );
+        }
+    }
+
+    // L, shared by the segments so that their priorities can be compared.
+    private static final class Inflation {
+        private volatile double value = 0;
+        double get() { return value; }
+        synchronized void raise(double priority) {
+            if ( priority > value ) value = priority;
+        }
+    }
+
+    private static class Segment<K, V> extends ReentrantLock {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Map<K, Entry<K, V>> entries = new HashMap<K, Entry<K, V>>();
+        private final TreeSet<Entry<K, V>> queue = new TreeSet<Entry<K, V>>();
+        private final Inflation inflation;
+        private final AtomicLong clock;
+
+        Segment(Inflation inflation, AtomicLong clock) {
+            this.inflation = inflation;
+            this.clock = clock;
+        }
+
+        boolean containsKey(Object key) {
+            lock();
+            try {
+                return entries.containsKey(key);
+            } finally {
+                unlock();
+            }
+        }
+
+        V get(K key) {
+            lock();
+            try {
+                Entry<K, V> entry = entries.get(key);
+                if ( entry == null ) return null;
+                queue.remove(entry);
+                entry.hits++;
+                entry.prioritize(inflation.get(), clock.incrementAndGet());
+                queue.add(entry);
+                return entry.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        // A replaced entry keeps its hits.
+        V put(K key, V value, long w, long cost, AtomicLong total) {
+            lock();
+            try {
+                Entry<K, V> entry = new Entry<K, V>(key, value, w, cost);
+                Entry<K, V> old = removeEntry(key, total);
+                if ( old != null ) {
+                    entry.hits = old.hits;
+                }
+                entry.prioritize(inflation.get(), clock.incrementAndGet());
+                entries.put(key, entry);
+                queue.add(entry);
+                total.addAndGet(w);
+                return old == null ? null : old.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        V remove(Object key, AtomicLong total) {
+            lock();
+            try {
+                Entry<K, V> old = removeEntry(key, total);
+                return old == null ? null : old.value;
+            } finally {
+                unlock();
+            }
+        }
+
+        // The lowest priority of the entries, or infinity if there are none.
+        double lowest() {
+            lock();
+            try {
+                return queue.isEmpty() ? Double.POSITIVE_INFINITY : queue.first().priority;
+            } finally {
+                unlock();
+            }
+        }
+
+        // Evicts the first entry, then those after it of lower priority than
+        // another segment's lowest, while total is over the bound.
+        void evict(double below, long maxWeight, AtomicLong total, List<Map.Entry<K, V>> dropped) {
+            lock();
+            try {
+                boolean first = true;
+                while ( !queue.isEmpty() ) {
+                    if ( !first && ( total.get() <= maxWeight || queue.first().priority >= below ) ) break;
+                    first = false;
+                    Entry<K, V> victim = queue.pollFirst();
+                    entries.remove(victim.key);
+                    inflation.raise(victim.priority);
+                    total.addAndGet(-victim.weight);
+                    dropped.add(new AbstractMap.SimpleImmutableEntry<K, V>(victim.key, victim.value));
+                }
+            } finally {
+                unlock();
+            }
+        }
+
+        void keys(List<K> keys) {
+            lock();
+            try {
+                keys.addAll(entries.keySet());
+            } finally {
+                unlock();
+            }
+        }
+
+        void clear(AtomicLong total) {
+            lock();
+            try {
+                for (Entry<K, V> entry : entries.values()) total.addAndGet(-entry.weight);
+                entries.clear();
+                queue.clear();
+            } finally {
+                unlock();
+            }
+        }
+
+        int size() {
+            lock();
+            try {
+                return entries.size();
+            } finally {
+                unlock();
+            }
+        }
+
+        private Entry<K, V> removeEntry(Object key, AtomicLong total) {
+            Entry<K, V> old = entries.remove(key);
+            if ( old != null ) {
+                queue.remove(old);
+                total.addAndGet(-old.weight);
+            }
+            return old;
+        }
+
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openjena.atlas.lib.ActionKeyValue;
+import org.openjena.atlas.lib.Cache;
+import org.openjena.atlas.lib.Closeable;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * A backend in this process, over a {@link ConcurrentCache}, a
+ * {@link GreedyDualCache}, an {@link OffHeapCache} or a {@link DiskCache}.
+ * <p>
+ * The keys of each service are indexed by the {@link Footprint} of their
+ * query, so invalidating a service, or a change to a triple, only looks at
+ * the keys concerned. The backend sets the drop handler of the cache.
+ */
+public class LocalBackend implements CacheBackend {
+
+    private final Cache<Pair<String, QueryKey>, Object> cache;
+    private final ConcurrentMap<String, Dependencies<QueryKey>> dependencies = new ConcurrentHashMap<String, Dependencies<QueryKey>>();
+
+    public LocalBackend(Cache<Pair<String, QueryKey>, Object> cache) {
+        this.cache = cache;
+        cache.setDropHandler(new ActionKeyValue<Pair<String, QueryKey>, Object>() {
+            @Override public void apply(Pair<String, QueryKey> key, Object value) {
+                Dependencies<QueryKey> d = dependencies.get(key.getLeft());
+                if ( d != null ) {
+                    d.remove(key.getRight());
+                }
+                if ( value instanceof ResultTable ) {
+                    ((ResultTable) value).release();
+                }
+            }
+        });
+        // For example from a DiskCache, reopened.
+        Iterator<Pair<String, QueryKey>> iter = cache.keys();
+        while (iter.hasNext()) {
+            Pair<String, QueryKey> key = iter.next();
+            dependencies(key.getLeft()).add(key.getRight(), key.getRight().getFootprint());
+        }
+    }
+
+    public Cache<Pair<String, QueryKey>, Object> getCache() {
+        return cache;
+    }
+
+    @Override
+    public Object get(Pair<String, QueryKey> key) {
+        return cache.get(key);
+    }
+
+    @Override
+    public List<Object> getAll(List<Pair<String, QueryKey>> keys) {
+        List<Object> values = new ArrayList<Object>(keys.size());
+        for (Pair<String, QueryKey> key : keys) {
+            values.add(cache.get(key));
+        }
+        return values;
+    }
+
+    // Entries are indexed before they are put, and until they are dropped
+    // or invalidated. An invalidation between the two takes the index entry
+    // before the value lands, so the value is then removed again rather than
+    // left where no invalidation would find it.
+    @Override
+    public void put(Pair<String, QueryKey> key, Object value) {
+        Dependencies<QueryKey> d = index(key);
+        cache.put(key, value);
+        check(key, d);
+    }
+
+    // A GreedyDualCache is told how many nanoseconds the value took.
+    @Override
+    @SuppressWarnings("unchecked")
+    public void put(Pair<String, QueryKey> key, Object value, long cost) {
+        if ( cache instanceof GreedyDualCache ) {
+            Dependencies<QueryKey> d = index(key);
+            ((GreedyDualCache<Pair<String, QueryKey>, Object>) cache).put(key, value, cost);
+            check(key, d);
+        } else {
+            put(key, value);
+        }
+    }
+
+    @Override
+    public Object load(Pair<String, QueryKey> key, Callable<Object> loader) throws Exception {
+        long start = System.nanoTime();
+        Object value = loader.call();
+        put(key, value, System.nanoTime() - start);
+        return value;
+    }
+
+    @Override
+    public void invalidate(String serviceURI) {
+        Dependencies<QueryKey> d = dependencies.remove(serviceURI);
+        if ( d != null ) {
+            for (QueryKey key : d.keys()) {
+                cache.remove(new Pair<String, QueryKey>(serviceURI, key));
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String serviceURI, Node graph, Triple triple) {
+        Dependencies<QueryKey> d = dependencies.get(serviceURI);
+        if ( d != null ) {
+            for (QueryKey key : d.affected(graph, triple)) {
+                d.remove(key);
+                cache.remove(new Pair<String, QueryKey>(serviceURI, key));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if ( cache instanceof Closeable ) {
+            ((Closeable) cache).close();
+        }
+    }
+
+    private Dependencies<QueryKey> index(Pair<String, QueryKey> key) {
+        Dependencies<QueryKey> d = dependencies(key.getLeft());
+        d.add(key.getRight(), key.getRight().getFootprint());
+        return d;
+    }
+
+    private void check(Pair<String, QueryKey> key, Dependencies<QueryKey> d) {
+        if ( dependencies.get(key.getLeft()) != d || !d.contains(key.getRight()) ) {
+            cache.remove(key);
+        }
+    }
+
+    private Dependencies<QueryKey> dependencies(String serviceURI) {
+        Dependencies<QueryKey> d = dependencies.get(serviceURI);
+        if ( d == null ) {
+            d = new Dependencies<QueryKey>();
+            Dependencies<QueryKey> previous = dependencies.putIfAbsent(serviceURI, d);
+            if ( previous != null ) {
+                d = previous;
+            }
+        }
+        return d;
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryExecException;
+
+/**
+ * A backend in memcached, shared by every process using the same servers.
+ * Values are encoded with {@link ResultCodec} and expire after {@link #TTL}
+ * seconds, or at the hard expiry of an {@link Expiring} value if that is
+ * sooner.
+ * <p>
+ * Keys include the {@link Generations generation} of their service, a counter
+ * kept in memcached, so {@link #invalidate(String)} is a single INCR and the
+ * entries of the old generation are left to expire.
+ * <p>
+ * A client multiplexes every thread's operations over one I/O thread; with
+ * more than one client, operations are spread over them in turn. Closing the
+ * backend shuts the clients down.
+ */
+public class MemcachedBackend implements CacheBackend {
+
+    public static int TTL = 60*60*24; // TTL is 1 day in seconds
+    public static int LEASE = 30; // seconds a miss may take before others stop waiting for it
+    public static long LEASE_POLL = 50; // milliseconds
+    public static long GENERATION_MAX_AGE = 1000; // milliseconds a service's generation is remembered
+    private final MemcachedClient[] clients;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Generations generations;
+
+    public MemcachedBackend(MemcachedClient... clients) {
+        if ( clients.length == 0 ) throw new IllegalArgumentException("No clients");
+        this.clients = clients;
+        this.generations = new Generations(GENERATION_MAX_AGE) {
+            @Override long lookup(String serviceURI) {
+                return generation(serviceURI);
+            }
+            @Override long increment(String serviceURI) {
+                long generation = client().incr(generationKey(serviceURI), 1, System.currentTimeMillis(), 0);
+                if ( generation == -1 ) {
+                    throw new QueryExecException("Cannot increment the generation of " + serviceURI);
+                }
+                return generation;
+            }
+        };
+    }
+
+    // Values written by another version of the codec are treated as misses,
+    // and overwritten.
+    @Override
+    public Object get(Pair<String, QueryKey> key) {
+        return current(client().get(key(key)));
+    }
+
+    @Override
+    public List<Object> getAll(List<Pair<String, QueryKey>> keys) {
+        List<String> k = new ArrayList<String>(keys.size());
+        for (Pair<String, QueryKey> key : keys) {
+            k.add(key(key));
+        }
+        Map<String, Object> found = client().getBulk(k);
+        List<Object> values = new ArrayList<Object>(keys.size());
+        for (String key : k) {
+            values.add(current(found.get(key)));
+        }
+        return values;
+    }
+
+    @Override
+    public void put(Pair<String, QueryKey> key, Object value, long cost) {
+        put(key, value);
+    }
+
+    @Override
+    public void put(Pair<String, QueryKey> key, Object value) {
+        int ttl = value instanceof Expiring ? ((Expiring) value).getSecondsToLive(TTL) : TTL;
+        client().set(key(key), ttl, ResultCodec.encodeValue(value));
+    }
+
+    // Only the process holding the lease computes a missing value, the others
+    // poll for it until it appears or the lease expires.
+    @Override
+    public Object load(Pair<String, QueryKey> key, Callable<Object> loader) throws Exception {
+        MemcachedClient client = client();
+        String lease = key(key) + ":lease";
+        long deadline = System.currentTimeMillis() + LEASE * 1000L;
+        boolean leased = client.add(lease, LEASE, "1").get();
+        while ( !leased ) {
+            Thread.sleep(LEASE_POLL);
+            Object value = get(key);
+            if ( value != null ) {
+                return value;
+            }
+            if ( System.currentTimeMillis() > deadline ) {
+                break;
+            }
+            leased = client.add(lease, LEASE, "1").get();
+        }
+        try {
+            Object value = loader.call();
+            put(key, value);
+            return value;
+        } finally {
+            if ( leased ) {
+                client.delete(lease);
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(String serviceURI) {
+        generations.invalidate(serviceURI);
+    }
+
+    @Override
+    public void invalidate(String serviceURI, Node graph, Triple triple) {
+        invalidate(serviceURI);
+    }
+
+    @Override
+    public void close() {
+        for (MemcachedClient client : clients) {
+            client.shutdown();
+        }
+    }
+
+    private MemcachedClient client() {
+        return clients[( next.getAndIncrement() & Integer.MAX_VALUE ) % clients.length];
+    }
+
+    private static byte[] current(Object value) {
+        return value instanceof byte[] && ResultCodec.isCurrent((byte[]) value) ? (byte[]) value : null;
+    }
+
+    private String key(Pair<String, QueryKey> key) {
+        return QueryKey.hash(key.getLeft()) + ":" + generations.get(key.getLeft()) + ":" + key.getRight();
+    }
+
+    private static String generationKey(String serviceURI) {
+        return QueryKey.hash(serviceURI) + ":generation";
+    }
+
+    // Generations never expire, but may be evicted: they start from the
+    // current time, so that one which was evicted does not start again from
+    // a value already used.
+    private long generation(String serviceURI) {
+        MemcachedClient client = client();
+        String key = generationKey(serviceURI);
+        Object generation = client.get(key);
+        if ( generation == null ) {
+            try {
+                client.add(key, 0, String.valueOf(System.currentTimeMillis())).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new QueryCancelledException();
+            } catch (ExecutionException e) {
+                throw new QueryExecException(e.getCause());
+            }
+            generation = client.get(key);
+            if ( generation == null ) {
+                throw new QueryExecException("Cannot read the generation of " + serviceURI);
+            }
+        }
+        return Long.parseLong(generation.toString().trim());
+    }
+
+}
@@ -16,164 +16,81 @@
 
 package com.talis.labs.arq;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 
 import net.spy.memcached.AddrUtil;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionFactoryBuilder;
 import net.spy.memcached.MemcachedClient;
 
-import org.openjena.atlas.lib.Closeable;
-import org.openjena.atlas.lib.Pair;
-
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryFactory;
-import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.query.ResultSetFactory;
-import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.query.QueryExecException;
 import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
-import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
 import com.hp.hpl.jena.sparql.util.Timer;
 
-public class MemcachedQueryEngineHTTP extends QueryEngineHTTP implements Closeable {
+/**
+ * A {@link CachedQueryEngineHTTP} over a {@link MemcachedBackend}, whose
+ * clients are shared by every engine and created when first used.
+ */
+public class MemcachedQueryEngineHTTP extends CachedQueryEngineHTTP {
 
-    private String key = null;
-    private MemcachedClient client;
-    public static int TTL = 60*60*24; // TTL is 1 day in seconds
+    public static String SERVERS = "127.0.0.1:11211"; // separated by spaces
+    public static int CLIENTS = 1; // each with its own I/O thread
+    public static long TIMEOUT = 2500; // milliseconds an operation may take
+    private static MemcachedBackend backend = null;
 
     public MemcachedQueryEngineHTTP(String serviceURI, Query query) {
-        super(serviceURI, query);
-        this.key = Integer.toString(new Pair<String, Query>(serviceURI, query).hashCode());
-        try {
-            this.client = new MemcachedClient(AddrUtil.getAddresses("127.0.0.1:11211"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        super(serviceURI, query, backend());
     }
 
     public MemcachedQueryEngineHTTP(String serviceURI, String queryString) {
         this(serviceURI, QueryFactory.create(queryString));
     }
 
-    @Override
-    public ResultSet execSelect() {
-        ResultSet rs = null;
-        
-        Object value = client.get(key);
-        if ( value != null ) {
-            rs = ResultSetFactory.fromXML((String)value);
-        } else {
-            rs = super.execSelect();
-            client.set(key, TTL, ResultSetFormatter.asXMLString(rs));
+    private static synchronized MemcachedBackend backend() {
+        if ( backend == null ) {
+            ConnectionFactory factory = new ConnectionFactoryBuilder().setOpTimeout(TIMEOUT).setDaemon(true).build();
+            MemcachedClient[] clients = new MemcachedClient[CLIENTS];
+            try {
+                for (int i = 0; i < clients.length; i++) {
+                    clients[i] = new MemcachedClient(factory, AddrUtil.getAddresses(SERVERS));
+                }
+            } catch (IOException e) {
+                for (MemcachedClient client : clients) {
+                    if ( client != null ) {
+                        client.shutdown();
+                    }
+                }
+                throw new QueryExecException(e);
+            }
+            backend = new MemcachedBackend(clients);
         }
-        return rs;
-    }
-
-    @Override
-    public Model execConstruct() {
-        Model model = ModelFactory.createDefaultModel();
-        
-        Object value = client.get(key);
-        if ( value != null ) {
-            toModel((String)value, model);
-        } else {
-            model = super.execConstruct();
-            client.set(key, TTL, toString(model));
-        }        
-
-        return model;
-    }
-
-    @Override
-    public Model execConstruct(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        
-        Object value = client.get(key);
-        if ( value != null ) {
-            toModel((String)value, model);
-        } else {
-            model = super.execConstruct(m);
-            client.set(key, TTL, toString(model));
-        }        
-
-        return model;
-    }
-
-    @Override
-    public Model execDescribe() {
-        Model model = ModelFactory.createDefaultModel();
-        
-        Object value = client.get(key);
-        if ( value != null ) {
-            toModel((String)value, model);
-        } else {
-            model = super.execDescribe();
-            client.set(key, TTL, toString(model));
-        }        
-
-        return model;
+        return backend;
     }
 
-    @Override
-    public Model execDescribe(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        
-        Object value = client.get(key);
-        if ( value != null ) {
-            toModel((String)value, model);
-        } else {
-            model = super.execDescribe(m);
-            client.set(key, TTL, toString(model));
-        }
-
-        return model;
+    /**
+     * Moves a service on to a new generation: its cached results are no
+     * longer used, here at once and elsewhere within
+     * {@link MemcachedBackend#GENERATION_MAX_AGE}.
+     */
+    public static void invalidate(String serviceURI) {
+        backend().invalidate(serviceURI);
     }
 
-    @Override
-    public boolean execAsk() {
-        boolean ask;
-        
-        Object value = client.get(key);
-        if ( value != null ) {
-            ask = Boolean.parseBoolean((String)value);
-        } else {
-            ask = super.execAsk();
-            client.set(key, TTL, Boolean.toString(ask));
+    /**
+     * Shuts the clients down. The next engine created starts new ones, with
+     * the settings current then.
+     */
+    public static synchronized void shutdown() {
+        if ( backend != null ) {
+            backend.close();
+            backend = null;
         }
-
-        return ask;
     }
 
-    @Override
-    public void close() {
-        client.shutdown();
-    }
- 
-    private void toModel(String value, Model model) {
-        try {
-            InputStream in = new ByteArrayInputStream(value.getBytes("UTF-8"));
-            model.read(in, null, "N-TRIPLES");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-    }
-    
-    private String toString(Model model) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            model.write(out, "N-TRIPLES", null);
-            return new String(out.toByteArray(), "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-    
-    public static void main(String[] args) throws Exception {
+    public static void main(String[] args) throws InterruptedException {
         String serviceURI = "http://api.talis.com/stores/bbc-wildlife/services/sparql";
         for (int i = 0; i < 10000; i++) {
             Timer timerQuery = new Timer();
@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.talis.labs.arq;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Numbers nodes, so that cached results can hold them as ints and each
+ * distinct node is held once whatever the number of tables using it. Ids
+ * start at 1 (0 is left for unbound variables).
+ * <p>
+ * Each id is counted once for every {@link ResultTable} which uses it, and
+ * its node is dropped when the last of them is released: when a cache drops
+ * the table or, for a table which is never cached, once it is garbage
+ * collected. Ids are never reused, so a table is read without locking;
+ * instead, once a dictionary has given out {@link #MAX_NODES} ids new tables
+ * go to a new one, and the old one goes with the last table using it.
+ */
+public final class NodeDictionary {
+
+    public static int MAX_NODES = 1 << 20;
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static volatile NodeDictionary current = new NodeDictionary();
+    private static final ReferenceQueue<ResultTable> collected = new ReferenceQueue<ResultTable>();
+    // The leases themselves must be reachable until they are queued.
+    private static final Set<Lease> leases = Collections.synchronizedSet(new HashSet<Lease>());
+
+    private final Map<Node, Integer> ids = new HashMap<Node, Integer>(); // guarded by this
+    private volatile AtomicReferenceArray<Node>[] chunks = newChunks(16);
+    private int[][] counts = new int[16][]; // guarded by this
+    private int next = 0; // the last id given out, guarded by this
+
+    /** The dictionary new tables should use. */
+    public static NodeDictionary current() {
+        NodeDictionary dictionary = current;
+        if ( dictionary.given() < MAX_NODES ) {
+            return dictionary;
+        }
+        synchronized (NodeDictionary.class) {
+            if ( current == dictionary ) {
+                current = new NodeDictionary();
+            }
+            return current;
+        }
+    }
+
+    // Counts one more use of each of nodes (distinct, from index 1) by table.
+    Lease acquire(ResultTable table, Node[] nodes) {
+        expunge();
+        int[] leased = new int[nodes.length];
+        synchronized (this) {
+            for (int i = 1; i < nodes.length; i++) {
+                Integer id = ids.get(nodes[i]);
+                if ( id == null ) {
+                    id = add(nodes[i]);
+                }
+                counts[id >>> CHUNK_BITS][id & CHUNK_MASK]++;
+                leased[i] = id;
+            }
+        }
+        Lease lease = new Lease(table, this, leased);
+        leases.add(lease);
+        return lease;
+    }
+
+    // Called holding this.
+    private int add(Node node) {
+        int id = ++next;
+        int chunk = id >>> CHUNK_BITS;
+        AtomicReferenceArray<Node>[] c = chunks;
+        if ( chunk == c.length ) {
+            c = Arrays.copyOf(c, c.length * 2);
+            counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+        if ( c[chunk] == null ) {
+            c[chunk] = new AtomicReferenceArray<Node>(CHUNK_SIZE);
+            counts[chunk] = new int[CHUNK_SIZE];
+        }
+        c[chunk].set(id & CHUNK_MASK, node);
+        chunks = c;
+        ids.put(node, id);
+        return id;
+    }
+
+    // Nodes no table uses any more are dropped, and their ids left empty.
+    void release(Lease lease) {
+        leases.remove(lease);
+        synchronized (this) {
+            if ( lease.released ) return;
+            lease.released = true;
+            for (int i = 1; i < lease.ids.length; i++) {
+                int id = lease.ids[i];
+                if ( --counts[id >>> CHUNK_BITS][id & CHUNK_MASK] == 0 ) {
+                    AtomicReferenceArray<Node> chunk = chunks[id >>> CHUNK_BITS];
+                    ids.remove(chunk.get(id & CHUNK_MASK));
+                    chunk.set(id & CHUNK_MASK, null);
+                }
+            }
+        }
+    }
+
+    // The leases of the tables collected without being released.
+    private static void expunge() {
+        Lease lease;
+        while ( ( lease = (Lease) collected.poll() ) != null ) {
+            lease.dictionary.release(lease);
+        }
+    }
+
+    /** The node of an id, or null once no table uses it. */
+    Node get(int id) {
+        return id == 0 ? null : chunks[id >>> CHUNK_BITS].get(id & CHUNK_MASK);
+    }
+
+    /** The number of nodes the tables still use. */
+    public synchronized int size() {
+        return ids.size();
+    }
+
+    private synchronized int given() {
+        return next;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static AtomicReferenceArray<Node>[] newChunks(int n) {
+        return (AtomicReferenceArray<Node>[]) new AtomicReferenceArray<?>[n]; // arrays of a parameterized type cannot be created
+    }
+
+    /** The ids a table holds in a dictionary, from index 1, until it is released. */
+    static final class Lease extends WeakReference<ResultTable> {
+        final NodeDictionary dictionary;
+        final int[] ids;
+        boolean released = false; // guarded by dictionary
+
+        Lease(ResultTable table, NodeDictionary dictionary, int[] ids) {
+            super(table, collected);
+            this.dictionary = dictionary;
+            this.ids = ids;
+        }
+    }
+
+}
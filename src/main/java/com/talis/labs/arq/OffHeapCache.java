@@ -0,0 +1,290 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openjena.atlas.lib.ActionKeyValue;
+import org.openjena.atlas.lib.Cache;
+import org.openjena.atlas.lib.Closeable;
+
+/**
+ * A cache which keeps query results, encoded with {@link ResultCodec}, in
+ * direct buffers outside the Java heap; only the keys and the location of
+ * each entry are on the heap.
+ * <p>
+ * The memory is split into a ring of arenas. Entries are appended to the
+ * current arena; when it is full the next one is emptied, dropping all its
+ * entries at once, and reused. A hit copies its entry into a byte array,
+ * which is short lived, and decodes it from there as it is read: so
+ * eviction never has to wait for, or pull the memory from under, a reader.
+ * <p>
+ * {@link #get(Object)} returns the encoded byte[], and {@link #put(Object, Object)}
+ * does not return the previous value. The drop handler is given the key of
+ * each evicted entry, with a null value.
+ * <p>
+ * {@link #close()} frees the direct memory at once, rather than when the
+ * garbage collector gets round to the buffers; a closed cache keeps nothing.
+ */
+public class OffHeapCache<K> implements Cache<K, Object>, Closeable {
+
+    public static final int DEFAULT_ARENAS = 16;
+
+    private final Arena<K>[] arenas;
+    private final int arenaSize;
+    private final ConcurrentMap<K, Location<K>> index = new ConcurrentHashMap<K, Location<K>>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private int current = 0; // guarded by writeLock
+    private boolean closed = false; // guarded by writeLock
+    private volatile ActionKeyValue<K, Object> dropHandler = null;
+
+    public OffHeapCache(long maxBytes) {
+        this(maxBytes, DEFAULT_ARENAS);
+    }
+
+    @SuppressWarnings("unchecked")
+    public OffHeapCache(long maxBytes, int arenas) {
+        if ( maxBytes <= 0 ) throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        this.arenaSize = (int) Math.min(Integer.MAX_VALUE, ( maxBytes + arenas - 1 ) / arenas);
+        this.arenas = (Arena<K>[]) new Arena<?>[arenas]; // arrays of a type parameter cannot be created
+        for (int i = 0; i < arenas; i++) {
+            this.arenas[i] = new Arena<K>();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public Object get(K key) {
+        Location<K> location = index.get(key);
+        if ( location == null ) {
+            return null;
+        }
+        Arena<K> arena = location.arena;
+        arena.lock.readLock().lock();
+        try {
+            if ( arena.generation != location.generation ) {
+                return null;
+            }
+            byte[] value = new byte[location.length];
+            ByteBuffer buffer = arena.buffer.duplicate();
+            buffer.position(location.offset);
+            buffer.get(value);
+            return value;
+        } finally {
+            arena.lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Object put(K key, Object value) {
+        byte[] bytes = ResultCodec.encodeValue(value);
+        if ( bytes.length > arenaSize ) {
+            // Can never fit: do not empty an arena trying.
+            remove(key);
+            drop(Collections.singletonList(key));
+            return null;
+        }
+        List<K> dropped = new ArrayList<K>();
+        writeLock.lock();
+        try {
+            if ( closed ) {
+                return null;
+            }
+            Arena<K> arena = arenas[current];
+            if ( arena.position + bytes.length > arenaSize ) {
+                current = ( current + 1 ) % arenas.length;
+                arena = arenas[current];
+                recycle(arena, dropped);
+            }
+            if ( arena.buffer == null ) {
+                arena.buffer = ByteBuffer.allocateDirect(arenaSize);
+            }
+            ByteBuffer buffer = arena.buffer.duplicate();
+            buffer.position(arena.position);
+            buffer.put(bytes);
+            index.put(key, new Location<K>(arena, arena.generation, arena.position, bytes.length));
+            arena.keys.add(key);
+            arena.position += bytes.length;
+        } finally {
+            writeLock.unlock();
+        }
+        drop(dropped);
+        return null;
+    }
+
+    @Override
+    public boolean remove(K key) {
+        // The space is reclaimed when the arena is reused.
+        return index.remove(key) != null;
+    }
+
+    @Override
+    public Iterator<K> keys() {
+        final Iterator<K> iter = new ArrayList<K>(index.keySet()).iterator();
+        return new Iterator<K>() {
+            private K current = null;
+            @Override public boolean hasNext() { return iter.hasNext(); }
+            @Override public K next() { current = iter.next(); return current; }
+            @Override public void remove() { OffHeapCache.this.remove(current); }
+        };
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        writeLock.lock();
+        try {
+            for (Arena<K> arena : arenas) {
+                recycle(arena, new ArrayList<K>());
+            }
+            current = 0;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public long size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            closed = true;
+            for (Arena<K> arena : arenas) {
+                recycle(arena, new ArrayList<K>());
+                arena.lock.writeLock().lock();
+                try {
+                    if ( arena.buffer != null ) {
+                        free(arena.buffer);
+                        arena.buffer = null;
+                    }
+                } finally {
+                    arena.lock.writeLock().unlock();
+                }
+            }
+            index.clear();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public long maxBytes() {
+        return (long) arenaSize * arenas.length;
+    }
+
+    @Override
+    public void setDropHandler(ActionKeyValue<K, Object> dropHandler) {
+        this.dropHandler = dropHandler;
+    }
+
+    // Called holding writeLock.
+    private void recycle(Arena<K> arena, List<K> dropped) {
+        arena.lock.writeLock().lock();
+        try {
+            for (K key : arena.keys) {
+                Location<K> location = index.get(key);
+                if ( location != null && location.arena == arena && location.generation == arena.generation && index.remove(key, location) ) {
+                    dropped.add(key);
+                }
+            }
+            arena.keys.clear();
+            arena.position = 0;
+            arena.generation++;
+        } finally {
+            arena.lock.writeLock().unlock();
+        }
+    }
+
+    // There is no public way to free a direct buffer: this uses Unsafe's
+    // invokeCleaner where there is one (Java 9 on), or else the buffer's own
+    // cleaner. If neither can be reached the buffer is left to the garbage
+    // collector.
+    private static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // Before Java 9
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if ( cleaner != null ) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // Left to the garbage collector
+        }
+    }
+
+    private void drop(List<K> dropped) {
+        ActionKeyValue<K, Object> handler = dropHandler;
+        if ( handler == null ) return;
+        for (K key : dropped) {
+            handler.apply(key, null);
+        }
+    }
+
+    private static class Arena<K> {
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        ByteBuffer buffer = null;     // allocated on first use
+        int position = 0;             // guarded by the cache's writeLock
+        int generation = 0;           // changed holding lock.writeLock()
+        final List<K> keys = new ArrayList<K>(); // guarded by the cache's writeLock
+    }
+
+    private static class Location<K> {
+        final Arena<K> arena;
+        final int generation;
+        final int offset;
+        final int length;
+        Location(Arena<K> arena, int generation, int offset, int length) {
+            this.arena = arena;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,807 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.SortCondition;
+import com.hp.hpl.jena.sparql.ARQInternalErrorException;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.OpVisitor;
+import com.hp.hpl.jena.sparql.algebra.op.OpAssign;
+import com.hp.hpl.jena.sparql.algebra.op.OpBGP;
+import com.hp.hpl.jena.sparql.algebra.op.OpConditional;
+import com.hp.hpl.jena.sparql.algebra.op.OpDatasetNames;
+import com.hp.hpl.jena.sparql.algebra.op.OpDiff;
+import com.hp.hpl.jena.sparql.algebra.op.OpDisjunction;
+import com.hp.hpl.jena.sparql.algebra.op.OpDistinct;
+import com.hp.hpl.jena.sparql.algebra.op.OpExt;
+import com.hp.hpl.jena.sparql.algebra.op.OpExtend;
+import com.hp.hpl.jena.sparql.algebra.op.OpFilter;
+import com.hp.hpl.jena.sparql.algebra.op.OpGraph;
+import com.hp.hpl.jena.sparql.algebra.op.OpGroup;
+import com.hp.hpl.jena.sparql.algebra.op.OpJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpLabel;
+import com.hp.hpl.jena.sparql.algebra.op.OpLeftJoin;
+import com.hp.hpl.jena.sparql.algebra.op.OpList;
+import com.hp.hpl.jena.sparql.algebra.op.OpMinus;
+import com.hp.hpl.jena.sparql.algebra.op.OpNull;
+import com.hp.hpl.jena.sparql.algebra.op.OpOrder;
+import com.hp.hpl.jena.sparql.algebra.op.OpPath;
+import com.hp.hpl.jena.sparql.algebra.op.OpProcedure;
+import com.hp.hpl.jena.sparql.algebra.op.OpProject;
+import com.hp.hpl.jena.sparql.algebra.op.OpPropFunc;
+import com.hp.hpl.jena.sparql.algebra.op.OpQuadPattern;
+import com.hp.hpl.jena.sparql.algebra.op.OpReduced;
+import com.hp.hpl.jena.sparql.algebra.op.OpSequence;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+import com.hp.hpl.jena.sparql.algebra.op.OpSlice;
+import com.hp.hpl.jena.sparql.algebra.op.OpTable;
+import com.hp.hpl.jena.sparql.algebra.op.OpTopN;
+import com.hp.hpl.jena.sparql.algebra.op.OpTriple;
+import com.hp.hpl.jena.sparql.algebra.op.OpUnion;
+import com.hp.hpl.jena.sparql.core.TriplePath;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.core.VarExprList;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.expr.E_Add;
+import com.hp.hpl.jena.sparql.expr.E_Equals;
+import com.hp.hpl.jena.sparql.expr.E_LogicalAnd;
+import com.hp.hpl.jena.sparql.expr.E_LogicalOr;
+import com.hp.hpl.jena.sparql.expr.E_Multiply;
+import com.hp.hpl.jena.sparql.expr.E_NotEquals;
+import com.hp.hpl.jena.sparql.expr.E_SameTerm;
+import com.hp.hpl.jena.sparql.expr.Expr;
+import com.hp.hpl.jena.sparql.expr.ExprAggregator;
+import com.hp.hpl.jena.sparql.expr.ExprFunction;
+import com.hp.hpl.jena.sparql.expr.ExprFunction0;
+import com.hp.hpl.jena.sparql.expr.ExprFunction1;
+import com.hp.hpl.jena.sparql.expr.ExprFunction2;
+import com.hp.hpl.jena.sparql.expr.ExprFunction3;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionN;
+import com.hp.hpl.jena.sparql.expr.ExprFunctionOp;
+import com.hp.hpl.jena.sparql.expr.ExprList;
+import com.hp.hpl.jena.sparql.expr.ExprVar;
+import com.hp.hpl.jena.sparql.expr.ExprVisitor;
+import com.hp.hpl.jena.sparql.expr.NodeValue;
+import com.hp.hpl.jena.sparql.expr.aggregate.Aggregator;
+import com.hp.hpl.jena.sparql.graph.NodeTransform;
+
+/**
+ * A cache key for a query which does not depend on the names of its
+ * variables and blank nodes, nor on the order of the operands of commutative
+ * operators (triples in a BGP, join, union, filter conjunctions, =, != ...).
+ * <p>
+ * The algebra of the query is written out in a canonical form, renaming
+ * variables in order of appearance, and the form is digested with SHA-256.
+ * Queries using algebra which cannot be written canonically fall back on a
+ * digest of the query string.
+ */
+public final class QueryKey {
+
+    public static final int LENGTH = 32; // bytes
+    private static final String VERSION = "1";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] digest;
+    private final int hashCode;
+    private final Map<Var, Var> renaming;
+    private final Footprint footprint;
+
+    private QueryKey(byte[] digest, Map<Var, Var> renaming, Footprint footprint) {
+        this.digest = digest;
+        this.hashCode = Arrays.hashCode(digest);
+        this.renaming = renaming;
+        this.footprint = footprint;
+    }
+
+    public static QueryKey create(Query query) {
+        return create(query, Algebra.compile(query));
+    }
+
+    /**
+     * The key of a query whose algebra is op: for example that of another
+     * query, rewritten.
+     */
+    static QueryKey create(Query query, Op op) {
+        Footprint footprint = Footprint.create(query, op);
+        try {
+            CanonicalWriter writer = new CanonicalWriter(false);
+            writer.query(query, op);
+            return new QueryKey(digest(VERSION, writer.toString()), writer.renaming(), footprint);
+        } catch (UnsupportedOperationException e) {
+            return new QueryKey(digest(VERSION, "raw", query.serialize()), Collections.<Var, Var>emptyMap(), footprint);
+        }
+    }
+
+    public static QueryKey create(Op op) {
+        Footprint footprint = Footprint.create(op);
+        try {
+            CanonicalWriter writer = new CanonicalWriter(false);
+            writer.write(op);
+            return new QueryKey(digest(VERSION, writer.toString()), writer.renaming(), footprint);
+        } catch (UnsupportedOperationException e) {
+            return new QueryKey(digest(VERSION, "raw", op.toString()), Collections.<Var, Var>emptyMap(), footprint);
+        }
+    }
+
+    /**
+     * A key read back from its {@link #getBytes() bytes}, for example from a
+     * persistent cache. It has no renaming, and its footprint is
+     * {@link Footprint#ANY}.
+     */
+    public static QueryKey create(byte[] digest) {
+        return create(digest, Footprint.ANY);
+    }
+
+    /**
+     * A key read back from its bytes, with the footprint it was written out
+     * with.
+     */
+    public static QueryKey create(byte[] digest, Footprint footprint) {
+        if ( digest.length != LENGTH ) {
+            throw new IllegalArgumentException("A query key is " + LENGTH + " bytes, not " + digest.length);
+        }
+        return new QueryKey(digest.clone(), Collections.<Var, Var>emptyMap(), footprint);
+    }
+
+    /**
+     * What the query this key was created from can read, for invalidation. A
+     * key read back from its bytes can read anything.
+     */
+    public Footprint getFootprint() {
+        return footprint;
+    }
+
+    /**
+     * The canonical name of each variable of the query (or algebra expression)
+     * this key was created from.
+     */
+    public Map<Var, Var> getRenaming() {
+        return renaming;
+    }
+
+    public byte[] getBytes() {
+        return digest.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if ( this == obj ) return true;
+        if ( !(obj instanceof QueryKey) ) return false;
+        return Arrays.equals(digest, ((QueryKey) obj).digest);
+    }
+
+    @Override
+    public String toString() {
+        return hex(digest);
+    }
+
+    /**
+     * A hex SHA-256 digest of a string, for example a service URI.
+     */
+    public static String hash(String string) {
+        return hex(digest(VERSION, string));
+    }
+
+    private static byte[] digest(String version, String... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(version.getBytes("UTF-8"));
+            for (String part : parts) {
+                md.update((byte) '\n');
+                md.update(part.getBytes("UTF-8"));
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ARQInternalErrorException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ARQInternalErrorException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes algebra in a canonical form. When anonymous, all variables are
+     * written the same way: that form is only used to order the operands of
+     * commutative operators independently of the variable names.
+     */
+    private static class CanonicalWriter implements OpVisitor, ExprVisitor, NodeTransform {
+
+        private final boolean anonymous;
+        private final StringBuilder out = new StringBuilder();
+        private final Map<Var, Var> vars = new HashMap<Var, Var>();
+        private final Map<Node, Integer> bnodes = new HashMap<Node, Integer>();
+
+        CanonicalWriter(boolean anonymous) {
+            this.anonymous = anonymous;
+        }
+
+        Map<Var, Var> renaming() {
+            return Collections.unmodifiableMap(vars);
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+
+        void query(Query query, Op op) {
+            out.append(query.getQueryType());
+            write(op);
+            if ( query.isSelectType() ) {
+                start("vars");
+                for (String name : query.getResultVars()) {
+                    node(Var.alloc(name));
+                }
+                finish();
+            } else if ( query.isConstructType() ) {
+                start("template");
+                for (Triple triple : query.getConstructTemplate().getTriples()) {
+                    triple(triple);
+                }
+                finish();
+            } else if ( query.isDescribeType() ) {
+                start("describe");
+                for (Node node : query.getResultURIs()) {
+                    node(node);
+                }
+                finish();
+            }
+            strings("from", query.getGraphURIs());
+            strings("named", query.getNamedGraphURIs());
+            if ( query.getBindingVariables() != null && query.getBindingValues() != null ) {
+                start("bindings");
+                rows(query.getBindingVariables(), query.getBindingValues().iterator());
+                finish();
+            }
+        }
+
+        void write(Op op) {
+            op.visit(this);
+        }
+
+        private void start(String name) {
+            out.append('(').append(name);
+        }
+
+        private void finish() {
+            out.append(')');
+        }
+
+        private void string(String string) {
+            out.append(' ').append(string.length()).append(':').append(string);
+        }
+
+        private void strings(String name, List<String> strings) {
+            if ( strings == null || strings.isEmpty() ) return;
+            List<String> sorted = new ArrayList<String>(strings);
+            Collections.sort(sorted);
+            start(name);
+            for (String string : sorted) {
+                string(string);
+            }
+            finish();
+        }
+
+        private void node(Node node) {
+            out.append(' ');
+            if ( node == null ) {
+                out.append("null");
+            } else if ( Var.isVar(node) ) {
+                out.append('?');
+                if ( !anonymous ) out.append(rename(Var.alloc(node)).getVarName());
+            } else if ( node.isBlank() ) {
+                out.append("_:");
+                if ( !anonymous ) {
+                    Integer label = bnodes.get(node);
+                    if ( label == null ) {
+                        label = bnodes.size();
+                        bnodes.put(node, label);
+                    }
+                    out.append(label);
+                }
+            } else if ( node.isURI() ) {
+                out.append('<');
+                string(node.getURI());
+                out.append('>');
+            } else if ( node.isLiteral() ) {
+                out.append('"');
+                string(node.getLiteralLexicalForm());
+                string(node.getLiteralLanguage());
+                string(node.getLiteralDatatypeURI() == null ? "" : node.getLiteralDatatypeURI());
+                out.append('"');
+            } else if ( node == Node.ANY ) {
+                out.append("ANY");
+            } else {
+                throw new UnsupportedOperationException(node.toString());
+            }
+        }
+
+        private Var rename(Var var) {
+            Var canonical = vars.get(var);
+            if ( canonical == null ) {
+                canonical = Var.alloc("v" + vars.size());
+                vars.put(var, canonical);
+            }
+            return canonical;
+        }
+
+        // Used where ARQ only gives a string form (aggregators): rename first.
+        @Override
+        public Node convert(Node node) {
+            if ( Var.isVar(node) ) return anonymous ? Var.alloc("_") : rename(Var.alloc(node));
+            return node;
+        }
+
+        private void triple(Triple triple) {
+            start("triple");
+            node(triple.getSubject());
+            node(triple.getPredicate());
+            node(triple.getObject());
+            finish();
+        }
+
+        private void triples(List<Triple> triples) {
+            List<Triple> sorted = new ArrayList<Triple>(triples);
+            Collections.sort(sorted, new Comparator<Triple>() {
+                @Override public int compare(Triple t1, Triple t2) {
+                    return anonymous(t1).compareTo(anonymous(t2));
+                }
+            });
+            for (Triple triple : sorted) {
+                triple(triple);
+            }
+        }
+
+        private void rows(List<Var> vars, Iterator<Binding> rows) {
+            start("vars");
+            for (Var var : vars) {
+                node(var);
+            }
+            finish();
+            while ( rows.hasNext() ) {
+                Binding binding = rows.next();
+                start("row");
+                for (Var var : vars) {
+                    node(binding.get(var));
+                }
+                finish();
+            }
+        }
+
+        private void varExprList(VarExprList varExprList) {
+            start("vars");
+            for (Var var : varExprList.getVars()) {
+                node(var);
+                Expr expr = varExprList.getExpr(var);
+                if ( expr != null ) expr.visit(this);
+            }
+            finish();
+        }
+
+        private void conditions(List<SortCondition> conditions) {
+            start("conditions");
+            for (SortCondition condition : conditions) {
+                out.append(' ').append(condition.getDirection());
+                condition.getExpression().visit(this);
+            }
+            finish();
+        }
+
+        private void exprs(ExprList exprs) {
+            start("exprs");
+            if ( exprs != null ) {
+                List<Expr> sorted = new ArrayList<Expr>(exprs.getList());
+                Collections.sort(sorted, new Comparator<Expr>() {
+                    @Override public int compare(Expr e1, Expr e2) {
+                        return anonymous(e1).compareTo(anonymous(e2));
+                    }
+                });
+                for (Expr expr : sorted) {
+                    expr.visit(this);
+                }
+            }
+            finish();
+        }
+
+        private void commutative(String name, Op left, Op right) {
+            start(name);
+            if ( anonymous(left).compareTo(anonymous(right)) > 0 ) {
+                Op tmp = left;
+                left = right;
+                right = tmp;
+            }
+            write(left);
+            write(right);
+            finish();
+        }
+
+        private void op(String name, Op... subOps) {
+            start(name);
+            for (Op subOp : subOps) {
+                write(subOp);
+            }
+            finish();
+        }
+
+        private static String anonymous(Triple triple) {
+            CanonicalWriter writer = new CanonicalWriter(true);
+            writer.triple(triple);
+            return writer.toString();
+        }
+
+        private static String anonymous(Op op) {
+            CanonicalWriter writer = new CanonicalWriter(true);
+            writer.write(op);
+            return writer.toString();
+        }
+
+        private static String anonymous(Expr expr) {
+            CanonicalWriter writer = new CanonicalWriter(true);
+            expr.visit(writer);
+            return writer.toString();
+        }
+
+        // Algebra
+
+        @Override
+        public void visit(OpBGP opBGP) {
+            start("bgp");
+            triples(opBGP.getPattern().getList());
+            finish();
+        }
+
+        @Override
+        public void visit(OpQuadPattern quadPattern) {
+            start("quadpattern");
+            node(quadPattern.getGraphNode());
+            triples(quadPattern.getBasicPattern().getList());
+            finish();
+        }
+
+        @Override
+        public void visit(OpTriple opTriple) {
+            start("bgp");
+            triple(opTriple.getTriple());
+            finish();
+        }
+
+        @Override
+        public void visit(OpPath opPath) {
+            TriplePath path = opPath.getTriplePath();
+            start("path");
+            node(path.getSubject());
+            string(path.getPath().toString());
+            node(path.getObject());
+            finish();
+        }
+
+        @Override
+        public void visit(OpTable opTable) {
+            start("table");
+            ResultSet rs = opTable.getTable().toResultSet();
+            List<Var> vars = new ArrayList<Var>();
+            for (String name : rs.getResultVars()) {
+                vars.add(Var.alloc(name));
+            }
+            List<Binding> rows = new ArrayList<Binding>();
+            while ( rs.hasNext() ) {
+                rows.add(rs.nextBinding());
+            }
+            rows(vars, rows.iterator());
+            finish();
+        }
+
+        @Override
+        public void visit(OpNull opNull) {
+            op("null");
+        }
+
+        @Override
+        public void visit(OpProcedure opProc) {
+            throw new UnsupportedOperationException(opProc.getName());
+        }
+
+        @Override
+        public void visit(OpPropFunc opPropFunc) {
+            throw new UnsupportedOperationException(opPropFunc.getName());
+        }
+
+        @Override
+        public void visit(OpFilter opFilter) {
+            start("filter");
+            exprs(opFilter.getExprs());
+            write(opFilter.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpGraph opGraph) {
+            start("graph");
+            node(opGraph.getNode());
+            write(opGraph.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpService opService) {
+            start("service");
+            node(opService.getService());
+            write(opService.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpDatasetNames dsNames) {
+            start("datasetnames");
+            node(dsNames.getGraphNode());
+            finish();
+        }
+
+        @Override
+        public void visit(OpLabel opLabel) {
+            start("label");
+            string(String.valueOf(opLabel.getObject()));
+            if ( opLabel.hasSubOp() ) write(opLabel.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpAssign opAssign) {
+            start("assign");
+            varExprList(opAssign.getVarExprList());
+            write(opAssign.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpExtend opExtend) {
+            start("extend");
+            varExprList(opExtend.getVarExprList());
+            write(opExtend.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpJoin opJoin) {
+            commutative("join", opJoin.getLeft(), opJoin.getRight());
+        }
+
+        @Override
+        public void visit(OpLeftJoin opLeftJoin) {
+            start("leftjoin");
+            write(opLeftJoin.getLeft());
+            write(opLeftJoin.getRight());
+            exprs(opLeftJoin.getExprs());
+            finish();
+        }
+
+        @Override
+        public void visit(OpUnion opUnion) {
+            commutative("union", opUnion.getLeft(), opUnion.getRight());
+        }
+
+        @Override
+        public void visit(OpDiff opDiff) {
+            op("diff", opDiff.getLeft(), opDiff.getRight());
+        }
+
+        @Override
+        public void visit(OpMinus opMinus) {
+            op("minus", opMinus.getLeft(), opMinus.getRight());
+        }
+
+        @Override
+        public void visit(OpConditional opCondition) {
+            op("conditional", opCondition.getLeft(), opCondition.getRight());
+        }
+
+        @Override
+        public void visit(OpSequence opSequence) {
+            op("sequence", opSequence.getElements().toArray(new Op[0]));
+        }
+
+        @Override
+        public void visit(OpDisjunction opDisjunction) {
+            op("disjunction", opDisjunction.getElements().toArray(new Op[0]));
+        }
+
+        @Override
+        public void visit(OpExt opExt) {
+            throw new UnsupportedOperationException(opExt.getName());
+        }
+
+        @Override
+        public void visit(OpList opList) {
+            op("list", opList.getSubOp());
+        }
+
+        @Override
+        public void visit(OpOrder opOrder) {
+            start("order");
+            conditions(opOrder.getConditions());
+            write(opOrder.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpProject opProject) {
+            start("project");
+            for (Var var : opProject.getVars()) {
+                node(var);
+            }
+            write(opProject.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpReduced opReduced) {
+            op("reduced", opReduced.getSubOp());
+        }
+
+        @Override
+        public void visit(OpDistinct opDistinct) {
+            op("distinct", opDistinct.getSubOp());
+        }
+
+        @Override
+        public void visit(OpSlice opSlice) {
+            start("slice");
+            out.append(' ').append(opSlice.getStart()).append(' ').append(opSlice.getLength());
+            write(opSlice.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpGroup opGroup) {
+            start("group");
+            varExprList(opGroup.getGroupVars());
+            for (ExprAggregator aggregator : opGroup.getAggregators()) {
+                aggregator.visit(this);
+            }
+            write(opGroup.getSubOp());
+            finish();
+        }
+
+        @Override
+        public void visit(OpTopN opTop) {
+            start("top");
+            out.append(' ').append(opTop.getLimit());
+            conditions(opTop.getConditions());
+            write(opTop.getSubOp());
+            finish();
+        }
+
+        // Expressions
+
+        @Override
+        public void startVisit() {}
+
+        @Override
+        public void finishVisit() {}
+
+        private void function(ExprFunction func) {
+            start(func.getFunctionSymbol().getSymbol());
+            if ( func.getFunctionIRI() != null ) string(func.getFunctionIRI());
+            for (Expr arg : func.getArgs()) {
+                arg.visit(this);
+            }
+            finish();
+        }
+
+        @Override
+        public void visit(ExprFunction0 func) {
+            function(func);
+        }
+
+        @Override
+        public void visit(ExprFunction1 func) {
+            function(func);
+        }
+
+        @Override
+        public void visit(ExprFunction2 func) {
+            if ( func instanceof E_LogicalAnd || func instanceof E_LogicalOr
+                    || func instanceof E_Equals || func instanceof E_NotEquals
+                    || func instanceof E_SameTerm || func instanceof E_Add || func instanceof E_Multiply ) {
+                Expr left = func.getArg1();
+                Expr right = func.getArg2();
+                if ( anonymous(left).compareTo(anonymous(right)) > 0 ) {
+                    Expr tmp = left;
+                    left = right;
+                    right = tmp;
+                }
+                start(func.getFunctionSymbol().getSymbol());
+                left.visit(this);
+                right.visit(this);
+                finish();
+            } else {
+                function(func);
+            }
+        }
+
+        @Override
+        public void visit(ExprFunction3 func) {
+            function(func);
+        }
+
+        @Override
+        public void visit(ExprFunctionN func) {
+            function(func);
+        }
+
+        @Override
+        public void visit(ExprFunctionOp funcOp) {
+            if ( funcOp.getGraphPattern() == null ) throw new UnsupportedOperationException(funcOp.toString());
+            start(funcOp.getFunctionSymbol().getSymbol());
+            write(funcOp.getGraphPattern());
+            finish();
+        }
+
+        @Override
+        public void visit(NodeValue nv) {
+            start("value");
+            node(nv.asNode());
+            finish();
+        }
+
+        @Override
+        public void visit(ExprVar nv) {
+            node(nv.asVar());
+        }
+
+        @Override
+        public void visit(ExprAggregator eAgg) {
+            Aggregator aggregator = eAgg.getAggregator().copyTransform(this);
+            start("aggregator");
+            node(eAgg.getVar());
+            string(aggregator.key());
+            finish();
+        }
+
+    }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.openjena.atlas.lib.Pair;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * A backend in Redis, shared by every process using the same server. Values
+ * are encoded with {@link ResultCodec} and expire after {@link #TTL} seconds,
+ * or at the hard expiry of an {@link Expiring} value if that is sooner.
+ * <p>
+ * Keys include the {@link Generations generation} of their service, so
+ * {@link #invalidate(String)} is a single INCR. The entries of the old
+ * generation are left to expire or, with {@link #PURGE}, deleted in pipelined
+ * batches. Each generation has a set of its keys for that, which expires
+ * with them.
+ * <p>
+ * Each operation borrows a client from the pool and returns it, so a backend
+ * can be shared by every thread; closing the backend destroys the pool.
+ */
+public class RedisBackend implements CacheBackend {
+
+    public static int LEASE = 30; // seconds a miss may take before others stop waiting for it
+    public static long LEASE_POLL = 50; // milliseconds
+    public static int TTL = 60*60*24; // TTL is 1 day in seconds
+    public static long GENERATION_MAX_AGE = 1000; // milliseconds a service's generation is remembered
+    public static boolean PURGE = false; // delete the entries of an invalidated generation rather than let them expire
+    public static int PURGE_BATCH = 1000; // keys per DEL
+    private final JedisPool pool;
+    private final Generations generations;
+
+    public RedisBackend(JedisPool pool) {
+        this.pool = pool;
+        // A missing generation starts at the current time rather than 0: if
+        // Redis evicted it, the service must not go back to a generation
+        // whose entries may still be there.
+        this.generations = new Generations(GENERATION_MAX_AGE) {
+            @Override long lookup(final String serviceURI) {
+                return new Call<Long>() {
+                    @Override Long run(Jedis client) {
+                        String generation = client.get(generationKey(serviceURI));
+                        if ( generation == null ) {
+                            client.setnx(generationKey(serviceURI), Long.toString(System.currentTimeMillis()));
+                            generation = client.get(generationKey(serviceURI));
+                        }
+                        return Long.parseLong(generation);
+                    }
+                }.execute();
+            }
+            @Override long increment(final String serviceURI) {
+                return new Call<Long>() {
+                    @Override Long run(Jedis client) {
+                        client.setnx(generationKey(serviceURI), Long.toString(System.currentTimeMillis()));
+                        return client.incr(generationKey(serviceURI));
+                    }
+                }.execute();
+            }
+        };
+    }
+
+    // Values written by another version of the codec are treated as misses,
+    // and overwritten.
+    @Override
+    public Object get(Pair<String, QueryKey> key) {
+        final byte[] k = SafeEncoder.encode(key(key));
+        byte[] value = new Call<byte[]>() {
+            @Override byte[] run(Jedis client) { return client.get(k); }
+        }.execute();
+        return ResultCodec.isCurrent(value) ? value : null;
+    }
+
+    @Override
+    public List<Object> getAll(List<Pair<String, QueryKey>> keys) {
+        List<Object> values = new ArrayList<Object>(keys.size());
+        if ( keys.isEmpty() ) {
+            return values;
+        }
+        final byte[][] k = new byte[keys.size()][];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = SafeEncoder.encode(key(keys.get(i)));
+        }
+        List<byte[]> found = new Call<List<byte[]>>() {
+            @Override List<byte[]> run(Jedis client) { return client.mget(k); }
+        }.execute();
+        for (byte[] value : found) {
+            values.add(ResultCodec.isCurrent(value) ? value : null);
+        }
+        return values;
+    }
+
+    @Override
+    public void put(Pair<String, QueryKey> key, Object value, long cost) {
+        put(key, value);
+    }
+
+    @Override
+    public void put(Pair<String, QueryKey> key, Object value) {
+        long generation = generations.get(key.getLeft());
+        final String k = key(key.getLeft(), generation, key.getRight());
+        final String keys = keysKey(key.getLeft(), generation);
+        final byte[] bytes = ResultCodec.encodeValue(value);
+        final int ttl = value instanceof Expiring ? ((Expiring) value).getSecondsToLive(TTL) : TTL;
+        new Call<Void>() {
+            @Override Void run(Jedis client) {
+                Pipeline pipeline = client.pipelined();
+                pipeline.setex(SafeEncoder.encode(k), ttl, bytes);
+                pipeline.sadd(keys, k);
+                pipeline.expire(keys, TTL);
+                pipeline.sync();
+                return null;
+            }
+        }.execute();
+    }
+
+    // Only the process holding the lease computes a missing value, the others
+    // poll for it until it appears or the lease expires. No client is held
+    // while polling or computing.
+    //
+    // This version of Jedis has no SET NX EX, so a lease is taken with SETNX
+    // and then given a TTL. Its value is also the time it expires: a lease
+    // left without a TTL, by a process which failed between the two, is
+    // taken over with GETSET once that time has passed. A lease is released
+    // only while it still holds the value this process wrote, so a slow
+    // loader never deletes a lease another process has since taken over.
+    @Override
+    public Object load(Pair<String, QueryKey> key, Callable<Object> loader) throws Exception {
+        final String lease = key(key) + ":lease";
+        Call<String> acquire = new Call<String>() {
+            @Override String run(Jedis client) {
+                long now = System.currentTimeMillis();
+                String expiry = Long.toString(now + LEASE * 1000L);
+                if ( client.setnx(lease, expiry) == 1 ) {
+                    client.expire(lease, LEASE);
+                    return expiry;
+                }
+                if ( expired(client.get(lease), now) && expired(client.getSet(lease, expiry), now) ) {
+                    client.expire(lease, LEASE);
+                    return expiry;
+                }
+                return null;
+            }
+        };
+        long deadline = System.currentTimeMillis() + LEASE * 1000L;
+        String held = acquire.execute();
+        while ( held == null ) {
+            Thread.sleep(LEASE_POLL);
+            Object value = get(key);
+            if ( value != null ) {
+                return value;
+            }
+            if ( System.currentTimeMillis() > deadline ) {
+                break;
+            }
+            held = acquire.execute();
+        }
+        try {
+            Object value = loader.call();
+            put(key, value);
+            return value;
+        } finally {
+            if ( held != null ) {
+                release(lease, held);
+            }
+        }
+    }
+
+    // The DEL is queued in a transaction watching the lease, so it is dropped
+    // if anyone writes the lease between the GET and the EXEC.
+    private void release(final String lease, final String held) {
+        new Call<Void>() {
+            @Override Void run(Jedis client) {
+                client.watch(lease);
+                if ( !held.equals(client.get(lease)) ) {
+                    client.unwatch();
+                    return null;
+                }
+                Transaction transaction = client.multi();
+                transaction.del(lease);
+                transaction.exec();
+                return null;
+            }
+        }.execute();
+    }
+
+    private static boolean expired(String expiry, long now) {
+        try {
+            return expiry == null || Long.parseLong(expiry) < now;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public void invalidate(String serviceURI) {
+        long generation = generations.invalidate(serviceURI);
+        if ( PURGE ) {
+            purge(keysKey(serviceURI, generation - 1));
+        }
+    }
+
+    private void purge(final String keys) {
+        new Call<Void>() {
+            @Override Void run(Jedis client) {
+                List<String> members = new ArrayList<String>(client.smembers(keys));
+                members.add(keys);
+                Pipeline pipeline = client.pipelined();
+                for (int i = 0; i < members.size(); i += PURGE_BATCH) {
+                    List<String> batch = members.subList(i, Math.min(members.size(), i + PURGE_BATCH));
+                    pipeline.del(batch.toArray(new String[batch.size()]));
+                }
+                pipeline.sync();
+                return null;
+            }
+        }.execute();
+    }
+
+    @Override
+    public void invalidate(String serviceURI, Node graph, Triple triple) {
+        invalidate(serviceURI);
+    }
+
+    @Override
+    public void close() {
+        pool.destroy();
+    }
+
+    private String key(Pair<String, QueryKey> key) {
+        return key(key.getLeft(), generations.get(key.getLeft()), key.getRight());
+    }
+
+    private static String key(String serviceURI, long generation, QueryKey key) {
+        return QueryKey.hash(serviceURI) + ":" + generation + ":" + key;
+    }
+
+    private static String keysKey(String serviceURI, long generation) {
+        return QueryKey.hash(serviceURI) + ":" + generation + ":keys";
+    }
+
+    private static String generationKey(String serviceURI) {
+        return QueryKey.hash(serviceURI) + ":generation";
+    }
+
+    // Runs with a client borrowed from the pool. A client whose connection
+    // failed is not returned to the pool.
+    private abstract class Call<T> {
+        abstract T run(Jedis client);
+
+        T execute() {
+            Jedis client = pool.getResource();
+            try {
+                return run(client);
+            } catch (JedisConnectionException e) {
+                pool.returnBrokenResource(client);
+                client = null;
+                throw e;
+            } finally {
+                if ( client != null ) {
+                    pool.returnResource(client);
+                }
+            }
+        }
+    }
+
+}
@@ -16,178 +16,77 @@
 
 package com.talis.labs.arq;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.util.Set;
+import org.apache.commons.pool.impl.GenericObjectPool;
 
-import org.openjena.atlas.lib.Closeable;
-import org.openjena.atlas.lib.Pair;
-
-import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.ResultSet;
-import com.hp.hpl.jena.query.ResultSetFactory;
-import com.hp.hpl.jena.query.ResultSetFormatter;
-import com.hp.hpl.jena.query.ResultSetRewindable;
-import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.sparql.engine.http.QueryEngineHTTP;
 import com.hp.hpl.jena.sparql.util.Timer;
 
-public class RedisQueryEngineHTTP extends QueryEngineHTTP implements Closeable {
+/**
+ * A {@link CachedQueryEngineHTTP} over a {@link RedisBackend}, whose pool of
+ * connections is shared by every engine and created when first used.
+ */
+public class RedisQueryEngineHTTP extends CachedQueryEngineHTTP {
 
-    private String key = null;
-    private String service = null;
-    private Jedis client;
+    public static String HOST = "127.0.0.1";
+    public static int PORT = 6379;
+    public static int POOL_SIZE = 16; // connections
+    public static int TIMEOUT = 2000; // milliseconds, to connect, to read and to wait for a connection
+    private static RedisBackend backend = null;
 
     public RedisQueryEngineHTTP(String serviceURI, Query query) {
-        super(serviceURI, query);
-        this.key = Integer.toString(new Pair<String, Query>(serviceURI, query).hashCode());
-        this.service = Integer.toString(serviceURI.hashCode());
-        this.client = new Jedis("127.0.0.1");
+        super(serviceURI, query, backend());
     }
 
     public RedisQueryEngineHTTP(String serviceURI, String queryString) {
         this(serviceURI, QueryFactory.create(queryString));
     }
 
-    @Override
-    public ResultSet execSelect() {
-        ResultSetRewindable rs = null;
-        
-        String value = client.get(key);
-        if ( value != null ) {
-            rs = ResultSetFactory.makeRewindable(ResultSetFactory.fromXML(value));
-        } else {
-            rs = ResultSetFactory.makeRewindable(super.execSelect());
-            set(key, ResultSetFormatter.asXMLString(rs));
+    private static synchronized RedisBackend backend() {
+        if ( backend == null ) {
+            GenericObjectPool.Config config = new GenericObjectPool.Config();
+            config.maxActive = POOL_SIZE;
+            config.maxIdle = POOL_SIZE;
+            config.maxWait = TIMEOUT;
+            backend = new RedisBackend(new JedisPool(config, HOST, PORT, TIMEOUT));
         }
-        rs.reset();
-        return rs;
-    }
-
-    @Override
-    public Model execConstruct() {
-        Model model = ModelFactory.createDefaultModel();
-        
-        String value = client.get(key);
-        if ( value != null ) {
-            toModel(value, model);
-        } else {
-            model = super.execConstruct();
-            set(key, toString(model));
-        }        
-
-        return model;
-    }
-
-    @Override
-    public Model execConstruct(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        
-        String value = client.get(key);
-        if ( value != null ) {
-            toModel(value, model);
-        } else {
-            model = super.execConstruct(m);
-            set(key, toString(model));
-        }        
-
-        return model;
-    }
-
-    @Override
-    public Model execDescribe() {
-        Model model = ModelFactory.createDefaultModel();
-        
-        String value = client.get(key);
-        if ( value != null ) {
-            toModel(value, model);
-        } else {
-            model = super.execDescribe();
-            set(key, toString(model));
-        }        
-
-        return model;
+        return backend;
     }
 
-    @Override
-    public Model execDescribe(Model m) {
-        Model model = ModelFactory.createDefaultModel();
-        
-        String value = client.get(key);
-        if ( value != null ) {
-            toModel(value, model);
-        } else {
-            model = super.execDescribe(m);
-            set(key, toString(model));
-        }
-
-        return model;
+    /**
+     * Moves a service on to a new generation in Redis: its cached results are
+     * no longer used, here at once and elsewhere within
+     * {@link RedisBackend#GENERATION_MAX_AGE}.
+     */
+    public static void invalidate(String serviceURI) {
+        backend().invalidate(serviceURI);
     }
 
-    @Override
-    public boolean execAsk() {
-        boolean ask;
-        
-        String value = client.get(key);
-        if ( value != null ) {
-            ask = Boolean.parseBoolean(value);
-        } else {
-            ask = super.execAsk();
-            set(key, Boolean.toString(ask));
-        }
-
-        return ask;
+    /**
+     * Drops the results a change to triple could have changed: with Redis,
+     * every result of the service.
+     */
+    public static void invalidate(String serviceURI, Node graph, Triple triple) {
+        backend().invalidate(serviceURI, graph, triple);
     }
 
-    public void invalidate(String service) {
-        Set<String> keys = client.smembers(Integer.toString(service.hashCode()));
-        for (String key : keys) {
-            client.del(key);            
+    /**
+     * Closes the pool of connections. The next engine created opens a new
+     * one, with the settings current then.
+     */
+    public static synchronized void shutdown() {
+        if ( backend != null ) {
+            backend.close();
+            backend = null;
         }
     }
 
-    @Override
-    public void close() {
-        try {
-            client.disconnect();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
- 
-    private void set (String key, String value) {
-        client.set(key, value);
-        client.sadd(service, key);
-    }
-    
-    private void toModel(String value, Model model) {
-        try {
-            InputStream in = new ByteArrayInputStream(value.getBytes("UTF-8"));
-            model.read(in, null, "N-TRIPLES");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-    }
-    
-    private String toString(Model model) {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            model.write(out, "N-TRIPLES", null);
-            return new String(out.toByteArray(), "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return null;
-    }
-    
-    public static void main(String[] args) throws Exception {
+    public static void main(String[] args) throws InterruptedException {
         String serviceURI = "http://api.talis.com/stores/bbc-wildlife/services/sparql";
         for (int i = 0; i < 10000; i++) {
             Timer timerQuery = new Timer();
@@ -196,7 +95,7 @@ public class RedisQueryEngineHTTP extends QueryEngineHTTP implements Closeable {
             if (i % 1000 == 0) {
                 Timer timerInvalidate = new Timer();
                 timerInvalidate.startTimer();
-                qexec.invalidate(serviceURI);
+                invalidate(serviceURI);
                 System.out.println("cache invalidated " + timerInvalidate.endTimer());
             }            
             try {
@@ -0,0 +1,587 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.ARQInternalErrorException;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.util.Timer;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * A compact binary encoding of query results, used in place of the XML
+ * results format and N-Triples by the Redis and memcached caches.
+ * <p>
+ * An encoded value starts with a three byte header: a magic byte, the format
+ * version and the kind of result (with a flag for compression). Each node is
+ * written once, the first time it is used, and then referred to by a varint
+ * index into the dictionary which both sides build as they go; a result set
+ * is a list of variables followed by rows of references, a graph a list of
+ * triples of references. Bodies larger than {@link #COMPRESS_THRESHOLD} bytes
+ * are deflated if that makes them smaller.
+ */
+public class ResultCodec {
+
+    public static final byte MAGIC = (byte) 0xA7;
+    public static final byte VERSION = 1;
+    public static int COMPRESS_THRESHOLD = 4096; // bytes, Integer.MAX_VALUE never compresses
+
+    static final byte SELECT = 1;
+    static final byte GRAPH = 2;
+    static final byte BOOLEAN = 3;
+    static final byte EXPIRING = 4;
+    static final byte DEFLATED = (byte) 0x80;
+
+    static final byte URI = 1;
+    static final byte BLANK = 2;
+    static final byte PLAIN = 3;
+    static final byte LANG = 4;
+    static final byte TYPED = 5;
+
+    // References: 0 is an unbound variable, 1 a new node defined inline,
+    // n > 1 the node at index n - 2 of the dictionary.
+    static final int UNBOUND = 0;
+    static final int DEFINE = 1;
+
+    // Rows and triples are each preceded by MORE, the last one is followed by END.
+    static final int MORE = 1;
+    static final int END = 0;
+
+    public static byte[] encode(ResultSet rs) {
+        Encoder out = new Encoder();
+        List<String> vars = rs.getResultVars();
+        Var[] v = new Var[vars.size()];
+        out.writeVarint(v.length);
+        for (int i = 0; i < v.length; i++) {
+            out.writeString(vars.get(i));
+            v[i] = Var.alloc(vars.get(i));
+        }
+        while ( rs.hasNext() ) {
+            Binding binding = rs.nextBinding();
+            out.writeVarint(MORE);
+            for (int i = 0; i < v.length; i++) {
+                out.writeNode(binding.get(v[i]));
+            }
+        }
+        out.writeVarint(END);
+        return out.toByteArray(SELECT);
+    }
+
+    public static byte[] encode(Model model) {
+        return encode(model.getGraph());
+    }
+
+    public static byte[] encode(Graph graph) {
+        Encoder out = new Encoder();
+        ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while ( iter.hasNext() ) {
+                Triple triple = iter.next();
+                out.writeVarint(MORE);
+                out.writeNode(triple.getSubject());
+                out.writeNode(triple.getPredicate());
+                out.writeNode(triple.getObject());
+            }
+        } finally {
+            iter.close();
+        }
+        out.writeVarint(END);
+        return out.toByteArray(GRAPH);
+    }
+
+    public static byte[] encode(boolean value) {
+        Encoder out = new Encoder();
+        out.write(value ? 1 : 0);
+        return out.toByteArray(BOOLEAN);
+    }
+
+    /**
+     * The header, the three times of the value and the encoded value itself,
+     * so that the times can be read without decoding it.
+     */
+    public static byte[] encode(Expiring value) {
+        byte[] body = encodeValue(value.getValue());
+        ByteBuffer buffer = ByteBuffer.allocate(3 + 3 * 8 + body.length);
+        buffer.put(MAGIC).put(VERSION).put(EXPIRING);
+        buffer.putLong(value.getCreated()).putLong(value.getSoftExpiry()).putLong(value.getHardExpiry());
+        buffer.put(body);
+        return buffer.array();
+    }
+
+    /**
+     * Encodes a value held by the in-memory caches: a {@link ResultTable}, a
+     * {@link FrozenGraph}, a Boolean or an {@link Expiring} one of those. A
+     * byte[] is taken to be encoded already.
+     */
+    public static byte[] encodeValue(Object value) {
+        if ( value instanceof byte[] ) return (byte[]) value;
+        if ( value instanceof Expiring ) return encode((Expiring) value);
+        if ( value instanceof ResultTable ) return encode(((ResultTable) value).cursor());
+        if ( value instanceof FrozenGraph ) return encode(((FrozenGraph) value).getGraph());
+        if ( value instanceof Boolean ) return encode(((Boolean) value).booleanValue());
+        throw new IllegalArgumentException("Cannot encode " + value.getClass().getName());
+    }
+
+    /**
+     * The inverse of {@link #encodeValue(Object)}: decodes a value into a
+     * {@link ResultTable}, a {@link FrozenGraph} or a Boolean, by its kind.
+     */
+    public static Object decodeValue(byte[] value) {
+        if ( !isCurrent(value) ) {
+            throw new ARQInternalErrorException("Not an encoded result of this version");
+        }
+        switch ( value[2] & ~DEFLATED ) {
+            case SELECT: return ResultTable.create(decodeResultSet(value));
+            case GRAPH: return new FrozenGraph(decodeModel(value, ModelFactory.createDefaultModel()));
+            case BOOLEAN: return decodeBoolean(value);
+            case EXPIRING:
+                Expiring expiring = decodeExpiring(value);
+                return new Expiring(decodeValue((byte[]) expiring.getValue()), expiring.getCreated(), expiring.getSoftExpiry(), expiring.getHardExpiry());
+            default: throw new ARQInternalErrorException("Unknown kind of encoded result " + ( value[2] & ~DEFLATED ));
+        }
+    }
+
+    public static boolean isExpiring(byte[] value) {
+        return isCurrent(value) && value[2] == EXPIRING;
+    }
+
+    /**
+     * The times of an encoded {@link Expiring} value, around the value itself
+     * still encoded.
+     */
+    public static Expiring decodeExpiring(byte[] value) {
+        if ( !isExpiring(value) ) {
+            throw new ARQInternalErrorException("Not an encoded expiring result of this version");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(value, 3, 3 * 8);
+        long created = buffer.getLong();
+        long softExpiry = buffer.getLong();
+        long hardExpiry = buffer.getLong();
+        return new Expiring(Arrays.copyOfRange(value, 3 + 3 * 8, value.length), created, softExpiry, hardExpiry);
+    }
+
+    /**
+     * Whether a value was written by this version of the codec: anything
+     * else, from an older or newer version, should be treated as a miss.
+     */
+    public static boolean isCurrent(byte[] value) {
+        return value != null && value.length >= 3 && value[0] == MAGIC && value[1] == VERSION;
+    }
+
+    /**
+     * A result set which decodes its rows as they are read.
+     */
+    public static ResultSet decodeResultSet(byte[] value) {
+        return decodeResultSet(value, null);
+    }
+
+    /**
+     * A result set which decodes its rows as they are read, and whose
+     * solutions give their resources the given model.
+     */
+    public static ResultSet decodeResultSet(byte[] value, Model model) {
+        final Decoder in = new Decoder(value, SELECT);
+        int n = in.readVarint();
+        List<String> vars = new ArrayList<String>(n);
+        final Var[] v = new Var[n];
+        for (int i = 0; i < n; i++) {
+            vars.add(in.readString());
+            v[i] = Var.alloc(vars.get(i));
+        }
+        Iterator<Binding> rows = new Iterator<Binding>() {
+            private Boolean more = null;
+            @Override public boolean hasNext() {
+                if ( more == null ) {
+                    more = in.readVarint() == MORE;
+                }
+                return more;
+            }
+            @Override public Binding next() {
+                if ( !hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                more = null;
+                Binding binding = new BindingMap();
+                for (int i = 0; i < v.length; i++) {
+                    Node node = in.readNode();
+                    if ( node != null ) {
+                        binding.add(v[i], node);
+                    }
+                }
+                return binding;
+            }
+            @Override public void remove() { throw new UnsupportedOperationException(); }
+        };
+        return new ResultSetStream(vars, model, new QueryIterPlainWrapper(rows));
+    }
+
+    public static Model decodeModel(byte[] value, Model model) {
+        decodeGraph(value, model.getGraph());
+        return model;
+    }
+
+    public static Graph decodeGraph(byte[] value, Graph graph) {
+        Decoder in = new Decoder(value, GRAPH);
+        while ( in.readVarint() == MORE ) {
+            Node s = in.readNode();
+            Node p = in.readNode();
+            Node o = in.readNode();
+            graph.add(new Triple(s, p, o));
+        }
+        return graph;
+    }
+
+    public static boolean decodeBoolean(byte[] value) {
+        return new Decoder(value, BOOLEAN).read() != 0;
+    }
+
+    private static class Encoder {
+
+        private byte[] buf = new byte[256];
+        private int count = 0;
+        private final Map<Node, Integer> dictionary = new HashMap<Node, Integer>();
+
+        void write(int b) {
+            if ( count == buf.length ) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] b) {
+            if ( count + b.length > buf.length ) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + b.length));
+            }
+            System.arraycopy(b, 0, buf, count, b.length);
+            count += b.length;
+        }
+
+        void writeVarint(int value) {
+            while ( ( value & ~0x7F ) != 0 ) {
+                write(( value & 0x7F ) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeString(String string) {
+            byte[] b = utf8(string);
+            writeVarint(b.length);
+            write(b);
+        }
+
+        void writeNode(Node node) {
+            if ( node == null ) {
+                writeVarint(UNBOUND);
+                return;
+            }
+            Integer id = dictionary.get(node);
+            if ( id != null ) {
+                writeVarint(id + 2);
+                return;
+            }
+            writeVarint(DEFINE);
+            if ( node.isURI() ) {
+                write(URI);
+                writeString(node.getURI());
+            } else if ( node.isBlank() ) {
+                write(BLANK);
+                writeString(node.getBlankNodeLabel());
+            } else if ( node.isLiteral() ) {
+                String lang = node.getLiteralLanguage();
+                String datatype = node.getLiteralDatatypeURI();
+                if ( datatype != null ) {
+                    write(TYPED);
+                    writeString(node.getLiteralLexicalForm());
+                    writeNode(Node.createURI(datatype));
+                } else if ( lang != null && lang.length() > 0 ) {
+                    write(LANG);
+                    writeString(node.getLiteralLexicalForm());
+                    writeString(lang);
+                } else {
+                    write(PLAIN);
+                    writeString(node.getLiteralLexicalForm());
+                }
+            } else {
+                throw new ARQInternalErrorException("Cannot encode " + node);
+            }
+            // The datatype of a typed literal is defined first, so it gets the lower index.
+            dictionary.put(node, dictionary.size());
+        }
+
+        byte[] toByteArray(byte kind) {
+            if ( count >= COMPRESS_THRESHOLD ) {
+                byte[] deflated = deflate(kind);
+                if ( deflated != null ) {
+                    return deflated;
+                }
+            }
+            byte[] value = new byte[3 + count];
+            value[0] = MAGIC;
+            value[1] = VERSION;
+            value[2] = kind;
+            System.arraycopy(buf, 0, value, 3, count);
+            return value;
+        }
+
+        // The header, the length of the body and the deflated body; or null
+        // if that would not be any smaller than the body itself.
+        private byte[] deflate(byte kind) {
+            Encoder length = new Encoder();
+            length.writeVarint(count);
+            byte[] value = new byte[count];
+            int n = 3 + length.count;
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(buf, 0, count);
+                deflater.finish();
+                while ( !deflater.finished() && n < value.length ) {
+                    n += deflater.deflate(value, n, value.length - n);
+                }
+                if ( !deflater.finished() ) {
+                    return null;
+                }
+            } finally {
+                deflater.end();
+            }
+            value[0] = MAGIC;
+            value[1] = VERSION;
+            value[2] = (byte) ( kind | DEFLATED );
+            System.arraycopy(length.buf, 0, value, 3, length.count);
+            return Arrays.copyOf(value, n);
+        }
+
+    }
+
+    private static class Decoder {
+
+        private byte[] buf;
+        private int pos;
+        private final List<Node> dictionary = new ArrayList<Node>();
+
+        Decoder(byte[] value, byte kind) {
+            if ( !isCurrent(value) ) {
+                throw new ARQInternalErrorException("Not a version " + VERSION + " encoded result");
+            }
+            if ( ( value[2] & ~DEFLATED ) != kind ) {
+                throw new ARQInternalErrorException("Encoded result of kind " + ( value[2] & ~DEFLATED ) + " where " + kind + " was expected");
+            }
+            this.buf = value;
+            this.pos = 3;
+            if ( ( value[2] & DEFLATED ) != 0 ) {
+                byte[] body = new byte[readVarint()];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(value, pos, value.length - pos);
+                    int n = 0;
+                    while ( n < body.length && !inflater.finished() ) {
+                        int m = inflater.inflate(body, n, body.length - n);
+                        if ( m == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                            throw new ARQInternalErrorException("Truncated encoded result");
+                        }
+                        n += m;
+                    }
+                } catch (DataFormatException e) {
+                    throw new ARQInternalErrorException(e);
+                } finally {
+                    inflater.end();
+                }
+                this.buf = body;
+                this.pos = 0;
+            }
+        }
+
+        int read() {
+            return buf[pos++] & 0xFF;
+        }
+
+        int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = read();
+                value |= ( b & 0x7F ) << shift;
+                if ( ( b & 0x80 ) == 0 ) {
+                    return value;
+                }
+            }
+            throw new ARQInternalErrorException("Malformed varint");
+        }
+
+        String readString() {
+            int length = readVarint();
+            try {
+                String string = new String(buf, pos, length, "UTF-8");
+                pos += length;
+                return string;
+            } catch (UnsupportedEncodingException e) {
+                throw new ARQInternalErrorException(e);
+            }
+        }
+
+        Node readNode() {
+            int ref = readVarint();
+            if ( ref == UNBOUND ) {
+                return null;
+            }
+            if ( ref != DEFINE ) {
+                return dictionary.get(ref - 2);
+            }
+            Node node;
+            int type = read();
+            switch ( type ) {
+            case URI:
+                node = Node.createURI(readString());
+                break;
+            case BLANK:
+                node = Node.createAnon(new AnonId(readString()));
+                break;
+            case PLAIN:
+                node = Node.createLiteral(readString());
+                break;
+            case LANG:
+                node = Node.createLiteral(readString(), readString(), false);
+                break;
+            case TYPED:
+                String lexical = readString();
+                RDFDatatype datatype = TypeMapper.getInstance().getSafeTypeByName(readNode().getURI());
+                node = Node.createLiteral(lexical, null, datatype);
+                break;
+            default:
+                throw new ARQInternalErrorException("Unknown node type " + type);
+            }
+            dictionary.add(node);
+            return node;
+        }
+
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new ARQInternalErrorException(e);
+        }
+    }
+
+    // Times encoding and decoding the results of a local query, with this
+    // codec and with the XML results format and N-Triples it replaces.
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        Model data = ModelFactory.createDefaultModel();
+        Graph graph = data.getGraph();
+        Node type = Node.createURI("http://www.w3.org/1999/02/22-rdf-syntax-ns#type");
+        Node label = Node.createURI("http://www.w3.org/2000/01/rdf-schema#label");
+        Node count = Node.createURI("http://example.org/count");
+        for (int i = 0; i < size; i++) {
+            Node s = i % 10 == 0 ? Node.createAnon() : Node.createURI("http://example.org/resource/" + i);
+            graph.add(new Triple(s, type, Node.createURI("http://example.org/Class" + ( i % 20 ))));
+            graph.add(new Triple(s, label, Node.createLiteral("Resource number " + i, "en", false)));
+            graph.add(new Triple(s, count, Node.createLiteral(Integer.toString(i), null, TypeMapper.getInstance().getSafeTypeByName("http://www.w3.org/2001/XMLSchema#integer"))));
+        }
+        Query query = QueryFactory.create("SELECT * { ?s ?p ?o }");
+        QueryExecution qexec = QueryExecutionFactory.create(query, data);
+        ResultSetRewindable rs = ResultSetFactory.makeRewindable(qexec.execSelect());
+        qexec.close();
+
+        for (int round = 0; round < rounds; round++) {
+            Timer timer = new Timer();
+            rs.reset();
+            timer.startTimer();
+            String xml = ResultSetFormatter.asXMLString(rs);
+            long xmlEncode = timer.endTimer();
+            timer.startTimer();
+            consume(ResultSetFactory.fromXML(xml));
+            long xmlDecode = timer.endTimer();
+
+            rs.reset();
+            timer.startTimer();
+            byte[] binary = encode(rs);
+            long binaryEncode = timer.endTimer();
+            timer.startTimer();
+            consume(decodeResultSet(binary));
+            long binaryDecode = timer.endTimer();
+
+            timer.startTimer();
+            String ntriples = toNTriples(data);
+            long ntEncode = timer.endTimer();
+            timer.startTimer();
+            ModelFactory.createDefaultModel().read(new StringReader(ntriples), null, "N-TRIPLES");
+            long ntDecode = timer.endTimer();
+
+            timer.startTimer();
+            byte[] graphBinary = encode(data);
+            long graphEncode = timer.endTimer();
+            timer.startTimer();
+            decodeModel(graphBinary, ModelFactory.createDefaultModel());
+            long graphDecode = timer.endTimer();
+
+            System.out.println("round " + round + ": "
+                + "select xml " + utf8(xml).length + " bytes " + xmlEncode + "/" + xmlDecode + " ms, "
+                + "binary " + binary.length + " bytes " + binaryEncode + "/" + binaryDecode + " ms; "
+                + "graph n-triples " + utf8(ntriples).length + " bytes " + ntEncode + "/" + ntDecode + " ms, "
+                + "binary " + graphBinary.length + " bytes " + graphEncode + "/" + graphDecode + " ms");
+        }
+    }
+
+    private static String toNTriples(Model model) {
+        StringWriter out = new StringWriter();
+        model.write(out, "N-TRIPLES", null);
+        return out.toString();
+    }
+
+    private static void consume(ResultSet rs) {
+        while ( rs.hasNext() ) {
+            rs.nextBinding();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIterPlainWrapper;
+import com.hp.hpl.jena.sparql.engine.ResultSetStream;
+
+/**
+ * Renames, by position, the variables of a cached result set to those of a
+ * query with the same {@link QueryKey}.
+ */
+public class ResultSetRename {
+
+    public static ResultSet rename(final ResultSet rs, List<String> vars) {
+        List<String> cachedVars = rs.getResultVars();
+        if ( cachedVars.equals(vars) ) {
+            return rs;
+        }
+        if ( cachedVars.size() != vars.size() ) {
+            throw new IllegalArgumentException("Cannot rename " + cachedVars + " as " + vars);
+        }
+        final Var[] from = new Var[vars.size()];
+        final Var[] to = new Var[vars.size()];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = Var.alloc(cachedVars.get(i));
+            to[i] = Var.alloc(vars.get(i));
+        }
+        Iterator<Binding> bindings = new Iterator<Binding>() {
+            @Override public boolean hasNext() { return rs.hasNext(); }
+            @Override public Binding next() { return rename(rs.nextBinding(), from, to); }
+            @Override public void remove() { throw new UnsupportedOperationException(); }
+        };
+        return new ResultSetStream(vars, rs.getResourceModel(), new QueryIterPlainWrapper(bindings));
+    }
+
+    static Binding rename(Binding binding, Var[] from, Var[] to) {
+        Binding renamed = new BindingMap();
+        for (int i = 0; i < from.length; i++) {
+            if ( binding.contains(from[i]) ) {
+                renamed.add(to[i], binding.get(from[i]));
+            }
+        }
+        return renamed;
+    }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.ResultBinding;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingBase;
+
+/**
+ * An immutable table of query results, which can be shared between threads.
+ * Each column is an array of ints, which stand for its distinct nodes, and
+ * rows are only put together as they are read. The nodes are held in a
+ * {@link NodeDictionary} shared with the other tables until the table is
+ * {@link #release() released}. Each {@link #cursor(List)} is an independent
+ * result set over the table, so a cache hit allocates a cursor and a small
+ * view object for each row, and never locks or copies.
+ */
+public final class ResultTable {
+
+    private final List<String> vars;
+    private final int width;
+    private final int size;
+    private final int[][] columns; // indexes of the distinct nodes, from 1, or 0 for an unbound variable
+    private final NodeDictionary.Lease lease; // the ids of the distinct nodes
+    private final long nodeBytes;
+    private volatile Node[] released = null; // the distinct nodes, once released
+
+    private ResultTable(List<String> vars, Node[] nodes, int[][] columns, int size) {
+        this.vars = Collections.unmodifiableList(new ArrayList<String>(vars));
+        this.width = vars.size();
+        this.size = size;
+        this.columns = columns;
+        this.lease = NodeDictionary.current().acquire(this, nodes);
+        long bytes = ResultWeigher.OBJECT + 4L * nodes.length;
+        for (int i = 1; i < nodes.length; i++) {
+            bytes += ResultWeigher.weigh(nodes[i]);
+        }
+        this.nodeBytes = bytes;
+    }
+
+    public static ResultTable create(ResultSet rs) {
+        List<Binding> rows = new ArrayList<Binding>();
+        while ( rs.hasNext() ) {
+            rows.add(rs.nextBinding());
+        }
+        return create(rs.getResultVars(), rows);
+    }
+
+    public static ResultTable create(List<String> vars, List<Binding> rows) {
+        Map<Node, Integer> indexes = new HashMap<Node, Integer>();
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(null);
+        int[][] columns = new int[vars.size()][rows.size()];
+        for (int j = 0; j < columns.length; j++) {
+            Var var = Var.alloc(vars.get(j));
+            int[] column = columns[j];
+            int i = 0;
+            for (Binding binding : rows) {
+                Node node = binding.get(var);
+                if ( node != null ) {
+                    Integer index = indexes.get(node);
+                    if ( index == null ) {
+                        index = nodes.size();
+                        indexes.put(node, index);
+                        nodes.add(node);
+                    }
+                    column[i] = index;
+                }
+                i++;
+            }
+        }
+        return new ResultTable(vars, nodes.toArray(new Node[nodes.size()]), columns, rows.size());
+    }
+
+    public List<String> getResultVars() {
+        return vars;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Node get(int row, int column) {
+        int index = columns[column][row];
+        if ( index == 0 ) {
+            return null;
+        }
+        Node[] nodes = released;
+        if ( nodes == null ) {
+            Node node = lease.dictionary.get(lease.ids[index]);
+            if ( node != null ) {
+                return node;
+            }
+            nodes = released; // released while it was read
+        }
+        return nodes[index];
+    }
+
+    /**
+     * Gives back the table's nodes to the shared dictionary, for example when
+     * a cache drops it. The table keeps a copy of them, for the cursors which
+     * may still be open over it.
+     */
+    public synchronized void release() {
+        if ( released != null ) return;
+        Node[] nodes = new Node[lease.ids.length];
+        for (int i = 1; i < nodes.length; i++) {
+            nodes[i] = lease.dictionary.get(lease.ids[i]);
+        }
+        released = nodes;
+        lease.dictionary.release(lease);
+    }
+
+    // Each distinct node the table uses, whether or not other tables share it.
+    long nodeBytes() {
+        return nodeBytes;
+    }
+
+    public ResultSetRewindable cursor() {
+        return new Cursor(this, vars, 0, size, null);
+    }
+
+    /**
+     * A cursor which names the columns, by position, after the given
+     * variables: those of a query with the same {@link QueryKey}.
+     */
+    public ResultSetRewindable cursor(List<String> names) {
+        return cursor(names, null);
+    }
+
+    /**
+     * A cursor named after the given variables whose solutions give their
+     * resources the given model, as the result set of the query over it
+     * would. Without a model each cursor has an empty one of its own.
+     */
+    public ResultSetRewindable cursor(List<String> names, Model model) {
+        if ( names.size() != width ) {
+            throw new IllegalArgumentException("Cannot rename " + vars + " as " + names);
+        }
+        return new Cursor(this, names, 0, size, model);
+    }
+
+    /**
+     * A cursor over a window of the rows, as OFFSET and LIMIT would select
+     * them, named after the given variables.
+     */
+    public ResultSetRewindable cursor(List<String> names, long offset, long limit) {
+        if ( names.size() != width ) {
+            throw new IllegalArgumentException("Cannot rename " + vars + " as " + names);
+        }
+        int first = (int) Math.min(Math.max(offset, 0), size);
+        int end = (int) Math.min(first + Math.min(Math.max(limit, 0), size), size);
+        return new Cursor(this, names, first, end, null);
+    }
+
+    private static class Cursor implements ResultSetRewindable {
+
+        private final ResultTable table;
+        private final List<String> names;
+        private final Var[] vars;
+        private final int first;
+        private final int end;
+        private int row;
+        private Model model; // created when first asked for, if not given
+
+        Cursor(ResultTable table, List<String> names, int first, int end, Model model) {
+            this.table = table;
+            this.names = names;
+            this.first = first;
+            this.end = end;
+            this.row = first;
+            this.model = model;
+            this.vars = new Var[names.size()];
+            for (int i = 0; i < vars.length; i++) {
+                vars[i] = Var.alloc(names.get(i));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return row < end;
+        }
+
+        @Override
+        public Binding nextBinding() {
+            if ( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            return new Row(table, vars, row++);
+        }
+
+        @Override
+        public QuerySolution nextSolution() {
+            return new ResultBinding(getResourceModel(), nextBinding());
+        }
+
+        @Override
+        public QuerySolution next() {
+            return nextSolution();
+        }
+
+        @Override
+        public int getRowNumber() {
+            return row - first;
+        }
+
+        @Override
+        public List<String> getResultVars() {
+            return names;
+        }
+
+        @Override
+        public Model getResourceModel() {
+            if ( model == null ) {
+                model = ModelFactory.createDefaultModel();
+            }
+            return model;
+        }
+
+        @Override
+        public void reset() {
+            row = first;
+        }
+
+        @Override
+        public int size() {
+            return end - first;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    // A read only view of one row.
+    private static class Row extends BindingBase {
+
+        private final ResultTable table;
+        private final Var[] vars;
+        private final int row;
+
+        Row(ResultTable table, Var[] vars, int row) {
+            super(null);
+            this.table = table;
+            this.vars = vars;
+            this.row = row;
+        }
+
+        @Override
+        protected Node get1(Var var) {
+            for (int i = 0; i < vars.length; i++) {
+                if ( vars[i].equals(var) ) {
+                    return table.get(row, i);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected boolean contains1(Var var) {
+            for (int i = 0; i < vars.length; i++) {
+                if ( vars[i].equals(var) ) {
+                    return table.columns[i][row] != 0;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        protected Iterator<Var> vars1() {
+            List<Var> bound = new ArrayList<Var>(vars.length);
+            for (int i = 0; i < vars.length; i++) {
+                if ( table.columns[i][row] != 0 ) {
+                    bound.add(vars[i]);
+                }
+            }
+            return bound.iterator();
+        }
+
+        @Override
+        protected int size1() {
+            int n = 0;
+            for (int i = 0; i < vars.length; i++) {
+                if ( table.columns[i][row] != 0 ) n++;
+            }
+            return n;
+        }
+
+        @Override
+        protected boolean isEmpty1() {
+            return size1() == 0;
+        }
+
+        @Override
+        protected void add1(Var var, Node node) {
+            throw new UnsupportedOperationException("Cached results are read only");
+        }
+
+        @Override
+        protected void checkAdd1(Var var, Node node) {}
+
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.Iterator;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.algebra.Table;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.resultset.ResultSetRewindable;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Estimates the retained heap size, in bytes, of the values held by the
+ * caches: result sets, tables, models and booleans.
+ * <p>
+ * The figures are those of a 64 bit JVM without compressed references. They
+ * do not try to discover sharing between nodes, so they err on the high side.
+ */
+public class ResultWeigher implements Weigher<Object, Object> {
+
+    static final long OBJECT = 16;
+    static final long REFERENCE = 8;
+    static final long STRING = 40;
+    static final long ENTRY = 64;
+    static final long BINDING = 48;
+    static final long BINDING_SLOT = 48;
+    static final long TRIPLE = 40;
+    // A triple is held in the three (subject, predicate, object) indexes of a GraphMem.
+    static final long TRIPLE_INDEX = 3 * 48;
+
+    @Override
+    public long weigh(Object key, Object value) {
+        return ENTRY + weigh(value);
+    }
+
+    public static long weigh(Object value) {
+        if ( value instanceof ResultTable ) return weigh((ResultTable)value);
+        if ( value instanceof ResultSetRewindable ) return weigh((ResultSetRewindable)value);
+        if ( value instanceof FrozenGraph ) return weigh(((FrozenGraph)value).getGraph());
+        if ( value instanceof Model ) return weigh(((Model)value).getGraph());
+        if ( value instanceof Table ) return weigh((Table)value);
+        if ( value instanceof Expiring ) return OBJECT + 3 * 8 + weigh(((Expiring)value).getValue());
+        if ( value instanceof byte[] ) return OBJECT + ((byte[])value).length;
+        return OBJECT;
+    }
+
+    public static long weigh(ResultSetRewindable rs) {
+        long size = OBJECT + rs.getResultVars().size() * (REFERENCE + STRING);
+        rs.reset();
+        while ( rs.hasNext() ) {
+            size += weigh(rs.nextBinding());
+        }
+        rs.reset();
+        return size;
+    }
+
+    // Each distinct node is charged to every table which uses it, although
+    // the tables share it in a NodeDictionary.
+    public static long weigh(ResultTable table) {
+        int width = table.getResultVars().size();
+        return OBJECT + width * (REFERENCE + STRING + OBJECT + 4L * table.size()) + table.nodeBytes();
+    }
+
+    public static long weigh(Table table) {
+        long size = OBJECT + table.getVars().size() * (REFERENCE + STRING);
+        QueryIterator iter = table.iterator(null);
+        try {
+            while ( iter.hasNext() ) {
+                size += REFERENCE + weigh(iter.nextBinding());
+            }
+        } finally {
+            iter.close();
+        }
+        return size;
+    }
+
+    public static long weigh(Binding binding) {
+        long size = BINDING;
+        Iterator<Var> vars = binding.vars();
+        while ( vars.hasNext() ) {
+            size += BINDING_SLOT + weigh(binding.get(vars.next()));
+        }
+        return size;
+    }
+
+    public static long weigh(Graph graph) {
+        long size = OBJECT;
+        ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+        try {
+            while ( iter.hasNext() ) {
+                Triple triple = iter.next();
+                size += TRIPLE + TRIPLE_INDEX + weigh(triple.getSubject()) + weigh(triple.getPredicate()) + weigh(triple.getObject());
+            }
+        } finally {
+            iter.close();
+        }
+        return size;
+    }
+
+    public static long weigh(Node node) {
+        if ( node == null ) return 0;
+        if ( node.isURI() ) return OBJECT + weigh(node.getURI());
+        if ( node.isLiteral() )
+            return 2 * OBJECT + REFERENCE + weigh(node.getLiteralLexicalForm()) + weigh(node.getLiteralLanguage());
+        if ( node.isBlank() ) return 2 * OBJECT + weigh(node.getBlankNodeLabel());
+        return OBJECT;
+    }
+
+    static long weigh(String string) {
+        if ( string == null ) return 0;
+        return STRING + 2L * string.length();
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.hp.hpl.jena.query.QueryCancelledException;
+import com.hp.hpl.jena.query.QueryExecException;
+
+/**
+ * Coalesces concurrent computations of the same key: the first thread runs
+ * the computation, the others wait for its result (or its exception).
+ * <p>
+ * A computation belongs to all the callers waiting for it. A caller which
+ * gives up, by cancelling the future {@link #submit submit} gave it or by
+ * being interrupted, only stops waiting itself. Once no caller is left the
+ * computation is cancelled, and its abandon action run.
+ */
+public class SingleFlight<K, V> {
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override public void run() {}
+    };
+
+    private final ConcurrentMap<K, Flight> flights = new ConcurrentHashMap<K, Flight>();
+
+    /** Runs the computation of key in this thread, or waits for the one running. */
+    public V execute(K key, Callable<V> callable) {
+        Flight created = new Flight(key, callable, null);
+        Waiter waiter = join(key, created);
+        if ( waiter.flight == created ) {
+            created.run();
+        }
+        try {
+            return waiter.get();
+        } catch (InterruptedException e) {
+            waiter.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException();
+        } catch (CancellationException e) {
+            throw new QueryCancelledException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+            if ( cause instanceof Error ) throw (Error) cause;
+            throw new QueryExecException(cause);
+        }
+    }
+
+    /**
+     * Starts the computation of key on the executor, or joins the one
+     * running. Cancelling the future returned only detaches this caller; if
+     * it was the last, abandon is run (for example to abort a request).
+     */
+    public Future<V> submit(K key, Callable<V> callable, Executor executor, Runnable abandon) {
+        Flight created = new Flight(key, callable, abandon);
+        Waiter waiter = join(key, created);
+        if ( waiter.flight == created ) {
+            try {
+                executor.execute(created);
+            } catch (RuntimeException e) {
+                created.fail(e);
+            }
+        }
+        return waiter;
+    }
+
+    // A flight all of whose waiters have left is on its way out: wait for
+    // the next one instead.
+    private Waiter join(K key, Flight created) {
+        while ( true ) {
+            Flight flight = flights.putIfAbsent(key, created);
+            if ( flight == null ) {
+                flight = created;
+            }
+            Waiter waiter = flight.join();
+            if ( waiter != null ) {
+                return waiter;
+            }
+            flights.remove(key, flight);
+        }
+    }
+
+    private class Flight extends FutureTask<V> {
+        private final K key;
+        private final Runnable abandon;
+        private final List<Waiter> waiters = new ArrayList<Waiter>(); // guarded by this
+        private boolean abandoned = false; // guarded by this
+
+        Flight(K key, Callable<V> callable, Runnable abandon) {
+            super(callable);
+            this.key = key;
+            this.abandon = abandon;
+        }
+
+        synchronized Waiter join() {
+            if ( abandoned ) {
+                return null;
+            }
+            Waiter waiter = new Waiter(this);
+            waiters.add(waiter);
+            if ( isDone() ) {
+                waiter.deliver();
+            }
+            return waiter;
+        }
+
+        void leave(Waiter waiter) {
+            synchronized (this) {
+                waiters.remove(waiter);
+                if ( !waiters.isEmpty() || isDone() ) {
+                    return;
+                }
+                abandoned = true;
+            }
+            flights.remove(key, this);
+            cancel(true);
+            if ( abandon != null ) {
+                abandon.run();
+            }
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        @Override
+        protected void done() {
+            flights.remove(key, this);
+            List<Waiter> done;
+            synchronized (this) {
+                done = new ArrayList<Waiter>(waiters);
+            }
+            for (Waiter waiter : done) {
+                waiter.deliver();
+            }
+        }
+    }
+
+    // One caller's view of a flight.
+    private class Waiter extends FutureTask<V> {
+        final Flight flight;
+
+        Waiter(Flight flight) {
+            super(NOTHING, null);
+            this.flight = flight;
+        }
+
+        void deliver() {
+            try {
+                set(flight.get());
+            } catch (ExecutionException e) {
+                setException(e.getCause());
+            } catch (CancellationException e) {
+                super.cancel(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(false);
+            if ( cancelled ) {
+                flight.leave(this);
+            }
+            return cancelled;
+        }
+    }
+
+}
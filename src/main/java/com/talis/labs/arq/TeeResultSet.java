@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.core.ResultBinding;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+
+/**
+ * Passes the rows of a result set on to the caller as they arrive, keeping a
+ * copy of them. Once the caller has read the last row the copy is handed to
+ * {@link #commit(ResultTable)}, which runs on an executor rather than on the
+ * caller's thread; the copy is dropped instead if it grows
+ * beyond maxBytes (as estimated by {@link ResultWeigher}) or if the caller
+ * gives up early and the result set is {@link #abandon() abandoned}.
+ * <p>
+ * {@link #getCost()} is the time spent waiting on the result set, without
+ * the time the caller took over each row.
+ */
+public abstract class TeeResultSet implements ResultSet {
+
+    private static final ExecutorService commits = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TeeResultSet commit");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ResultSet rs;
+    private final long maxBytes;
+    private final Executor executor;
+    private List<Binding> rows = new ArrayList<Binding>();
+    private long bytes = 0;
+    private long cost = 0; // nanoseconds
+
+    public TeeResultSet(ResultSet rs, long maxBytes) {
+        this(rs, maxBytes, commits);
+    }
+
+    public TeeResultSet(ResultSet rs, long maxBytes, Executor executor) {
+        this.rs = rs;
+        this.maxBytes = maxBytes;
+        this.executor = executor;
+    }
+
+    protected abstract void commit(ResultTable table);
+
+    public void abandon() {
+        rows = null;
+    }
+
+    /** The nanoseconds spent in the result set so far. */
+    public long getCost() {
+        return cost;
+    }
+
+    @Override
+    public boolean hasNext() {
+        long start = System.nanoTime();
+        boolean hasNext = rs.hasNext();
+        cost += System.nanoTime() - start;
+        if ( !hasNext && rows != null ) {
+            final List<String> vars = rs.getResultVars();
+            final List<Binding> copy = rows;
+            rows = null;
+            executor.execute(new Runnable() {
+                @Override public void run() { commit(ResultTable.create(vars, copy)); }
+            });
+        }
+        return hasNext;
+    }
+
+    @Override
+    public Binding nextBinding() {
+        long start = System.nanoTime();
+        Binding binding = rs.nextBinding();
+        cost += System.nanoTime() - start;
+        if ( rows != null ) {
+            bytes += ResultWeigher.weigh(binding);
+            if ( bytes > maxBytes ) {
+                abandon();
+            } else {
+                rows.add(binding);
+            }
+        }
+        return binding;
+    }
+
+    @Override
+    public QuerySolution nextSolution() {
+        return new ResultBinding(rs.getResourceModel(), nextBinding());
+    }
+
+    @Override
+    public QuerySolution next() {
+        return nextSolution();
+    }
+
+    @Override
+    public int getRowNumber() {
+        return rs.getRowNumber();
+    }
+
+    @Override
+    public List<String> getResultVars() {
+        return rs.getResultVars();
+    }
+
+    @Override
+    public Model getResourceModel() {
+        return rs.getResourceModel();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.arq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * A small, fast backend (L1), usually a {@link LocalBackend}, in front of a
+ * larger or shared one (L2), usually Redis or memcached. Values found in L2
+ * are decoded and promoted to L1, so hot keys are served without a round
+ * trip; values computed on a miss are put in both.
+ * <p>
+ * A value computed here is put in L1 with the time it took. One found in L2
+ * was computed elsewhere: what L1 saves on it is the fetch from L2, so that
+ * is its cost.
+ * <p>
+ * L1 is not told about invalidations made by other processes: entries there
+ * live until they are evicted, or until this process invalidates the service.
+ */
+public class TieredBackend implements CacheBackend {
+
+    private final CacheBackend l1;
+    private final CacheBackend l2;
+
+    public TieredBackend(CacheBackend l1, CacheBackend l2) {
+        this.l1 = l1;
+        this.l2 = l2;
+    }
+
+    @Override
+    public Object get(Pair<String, QueryKey> key) {
+        Object value = l1.get(key);
+        if ( value == null ) {
+            long start = System.nanoTime();
+            value = l2.get(key);
+            value = promote(key, value, System.nanoTime() - start);
+        }
+        return value;
+    }
+
+    @Override
+    public List<Object> getAll(List<Pair<String, QueryKey>> keys) {
+        List<Object> values = new ArrayList<Object>(l1.getAll(keys));
+        List<Pair<String, QueryKey>> misses = new ArrayList<Pair<String, QueryKey>>();
+        for (int i = 0; i < keys.size(); i++) {
+            if ( values.get(i) == null ) {
+                misses.add(keys.get(i));
+            }
+        }
+        if ( misses.isEmpty() ) {
+            return values;
+        }
+        long start = System.nanoTime();
+        List<Object> found = l2.getAll(misses);
+        long cost = ( System.nanoTime() - start ) / misses.size(); // one round trip for all of them
+        for (int i = 0, j = 0; i < keys.size(); i++) {
+            if ( values.get(i) == null ) {
+                values.set(i, promote(keys.get(i), found.get(j++), cost));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void put(Pair<String, QueryKey> key, Object value) {
+        l2.put(key, value);
+        l1.put(key, value);
+    }
+
+    @Override
+    public void put(Pair<String, QueryKey> key, Object value, long cost) {
+        l2.put(key, value, cost);
+        l1.put(key, value, cost);
+    }
+
+    // The cost is the time L2 took: to run the loader, or to wait for the
+    // process which did.
+    @Override
+    public Object load(Pair<String, QueryKey> key, Callable<Object> loader) throws Exception {
+        long start = System.nanoTime();
+        Object value = l2.load(key, loader);
+        return promote(key, value, System.nanoTime() - start);
+    }
+
+    @Override
+    public void invalidate(String serviceURI) {
+        l2.invalidate(serviceURI);
+        l1.invalidate(serviceURI);
+    }
+
+    @Override
+    public void invalidate(String serviceURI, Node graph, Triple triple) {
+        l2.invalidate(serviceURI, graph, triple);
+        l1.invalidate(serviceURI, graph, triple);
+    }
+
+    @Override
+    public void close() {
+        l1.close();
+        l2.close();
+    }
+
+    private Object promote(Pair<String, QueryKey> key, Object value, long cost) {
+        if ( value == null ) {
+            return null;
+        }
+        if ( value instanceof byte[] ) {
+            value = ResultCodec.decodeValue((byte[]) value);
+        }
+        l1.put(key, value, cost);
+        return value;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
+import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
+import com.hp.hpl.jena.sparql.engine.QueryExecutionBase;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.talis.labs.arq.CachedQueryExecutionBase;
+
+/**
+ * Data and query helpers shared by the tests.
+ */
+final class Fixtures {
+
+	static final String NS = "http://example.org/";
+	static final String PREFIX = "PREFIX : <" + NS + "> ";
+
+	private Fixtures() {}
+
+	// Ten resources, each with a literal for http://example.org/p.
+	static Model data() {
+		return data(10);
+	}
+
+	static Model data(int size) {
+		Model model = ModelFactory.createDefaultModel();
+		for (int i = 0; i < size; i++) {
+			model.add(model.createResource("http://example.org/resource/" + i), model.createProperty("http://example.org/p"), "value " + i);
+		}
+		return model;
+	}
+
+	static Node uri(String local) {
+		return Node.createURI(NS + local);
+	}
+
+	static Triple triple(String s, String p, String o) {
+		return Triple.create(uri(s), uri(p), uri(o));
+	}
+
+	// The number of rows of a SELECT, with PREFIX, run by a
+	// CachedQueryExecutionBase.
+	static long count(Dataset dataset, String query) {
+		Query q = QueryFactory.create(PREFIX + query);
+		Context context = ARQ.getContext().copy();
+		return count(new CachedQueryExecutionBase(q, dataset, context, QueryEngineRegistry.get().find(q, dataset.asDatasetGraph(), context)));
+	}
+
+	// The same, run by the engines of factory.
+	static long count(Dataset dataset, String query, QueryEngineFactory factory) {
+		return count(new QueryExecutionBase(QueryFactory.create(PREFIX + query), dataset, ARQ.getContext().copy(), factory));
+	}
+
+	private static long count(QueryExecution qexec) {
+		try {
+			return ResultSetFormatter.consume(qexec.execSelect());
+		} finally {
+			qexec.close();
+		}
+	}
+
+}
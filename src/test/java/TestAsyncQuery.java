@@ -0,0 +1,111 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
+import com.talis.labs.arq.CachedQueryEngineHTTP;
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.LocalBackend;
+import com.talis.labs.arq.QueryKey;
+
+public class TestAsyncQuery {
+
+	private final LocalBackend backend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+
+	@Test
+	public void testHit() throws Exception {
+		Query query = QueryFactory.create("ASK { ?s ?p ?o }");
+		backend.put(new Pair<String, QueryKey>("http://localhost:1/sparql", QueryKey.create(query)), Boolean.TRUE);
+		Future<Boolean> ask = new CachedQueryEngineHTTP("http://localhost:1/sparql", query, backend).execAskAsync();
+		assertTrue(ask.isDone());
+		assertTrue(ask.get());
+	}
+
+	@Test
+	public void testMissFails() throws Exception {
+		Future<Boolean> ask = new CachedQueryEngineHTTP("http://localhost:1/sparql", QueryFactory.create("ASK { ?s ?p ?o }"), backend).execAskAsync();
+		try {
+			ask.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof QueryExceptionHTTP);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testTimeout() throws Exception {
+		// A service which accepts the request and never answers.
+		ServerSocket server = new ServerSocket(0);
+		try {
+			CachedQueryEngineHTTP qexec = new CachedQueryEngineHTTP("http://localhost:" + server.getLocalPort() + "/sparql", QueryFactory.create("ASK { ?s ?p ?o }"), backend);
+			qexec.setTimeout(100);
+			Future<Boolean> ask = qexec.execAskAsync();
+			Socket socket = server.accept();
+			try {
+				ask.get();
+				fail();
+			} catch (CancellationException e) {
+				assertTrue(ask.isCancelled());
+			} finally {
+				socket.close();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testCancelDetaches() throws Exception {
+		// A service which accepts the request and answers once told to.
+		ServerSocket server = new ServerSocket(0);
+		try {
+			String service = "http://localhost:" + server.getLocalPort() + "/sparql";
+			Query query = QueryFactory.create("ASK { ?s ?p ?o }");
+			Future<Boolean> first = new CachedQueryEngineHTTP(service, query, backend).execAskAsync();
+			Socket socket = server.accept();
+			Future<Boolean> second = new CachedQueryEngineHTTP(service, query, backend).execAskAsync();
+			try {
+				assertTrue(first.cancel(true));
+				assertFalse(second.isDone());
+				socket.getOutputStream().write("HTTP/1.0 200 OK\r\nContent-Type: application/sparql-results+xml\r\n\r\n".getBytes("UTF-8"));
+				socket.getOutputStream().write("<sparql xmlns='http://www.w3.org/2005/sparql-results#'><head/><boolean>true</boolean></sparql>".getBytes("UTF-8"));
+				socket.close();
+				assertTrue(second.get());
+				assertTrue(first.isCancelled());
+			} finally {
+				socket.close();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.DataSourceImpl;
+import com.talis.labs.arq.CachedQueryEngine;
+
+public class TestBGPCache {
+
+	private static long count(Dataset dataset, String query) {
+		return Fixtures.count(dataset, query, CachedQueryEngine.getFactory());
+	}
+
+	@After
+	public void tearDown() {
+		CachedQueryEngine.MAX_ROWS = 10000;
+	}
+
+	@Test
+	public void testShared() {
+		// Changes to the base graph are not seen through the wrapper, only
+		// by the BGPs which are not cached yet.
+		Graph base = Factory.createDefaultGraph();
+		base.add(Fixtures.triple("a", "p", "b"));
+		base.add(Fixtures.triple("c", "p", "d"));
+		Dataset dataset = DatasetFactory.create(ModelFactory.createModelForGraph(new WrappedGraph(base)));
+		assertEquals(2, count(dataset, "SELECT * { ?s :p ?o }"));
+
+		base.add(Fixtures.triple("e", "p", "f"));
+		assertEquals(1, count(dataset, "SELECT * { ?s :p ?o FILTER ( ?s = :a ) }"));
+		assertEquals(2, count(dataset, "SELECT * { ?s :p ?o } ORDER BY ?o"));
+		assertEquals(3, count(dataset, "SELECT * { ?x :p ?y . ?x :p ?z }"));
+
+		// The same BGP with other names reads the table under those names.
+		assertEquals(2, count(dataset, "SELECT * { ?x :p ?y }"));
+		assertEquals(1, count(dataset, "SELECT * { ?x :p ?y FILTER ( ?x = :a ) }"));
+	}
+
+	@Test
+	public void testChanged() {
+		Model model = ModelFactory.createDefaultModel();
+		model.getGraph().add(Fixtures.triple("a", "p", "b"));
+		Dataset dataset = DatasetFactory.create(model);
+		assertEquals(1, count(dataset, "SELECT * { ?s :p ?o }"));
+		model.getGraph().add(Fixtures.triple("c", "p", "d"));
+		assertEquals(2, count(dataset, "SELECT * { ?s :p ?o }"));
+	}
+
+	@Test
+	public void testNamedGraphs() {
+		DataSourceImpl dataset = new DataSourceImpl(ModelFactory.createDefaultModel());
+		dataset.getDefaultModel().getGraph().add(Fixtures.triple("a", "p", "b"));
+		Model g = ModelFactory.createDefaultModel();
+		g.getGraph().add(Fixtures.triple("c", "p", "d"));
+		g.getGraph().add(Fixtures.triple("e", "p", "f"));
+		dataset.addNamedModel(Fixtures.NS + "g", g);
+		assertEquals(1, count(dataset, "SELECT * { ?s :p ?o }"));
+		assertEquals(2, count(dataset, "SELECT * { GRAPH :g { ?s :p ?o } }"));
+		assertEquals(3, count(dataset, "SELECT * { { ?s :p ?o } UNION { GRAPH ?g { ?s :p ?o } } }"));
+	}
+
+	@Test
+	public void testTooLarge() {
+		CachedQueryEngine.MAX_ROWS = 1;
+		Model model = ModelFactory.createDefaultModel();
+		model.getGraph().add(Fixtures.triple("a", "p", "b"));
+		model.getGraph().add(Fixtures.triple("c", "p", "d"));
+		Dataset dataset = DatasetFactory.create(model);
+		assertEquals(2, count(dataset, "SELECT * { ?s :p ?o }"));
+		assertEquals(2, count(dataset, "SELECT * { ?s :p ?o }"));
+	}
+
+}
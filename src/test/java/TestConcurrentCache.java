@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.openjena.atlas.lib.ActionKeyValue;
+
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.Weigher;
+
+public class TestConcurrentCache {
+
+	@Test
+	public void testBounded() {
+		ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>(100);
+		for (int i = 0; i < 10000; i++) {
+			cache.put(i, Integer.toString(i));
+		}
+		assertTrue(cache.size() <= 100);
+		assertEquals("9999", cache.get(9999));
+	}
+
+	@Test
+	public void testReusedEntriesSurviveScan() {
+		ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>(10, 1);
+		cache.put(-1, "hot");
+		assertEquals("hot", cache.get(-1));
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, Integer.toString(i));
+		}
+		assertEquals("hot", cache.get(-1));
+	}
+
+	@Test
+	public void testEvictAcrossSegments() {
+		ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>(16, 16);
+		cache.put(-1, "hot");
+		assertEquals("hot", cache.get(-1));
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, Integer.toString(i));
+			assertTrue(cache.containsKey(i));
+			assertTrue(cache.containsKey(-1));
+		}
+		assertEquals(16, cache.size());
+	}
+
+	@Test
+	public void testWeighted() {
+		Weigher<Integer, String> weigher = new Weigher<Integer, String>() {
+			@Override public long weigh(Integer key, String value) { return value.length(); }
+		};
+		ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>(1000, weigher);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, "0123456789");
+			assertTrue(cache.weight() <= 1000);
+		}
+		assertEquals(100, cache.size());
+		final List<Integer> dropped = new ArrayList<Integer>();
+		cache.setDropHandler(new ActionKeyValue<Integer, String>() {
+			@Override public void apply(Integer key, String value) { dropped.add(key); }
+		});
+		cache.put(-1, new String(new char[1001]));
+		assertNull(cache.get(-1));
+		assertEquals(100, cache.size());
+		assertEquals(-1, (int) dropped.get(0));
+
+		// A large entry evicts the eldest of the small ones, across segments,
+		// eldest first.
+		dropped.clear();
+		cache.put(-2, new String(new char[500]));
+		assertEquals(50, dropped.size());
+		for (int i = 0; i < 50; i++) {
+			assertEquals(900 + i, (int) dropped.get(i));
+		}
+	}
+
+	@Test
+	public void testRemoveThroughKeys() {
+		ConcurrentCache<Integer, String> cache = new ConcurrentCache<Integer, String>(100);
+		for (int i = 0; i < 50; i++) {
+			cache.put(i, Integer.toString(i));
+		}
+		Iterator<Integer> iter = cache.keys();
+		while (iter.hasNext()) {
+			if (iter.next() % 2 == 0) {
+				iter.remove();
+			}
+		}
+		assertEquals(25, cache.size());
+		assertNull(cache.get(0));
+		assertFalse(cache.containsKey(2));
+		assertEquals("1", cache.get(1));
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.core.DataSourceImpl;
+
+public class TestDatasetWatcher {
+
+	@Test
+	public void testDefaultGraph() {
+		Model model = ModelFactory.createDefaultModel();
+		Dataset dataset = DatasetFactory.create(model);
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+
+		model.getGraph().add(Fixtures.triple("a", "p", "b"));
+		assertEquals(1, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+
+		model.getGraph().delete(Fixtures.triple("a", "p", "b"));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+
+		model.getGraph().add(Fixtures.triple("a", "p", "b"));
+		model.removeAll();
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+	}
+
+	@Test
+	public void testNamedGraphs() {
+		DataSourceImpl dataset = new DataSourceImpl(ModelFactory.createDefaultModel());
+		Model g1 = ModelFactory.createDefaultModel();
+		dataset.addNamedModel(Fixtures.NS + "g1", g1);
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { GRAPH ?g { ?s :p ?o } }"));
+
+		g1.getGraph().add(Fixtures.triple("a", "p", "b"));
+		assertEquals(1, Fixtures.count(dataset, "SELECT * { GRAPH ?g { ?s :p ?o } }"));
+
+		// A graph added to the dataset is found, and then listened to.
+		Model g2 = ModelFactory.createDefaultModel();
+		g2.getGraph().add(Fixtures.triple("c", "p", "d"));
+		dataset.addNamedModel(Fixtures.NS + "g2", g2);
+		assertEquals(2, Fixtures.count(dataset, "SELECT * { GRAPH ?g { ?s :p ?o } }"));
+
+		g2.getGraph().add(Fixtures.triple("e", "p", "f"));
+		assertEquals(3, Fixtures.count(dataset, "SELECT * { GRAPH ?g { ?s :p ?o } }"));
+
+		// As is a graph replaced under the same name.
+		dataset.removeNamedModel(Fixtures.NS + "g2");
+		dataset.addNamedModel(Fixtures.NS + "g2", ModelFactory.createDefaultModel());
+		assertEquals(1, Fixtures.count(dataset, "SELECT * { GRAPH ?g { ?s :p ?o } }"));
+	}
+
+	@Test
+	public void testSingleTriple() {
+		// Changes to the base graph are not seen through the wrapper, so a
+		// result which is not dropped stays as it was.
+		Graph base = Factory.createDefaultGraph();
+		Graph graph = new WrappedGraph(base);
+		Dataset dataset = DatasetFactory.create(ModelFactory.createModelForGraph(graph));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :q ?o }"));
+
+		base.add(Fixtures.triple("a", "p", "b"));
+		graph.add(Fixtures.triple("a", "q", "b"));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+		assertEquals(1, Fixtures.count(dataset, "SELECT * { ?s :q ?o }"));
+
+		// A bulk change moves the dataset on.
+		dataset.getDefaultModel().removeAll();
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :q ?o }"));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+	}
+
+}
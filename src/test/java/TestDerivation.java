@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
+import com.talis.labs.arq.CachedQueryEngineHTTP;
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.LocalBackend;
+import com.talis.labs.arq.QueryKey;
+import com.talis.labs.arq.ResultTable;
+
+public class TestDerivation {
+
+	// Nothing answers here: a query which is not answered from the cache fails.
+	private static final String SERVICE = "http://localhost:1/sparql";
+	private static final String PREFIX = "PREFIX : <http://example.org/> ";
+
+	private final LocalBackend backend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+
+	private QueryKey key(String query) {
+		return QueryKey.create(QueryFactory.create(PREFIX + query));
+	}
+
+	// Rows of ?s and ?v, given as pairs of numbers.
+	private void cache(String query, int... values) {
+		List<Binding> rows = new ArrayList<Binding>();
+		for (int i = 0; i < values.length; i += 2) {
+			Binding row = new BindingMap();
+			row.add(Var.alloc("s"), Node.createURI("http://example.org/s" + values[i]));
+			row.add(Var.alloc("v"), Node.createLiteral(Integer.toString(values[i + 1]), null, XSDDatatype.XSDinteger));
+			rows.add(row);
+		}
+		backend.put(new Pair<String, QueryKey>(SERVICE, key(query)), ResultTable.create(Arrays.asList("s", "v"), rows));
+	}
+
+	private CachedQueryEngineHTTP qexec(String query) {
+		return new CachedQueryEngineHTTP(SERVICE, QueryFactory.create(PREFIX + query), backend);
+	}
+
+	private int count(String query) {
+		CachedQueryEngineHTTP qexec = qexec(query);
+		try {
+			return ResultSetFormatter.consume(qexec.execSelect());
+		} finally {
+			qexec.close();
+		}
+	}
+
+	private boolean ask(String query) {
+		CachedQueryEngineHTTP qexec = qexec(query);
+		try {
+			return qexec.execAsk();
+		} finally {
+			qexec.close();
+		}
+	}
+
+	private void assertMiss(String query) {
+		try {
+			count(query);
+			fail();
+		} catch (QueryExceptionHTTP e) {
+		}
+	}
+
+	@Before
+	public void setUp() {
+		cache("SELECT * { ?s :p ?v }", 1, 1, 1, 2, 2, 3);
+	}
+
+	@Test
+	public void testAsk() {
+		assertTrue(ask("ASK { ?a :p ?b }"));
+		cache("SELECT * { ?s :q ?v }");
+		assertFalse(ask("ASK { ?s :q ?v }"));
+		try {
+			ask("ASK { ?s :r ?v }");
+			fail();
+		} catch (QueryExceptionHTTP e) {
+		}
+	}
+
+	@Test
+	public void testAskHit() {
+		backend.put(new Pair<String, QueryKey>(SERVICE, key("ASK { ?s :r ?v }")), true);
+		assertTrue(ask("ASK { ?s :r ?v }"));
+	}
+
+	@Test
+	public void testCount() {
+		CachedQueryEngineHTTP qexec = qexec("SELECT (COUNT(*) AS ?n) { ?s :p ?v }");
+		try {
+			ResultSet results = qexec.execSelect();
+			assertEquals(3, results.nextSolution().getLiteral("n").getInt());
+			assertFalse(results.hasNext());
+		} finally {
+			qexec.close();
+		}
+	}
+
+	@Test
+	public void testProjected() {
+		assertEquals(3, count("SELECT ?s { ?s :p ?v }"));
+		assertEquals(2, count("SELECT DISTINCT ?s { ?s :p ?v }"));
+		assertEquals(3, count("SELECT DISTINCT ?b { ?a :p ?b }"));
+		assertEquals(3, count("SELECT DISTINCT * { ?s :p ?v }"));
+	}
+
+	@Test
+	public void testConservative() {
+		assertMiss("SELECT (COUNT(DISTINCT ?s) AS ?n) { ?s :p ?v }");
+		assertMiss("SELECT (COUNT(*) AS ?n) { ?s :p ?v } GROUP BY ?s");
+		assertMiss("SELECT ?s { ?s :p ?v } ORDER BY ?v");
+		assertMiss("SELECT ?s { ?s :p ?v } LIMIT 1");
+		assertMiss("SELECT ?x { ?s :p ?v }");
+		assertMiss("SELECT ?s { ?s :p ?v ; :q ?w }");
+	}
+
+	@Test
+	public void testOneLookupPerMiss() {
+		final int[] gets = new int[2];
+		LocalBackend counting = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100)) {
+			@Override public Object get(Pair<String, QueryKey> key) { gets[0]++; return super.get(key); }
+			@Override public List<Object> getAll(List<Pair<String, QueryKey>> keys) { gets[1]++; return super.getAll(keys); }
+		};
+		CachedQueryEngineHTTP qexec = new CachedQueryEngineHTTP(SERVICE, QueryFactory.create(PREFIX + "SELECT ?s { ?s :p ?v FILTER(?v > 1) FILTER(?v < 3) } LIMIT 2"), counting);
+		try {
+			qexec.execSelect();
+			fail();
+		} catch (QueryExceptionHTTP e) {
+		} finally {
+			qexec.close();
+		}
+		// The key, then the related queries at once, then the key again in
+		// its flight.
+		assertEquals(2, gets[0]);
+		assertEquals(1, gets[1]);
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.atlas.lib.ActionKeyValue;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.query.QueryFactory;
+import com.talis.labs.arq.CacheBackend;
+import com.talis.labs.arq.CachedQueryEngineHTTP;
+import com.talis.labs.arq.DiskCache;
+import com.talis.labs.arq.QueryKey;
+
+public class TestDiskCache {
+
+	private static final DiskCache.KeyFormat<String> STRINGS = new DiskCache.KeyFormat<String>() {
+		@Override public byte[] write(String key) { return key.getBytes(); }
+		@Override public String read(byte[] bytes) { return new String(bytes); }
+	};
+
+	private File directory;
+	private int segmentBytes;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("diskcache", "");
+		directory.delete();
+		segmentBytes = DiskCache.SEGMENT_BYTES;
+		DiskCache.SEGMENT_BYTES = 64 * 1024;
+	}
+
+	@After
+	public void tearDown() {
+		DiskCache.SEGMENT_BYTES = segmentBytes;
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static byte[] value(int i, int length) {
+		byte[] value = new byte[length];
+		value[0] = (byte) i;
+		value[length - 1] = (byte) i;
+		return value;
+	}
+
+	private int segments() {
+		return directory.list(new FilenameFilter() {
+			@Override public boolean accept(File dir, String name) { return name.endsWith(".seg"); }
+		}).length;
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+		DiskCache<String> cache = new DiskCache<String>(directory, 1024 * 1024, STRINGS);
+		for (int i = 0; i < 20; i++) {
+			cache.put("k" + i, value(i, 10000));
+		}
+		cache.remove("k3");
+		cache.close();
+
+		cache = new DiskCache<String>(directory, 1024 * 1024, STRINGS);
+		try {
+			for (int i = 0; i < 20; i++) {
+				if ( i == 3 ) {
+					assertNull(cache.get("k3"));
+				} else {
+					assertArrayEquals(value(i, 10000), (byte[]) cache.get("k" + i));
+				}
+			}
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testReopenedFootprints() throws IOException {
+		String service = "http://example.org/sparql";
+		Pair<String, QueryKey> key = new Pair<String, QueryKey>(service, QueryKey.create(QueryFactory.create(Fixtures.PREFIX + "SELECT * { ?s :p ?o }")));
+		CachedQueryEngineHTTP.setDiskCache(directory, 1024 * 1024);
+		CachedQueryEngineHTTP.getDefaultBackend().put(key, Boolean.TRUE);
+		CachedQueryEngineHTTP.setCacheSize(1000);
+
+		// A reopened key is only dropped by the changes its query can see.
+		CachedQueryEngineHTTP.setDiskCache(directory, 1024 * 1024);
+		try {
+			CacheBackend backend = CachedQueryEngineHTTP.getDefaultBackend();
+			backend.invalidate(service, null, Fixtures.triple("a", "q", "b"));
+			assertNotNull(backend.get(key));
+			backend.invalidate(service, null, Fixtures.triple("a", "p", "b"));
+			assertNull(backend.get(key));
+		} finally {
+			CachedQueryEngineHTTP.setCacheSize(1000);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testLocked() throws IOException {
+		DiskCache<String> cache = new DiskCache<String>(directory, 1024 * 1024, STRINGS);
+		try {
+			new DiskCache<String>(directory, 1024 * 1024, STRINGS);
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testBounded() throws IOException {
+		final AtomicInteger dropped = new AtomicInteger();
+		DiskCache<String> cache = new DiskCache<String>(directory, 256 * 1024, STRINGS);
+		try {
+			cache.setDropHandler(new ActionKeyValue<String, Object>() {
+				@Override public void apply(String key, Object value) { dropped.incrementAndGet(); }
+			});
+			for (int i = 0; i < 100; i++) {
+				cache.put("k" + i, value(i, 10000));
+			}
+			assertTrue(segments() <= 4);
+			assertTrue(dropped.get() > 0);
+			assertTrue(cache.size() + dropped.get() == 100);
+			assertFalse(cache.containsKey("k0"));
+			assertArrayEquals(value(99, 10000), (byte[]) cache.get("k99"));
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testCompaction() throws Exception {
+		DiskCache<String> cache = new DiskCache<String>(directory, 16 * 1024 * 1024, STRINGS);
+		try {
+			cache.put("kept", value(1, 1000));
+			for (int i = 0; i < 100; i++) {
+				cache.put("k", value(i, 10000));
+			}
+			while ( segments() > 3 ) {
+				Thread.sleep(10);
+			}
+			assertArrayEquals(value(1, 1000), (byte[]) cache.get("kept"));
+			assertArrayEquals(value(99, 10000), (byte[]) cache.get("k"));
+		} finally {
+			cache.close();
+		}
+		cache = new DiskCache<String>(directory, 16 * 1024 * 1024, STRINGS);
+		try {
+			assertArrayEquals(value(1, 1000), (byte[]) cache.get("kept"));
+			assertArrayEquals(value(99, 10000), (byte[]) cache.get("k"));
+		} finally {
+			cache.close();
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
+import com.talis.labs.arq.CachedQueryEngineHTTP;
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.LocalBackend;
+import com.talis.labs.arq.QueryKey;
+import com.talis.labs.arq.ResultTable;
+
+public class TestFilterSubsumption {
+
+	// Nothing answers here: a query which is not answered from the cache fails.
+	private static final String SERVICE = "http://localhost:1/sparql";
+	private static final String PREFIX = "PREFIX : <http://example.org/> ";
+
+	private final LocalBackend backend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+
+	private void cache(String query, int... values) {
+		List<Binding> rows = new ArrayList<Binding>();
+		for (int value : values) {
+			Binding row = new BindingMap();
+			row.add(Var.alloc("s"), Node.createURI("http://example.org/s" + value));
+			row.add(Var.alloc("v"), Node.createLiteral(Integer.toString(value), null, XSDDatatype.XSDinteger));
+			rows.add(row);
+		}
+		backend.put(new Pair<String, QueryKey>(SERVICE, QueryKey.create(QueryFactory.create(PREFIX + query))), ResultTable.create(Arrays.asList("s", "v"), rows));
+	}
+
+	private int count(String query) {
+		CachedQueryEngineHTTP qexec = new CachedQueryEngineHTTP(SERVICE, QueryFactory.create(PREFIX + query), backend);
+		try {
+			return ResultSetFormatter.consume(qexec.execSelect());
+		} finally {
+			qexec.close();
+		}
+	}
+
+	private void assertMiss(String query) {
+		try {
+			count(query);
+			fail();
+		} catch (QueryExceptionHTTP e) {
+		}
+	}
+
+	@Before
+	public void setUp() {
+		cache("SELECT * { ?s :p ?v }", 1, 2, 3);
+	}
+
+	@Test
+	public void testExtraFilter() {
+		assertEquals(1, count("SELECT * { ?s :p ?v FILTER ( ?v = 1 ) }"));
+		assertEquals(2, count("SELECT * { ?a :p ?b FILTER ( ?b > 1 ) }"));
+		assertEquals(0, count("SELECT * { ?s :p ?v FILTER ( ?v > 1 ) FILTER ( ?v < 2 ) }"));
+	}
+
+	@Test
+	public void testOneMoreFilter() {
+		cache("SELECT * { ?s :p ?v FILTER ( ?v != 2 ) }", 1, 3);
+		assertEquals(1, count("SELECT * { ?s :p ?v FILTER ( ?v != 2 ) FILTER ( ?v > 1 ) }"));
+	}
+
+	@Test
+	public void testProjected() {
+		cache("SELECT DISTINCT ?s ?v { ?s :p ?v ; :q ?w }", 1, 2);
+		assertEquals(1, count("SELECT DISTINCT ?s ?v { ?s :p ?v ; :q ?w FILTER ( ?v = 2 ) }"));
+		assertMiss("SELECT DISTINCT ?s ?v { ?s :p ?v ; :q ?w FILTER ( ?w = 2 ) }");
+	}
+
+	@Test
+	public void testConservative() {
+		assertMiss("SELECT * { ?s :p ?v FILTER ( ?o = 1 ) }");
+		assertMiss("SELECT ?s { ?s :p ?v FILTER ( ?v = 1 ) }");
+		assertMiss("SELECT * { ?s :p ?v FILTER ( ?v < RAND() ) }");
+		assertMiss("SELECT * { ?s :p ?v FILTER ( <http://example.org/f>(?v) ) }");
+		assertMiss("SELECT * { ?s :p ?v FILTER EXISTS { ?s :q ?v } }");
+		assertMiss("SELECT * { ?s :p ?v OPTIONAL { ?s :q ?w } FILTER ( ?v = 1 ) }");
+	}
+
+}
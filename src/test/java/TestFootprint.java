@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.talis.labs.arq.CachedQueryExecutionBase;
+import com.talis.labs.arq.Footprint;
+
+public class TestFootprint {
+
+	private static Footprint footprint(String query) {
+		return Footprint.create(QueryFactory.create(Fixtures.PREFIX + query));
+	}
+
+	@Test
+	public void testPredicates() {
+		Footprint footprint = footprint("SELECT * { ?s :p ?o . ?o :q ?x }");
+		assertTrue(footprint.touches(null, Fixtures.triple("a", "p", "b")));
+		assertTrue(footprint.touches(null, Fixtures.triple("a", "q", "b")));
+		assertFalse(footprint.touches(null, Fixtures.triple("a", "r", "b")));
+		assertFalse(footprint.touches(Fixtures.uri("g"), Fixtures.triple("a", "p", "b")));
+	}
+
+	@Test
+	public void testConstants() {
+		Footprint footprint = footprint("SELECT * { :a ?p ?o . ?s ?q :b }");
+		assertTrue(footprint.touches(null, Fixtures.triple("a", "r", "c")));
+		assertTrue(footprint.touches(null, Fixtures.triple("c", "r", "b")));
+		assertFalse(footprint.touches(null, Fixtures.triple("c", "r", "d")));
+	}
+
+	@Test
+	public void testGraphs() {
+		Footprint footprint = footprint("SELECT * { GRAPH :g { ?s :p ?o } }");
+		assertTrue(footprint.touches(Fixtures.uri("g"), Fixtures.triple("a", "p", "b")));
+		assertFalse(footprint.touches(Fixtures.uri("h"), Fixtures.triple("a", "p", "b")));
+		assertFalse(footprint.touches(null, Fixtures.triple("a", "p", "b")));
+		footprint = footprint("SELECT * { GRAPH ?g { ?s :p ?o } }");
+		assertTrue(footprint.touches(Fixtures.uri("h"), Fixtures.triple("a", "p", "b")));
+		footprint = footprint("SELECT * FROM NAMED :g { GRAPH ?g { ?s :p ?o } }");
+		assertFalse(footprint.touches(Fixtures.uri("h"), Fixtures.triple("a", "p", "b")));
+	}
+
+	@Test
+	public void testExists() {
+		Footprint footprint = footprint("SELECT * { ?s :p ?o FILTER NOT EXISTS { ?o :q ?x } }");
+		assertTrue(footprint.touches(null, Fixtures.triple("a", "q", "b")));
+	}
+
+	@Test
+	public void testAny() {
+		assertTrue(footprint("SELECT * { ?s ?p ?o }").touches(null, Fixtures.triple("a", "r", "b")));
+		assertTrue(footprint("DESCRIBE :a").touches(Fixtures.uri("g"), Fixtures.triple("c", "r", "d")));
+	}
+
+	@Test
+	public void testPaths() {
+		assertTrue(footprint("SELECT * { :a :p/:q ?o }").touches(null, Fixtures.triple("b", "q", "c")));
+		assertTrue(footprint("SELECT * { :a :p+ ?o }").touches(null, Fixtures.triple("b", "p", "c")));
+		assertFalse(footprint("SELECT * { :a :p/:q ?o }").touches(Fixtures.uri("g"), Fixtures.triple("b", "q", "c")));
+	}
+
+	@Test
+	public void testBytes() {
+		Footprint footprint = Footprint.create(footprint("SELECT * FROM NAMED :g { GRAPH ?g { :a ?p \"b\"@en . ?s :q ?o } }").getBytes());
+		assertTrue(footprint.touches(Fixtures.uri("g"), Fixtures.triple("a", "r", "c")));
+		assertTrue(footprint.touches(Fixtures.uri("g"), Fixtures.triple("c", "q", "d")));
+		assertFalse(footprint.touches(Fixtures.uri("g"), Fixtures.triple("c", "r", "d")));
+		assertFalse(footprint.touches(Fixtures.uri("h"), Fixtures.triple("a", "r", "c")));
+		assertFalse(footprint.touches(null, Fixtures.triple("a", "r", "c")));
+		assertArrayEquals(Footprint.ANY.getBytes(), Footprint.create(Footprint.ANY.getBytes()).getBytes());
+	}
+
+	@Test
+	public void testInvalidate() {
+		// Changes to the base graph are not seen through the wrapper.
+		Graph base = Factory.createDefaultGraph();
+		Dataset dataset = DatasetFactory.create(ModelFactory.createModelForGraph(new WrappedGraph(base)));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :q ?o }"));
+
+		base.add(Fixtures.triple("a", "p", "b"));
+		base.add(Fixtures.triple("a", "q", "b"));
+		CachedQueryExecutionBase.invalidate(dataset, null, Fixtures.triple("a", "p", "b"));
+		assertEquals(1, Fixtures.count(dataset, "SELECT * { ?s :p ?o }"));
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { ?s :q ?o }"));
+
+		CachedQueryExecutionBase.invalidate(dataset);
+		assertEquals(1, Fixtures.count(dataset, "SELECT * { ?s :q ?o }"));
+	}
+
+	@Test
+	public void testInvalidatePath() {
+		Graph base = Factory.createDefaultGraph();
+		Dataset dataset = DatasetFactory.create(ModelFactory.createModelForGraph(new WrappedGraph(base)));
+		base.add(Fixtures.triple("a", "p", "b"));
+		CachedQueryExecutionBase.invalidate(dataset);
+		assertEquals(0, Fixtures.count(dataset, "SELECT * { :a :p/:q ?o }"));
+
+		base.add(Fixtures.triple("b", "q", "c"));
+		CachedQueryExecutionBase.invalidate(dataset, null, Fixtures.triple("b", "q", "c"));
+		assertEquals(1, Fixtures.count(dataset, "SELECT * { :a :p/:q ?o }"));
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.AddDeniedException;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
+import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.talis.labs.arq.CachedQueryExecutionBase;
+import com.talis.labs.arq.FrozenGraph;
+
+public class TestFrozenGraph {
+
+	private static final String NS = "http://example.org/";
+
+	private static FrozenGraph frozen() {
+		Model model = ModelFactory.createDefaultModel();
+		model.setNsPrefix("ex", NS);
+		for (int i = 0; i < 10; i++) {
+			model.add(model.createResource(NS + i), model.createProperty(NS + "p"), "value " + i);
+		}
+		return new FrozenGraph(model);
+	}
+
+	@Test(expected = AddDeniedException.class)
+	public void testReadOnlyAdd() {
+		Model model = frozen().readOnly();
+		model.add(model.createResource(NS + "x"), model.createProperty(NS + "p"), "x");
+	}
+
+	@Test(expected = DeleteDeniedException.class)
+	public void testReadOnlyRemoveAll() {
+		frozen().readOnly().removeAll();
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testReadOnlyIteratorRemove() {
+		StmtIterator iter = frozen().readOnly().listStatements();
+		iter.next();
+		iter.remove();
+	}
+
+	@Test
+	public void testCopyOnWrite() {
+		FrozenGraph frozen = frozen();
+		Model first = frozen.copyOnWrite();
+		Model second = frozen.copyOnWrite();
+		Resource x = first.createResource(NS + "x");
+		Property p = first.createProperty(NS + "p");
+		first.add(x, p, "x");
+		first.remove(first.createResource(NS + "0"), p, first.createLiteral("value 0"));
+		first.setNsPrefix("other", "http://example.com/");
+		assertEquals(10, first.size());
+		assertTrue(first.contains(x, p, "x"));
+		assertEquals(10, frozen.size());
+		assertEquals(10, second.size());
+		assertFalse(second.contains(x, p, "x"));
+		assertTrue(second.contains(second.createResource(NS + "0"), p, "value 0"));
+		assertEquals(NS, second.getNsPrefixURI("ex"));
+		assertEquals(null, second.getNsPrefixURI("other"));
+	}
+
+	@Test
+	public void testCloseView() {
+		FrozenGraph frozen = frozen();
+		frozen.readOnly().close();
+		frozen.copyOnWrite().close();
+		assertEquals(10, frozen.readOnly().size());
+	}
+
+	// Runs the query twice: the first misses and loads, the second hits.
+	private static void assertCached(String queryString, long size) {
+		Dataset dataset = DatasetFactory.create(frozen().copyOnWrite());
+		Query query = QueryFactory.create(queryString);
+		for (int i = 0; i < 2; i++) {
+			Context context = ARQ.getContext().copy();
+			QueryExecution qexec = new CachedQueryExecutionBase(query, dataset, context, QueryEngineRegistry.get().find(query, dataset.asDatasetGraph(), context));
+			assertEquals(size, query.isConstructType() ? qexec.execConstruct().size() : qexec.execDescribe().size());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testCachedConstruct() {
+		assertCached("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }", 10);
+	}
+
+	@Test(timeout = 10000)
+	public void testCachedDescribe() {
+		assertCached("DESCRIBE <" + NS + "0>", 1);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openjena.atlas.lib.ActionKeyValue;
+
+import com.talis.labs.arq.GreedyDualCache;
+import com.talis.labs.arq.Weigher;
+
+public class TestGreedyDualCache {
+
+	@Test
+	public void testBounded() {
+		GreedyDualCache<Integer, String> cache = new GreedyDualCache<Integer, String>(100, 0);
+		for (int i = 0; i < 10000; i++) {
+			cache.put(i, Integer.toString(i), 1);
+		}
+		assertTrue(cache.size() <= 100);
+	}
+
+	@Test
+	public void testExpensiveEntriesSurvive() {
+		GreedyDualCache<Integer, String> cache = new GreedyDualCache<Integer, String>(10, 0);
+		cache.put(-1, "expensive", 1000);
+		for (int i = 0; i < 100; i++) {
+			cache.put(i, Integer.toString(i), 10);
+		}
+		assertEquals("expensive", cache.get(-1));
+		assertTrue(cache.size() <= 10);
+	}
+
+	@Test
+	public void testHitsRaisePriority() {
+		GreedyDualCache<Integer, String> cache = new GreedyDualCache<Integer, String>(2, 0, 1);
+		cache.put(1, "hot", 10);
+		cache.put(2, "cold", 10);
+		for (int i = 0; i < 5; i++) {
+			cache.get(1);
+		}
+		cache.put(3, "new", 20);
+		assertEquals("hot", cache.get(1));
+		assertNull(cache.get(2));
+		assertEquals("new", cache.get(3));
+	}
+
+	@Test
+	public void testLowestAcrossSegments() {
+		GreedyDualCache<Integer, String> cache = new GreedyDualCache<Integer, String>(10, 0, 16);
+		for (int i = 0; i < 10; i++) {
+			cache.put(i, Integer.toString(i), i == 5 ? 1 : 100);
+		}
+		// Whichever segment it goes to, it is admitted in place of the cheapest.
+		cache.put(10, "10", 50);
+		assertEquals("10", cache.get(10));
+		assertNull(cache.get(5));
+		for (int i = 0; i < 10; i++) {
+			if ( i != 5 ) assertEquals(Integer.toString(i), cache.get(i));
+		}
+	}
+
+	@Test
+	public void testAdmission() {
+		final List<Integer> dropped = new ArrayList<Integer>();
+		Weigher<Integer, String> weigher = new Weigher<Integer, String>() {
+			@Override public long weigh(Integer key, String value) { return value.length(); }
+		};
+		GreedyDualCache<Integer, String> cache = new GreedyDualCache<Integer, String>(20, weigher, 5, 1);
+		cache.setDropHandler(new ActionKeyValue<Integer, String>() {
+			@Override public void apply(Integer key, String value) { dropped.add(key); }
+		});
+		// Too cheap to keep at all.
+		cache.put(1, "0123456789", 4);
+		assertNull(cache.get(1));
+		cache.put(2, "0123456789", 100);
+		cache.put(3, "0123456789", 100);
+		// The cache is full, and this is worth less per unit of weight than what it holds.
+		cache.put(4, "0123456789", 10);
+		assertNull(cache.get(4));
+		assertEquals("0123456789", cache.get(2));
+		assertEquals("0123456789", cache.get(3));
+		assertEquals(2, dropped.size());
+		assertEquals(20, cache.weight());
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.resultset.ResultSetCompare;
+import com.talis.labs.arq.OffHeapCache;
+import com.talis.labs.arq.ResultCodec;
+import com.talis.labs.arq.ResultTable;
+
+public class TestOffHeapCache {
+
+	@Test
+	public void testResultTable() {
+		Model model = Fixtures.data();
+		OffHeapCache<String> cache = new OffHeapCache<String>(1024 * 1024);
+		cache.put("q", ResultTable.create(QueryExecutionFactory.create("SELECT * { ?s ?p ?o }", model).execSelect()));
+		byte[] value = (byte[]) cache.get("q");
+		assertTrue(ResultSetCompare.equalsByTerm(
+			ResultSetFactory.makeRewindable(QueryExecutionFactory.create("SELECT * { ?s ?p ?o }", model).execSelect()),
+			ResultSetFactory.makeRewindable(ResultCodec.decodeResultSet(value))));
+		cache.put("a", Boolean.TRUE);
+		assertTrue(ResultCodec.decodeBoolean((byte[]) cache.get("a")));
+	}
+
+	@Test
+	public void testBounded() {
+		OffHeapCache<Integer> cache = new OffHeapCache<Integer>(1000, 4);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(i, new byte[100]);
+			assertTrue(cache.size() * 100 <= cache.maxBytes());
+		}
+		assertEquals(100, ((byte[]) cache.get(999)).length);
+		assertNull(cache.get(0));
+		assertFalse(cache.containsKey(0));
+	}
+
+	@Test
+	public void testTooLarge() {
+		OffHeapCache<Integer> cache = new OffHeapCache<Integer>(1000, 4);
+		cache.put(1, new byte[100]);
+		cache.put(1, new byte[251]);
+		assertNull(cache.get(1));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testRemoveThroughKeys() {
+		OffHeapCache<Integer> cache = new OffHeapCache<Integer>(1024 * 1024);
+		for (int i = 0; i < 50; i++) {
+			cache.put(i, new byte[] { (byte) i });
+		}
+		Iterator<Integer> iter = cache.keys();
+		while (iter.hasNext()) {
+			if (iter.next() % 2 == 0) {
+				iter.remove();
+			}
+		}
+		assertEquals(25, cache.size());
+		assertNull(cache.get(0));
+		assertEquals(1, ((byte[]) cache.get(1))[0]);
+	}
+
+	@Test
+	public void testClose() {
+		OffHeapCache<Integer> cache = new OffHeapCache<Integer>(1024 * 1024);
+		cache.put(1, new byte[] { 1 });
+		cache.close();
+		assertNull(cache.get(1));
+		cache.put(2, new byte[] { 2 });
+		assertNull(cache.get(2));
+		assertEquals(0, cache.size());
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.engine.http.QueryExceptionHTTP;
+import com.talis.labs.arq.CachedQueryEngineHTTP;
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.FrozenGraph;
+import com.talis.labs.arq.LocalBackend;
+import com.talis.labs.arq.QueryKey;
+import com.talis.labs.arq.ResultTable;
+
+public class TestQueryBatch {
+
+	// Nothing listens there: any miss fails.
+	private static final String SERVICE = "http://localhost:1/sparql";
+	private static Pair<String, Query> query(String query) {
+		return new Pair<String, Query>(SERVICE, QueryFactory.create(query));
+	}
+
+	private static Pair<String, QueryKey> key(Pair<String, Query> query) {
+		return new Pair<String, QueryKey>(query.getLeft(), QueryKey.create(query.getRight()));
+	}
+
+	@Test
+	public void testHits() {
+		Model model = Fixtures.data();
+		LocalBackend backend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+		List<Pair<String, Query>> queries = new ArrayList<Pair<String, Query>>();
+		queries.add(query("SELECT ?x ?y { ?x ?p ?y }"));
+		queries.add(query("ASK { ?s ?p ?o }"));
+		queries.add(query("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }"));
+		backend.put(key(queries.get(0)), ResultTable.create(QueryExecutionFactory.create("SELECT ?s ?o { ?s ?p ?o }", model).execSelect()));
+		backend.put(key(queries.get(1)), Boolean.FALSE);
+		backend.put(key(queries.get(2)), new FrozenGraph(model));
+
+		List<Object> results = CachedQueryEngineHTTP.execBatch(backend, queries, 4);
+		assertEquals(3, results.size());
+		ResultSet rs = (ResultSet) results.get(0);
+		assertEquals(queries.get(0).getRight().getResultVars(), rs.getResultVars());
+		int rows = 0;
+		while ( rs.hasNext() ) {
+			assertTrue(rs.nextSolution().contains("x"));
+			rows++;
+		}
+		assertEquals(10, rows);
+		assertFalse((Boolean) results.get(1));
+		assertTrue(model.isIsomorphicWith((Model) results.get(2)));
+	}
+
+	@Test(expected = QueryExceptionHTTP.class)
+	public void testMissFails() {
+		LocalBackend backend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+		List<Pair<String, Query>> queries = new ArrayList<Pair<String, Query>>();
+		queries.add(query("ASK { ?s ?p ?o }"));
+		queries.add(query("ASK { ?s ?p 1 }"));
+		backend.put(key(queries.get(0)), Boolean.TRUE);
+		CachedQueryEngineHTTP.execBatch(backend, queries, 4);
+	}
+
+}
@@ -41,6 +41,7 @@ import com.hp.hpl.jena.sparql.sse.Item;
 import com.hp.hpl.jena.sparql.sse.ItemTransformer;
 import com.hp.hpl.jena.sparql.sse.SSE;
 import com.talis.labs.arq.MyNodeIsomorphismMap;
+import com.talis.labs.arq.QueryKey;
 import com.talis.labs.arq.RenameVariablesItemTransform;
 
 public class TestQueryEquals {
@@ -119,4 +120,39 @@ public class TestQueryEquals {
 		assertFalse(op1.equalTo(op3, new MyNodeIsomorphismMap()));
 	}
 	
+	@Test
+	public void testQueryKeyEquals() {
+		Query q1 = QueryFactory.read("src/test/resources/query-1.rq");
+		Query q2 = QueryFactory.read("src/test/resources/query-2.rq");
+		Query q3 = QueryFactory.read("src/test/resources/query-3.rq"); // the only difference is the variable name!
+		assertEquals(QueryKey.create(q1), QueryKey.create(q2));
+		assertEquals(QueryKey.create(q1), QueryKey.create(q3));
+		assertEquals(QueryKey.create(q1).toString(), QueryKey.create(q3).toString());
+
+		// the order of the triple patterns does not matter
+		Query q4 = QueryFactory.create("SELECT * { ?s <http://example/p> ?o . ?o <http://example/q> 1 }");
+		Query q5 = QueryFactory.create("SELECT * { ?x <http://example/q> 1 . ?y <http://example/p> ?x }");
+		assertEquals(QueryKey.create(q4).getBytes().length, 32);
+		assertFalse(QueryKey.create(q4).equals(QueryKey.create(q5))); // SELECT * projects ?s ?o vs ?x ?y in a different order
+		Query q6 = QueryFactory.create("SELECT ?s ?o { ?o <http://example/q> 1 . ?s <http://example/p> ?o }");
+		Query q7 = QueryFactory.create("SELECT ?y ?x { ?y <http://example/p> ?x . ?x <http://example/q> 1 }");
+		assertEquals(QueryKey.create(q6), QueryKey.create(q7));
+	}
+
+	@Test
+	public void testQueryKeyNotEquals() {
+		Query q1 = QueryFactory.read("src/test/resources/query-1.rq");
+		Query q2 = QueryFactory.create("PREFIX : <http://example/> SELECT ?x ?v { ?x :p ?v . FILTER(?v = 2) }");
+		assertFalse(QueryKey.create(q1).equals(QueryKey.create(q2)));
+
+		// same shape once renamed, but ordered by a different position
+		Query q3 = QueryFactory.create("SELECT ?x ?y { ?x <http://example/p> ?y } ORDER BY ?x");
+		Query q4 = QueryFactory.create("SELECT ?y ?x { ?y <http://example/p> ?x } ORDER BY ?x");
+		assertFalse(QueryKey.create(q3).equals(QueryKey.create(q4)));
+
+		Query q5 = QueryFactory.create("SELECT ?x ?y { ?x <http://example/p> ?y } LIMIT 10");
+		Query q6 = QueryFactory.create("SELECT ?x ?y { ?x <http://example/p> ?y } LIMIT 20");
+		assertFalse(QueryKey.create(q5).equals(QueryKey.create(q6)));
+	}
+
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.sparql.resultset.ResultSetCompare;
+import com.talis.labs.arq.Expiring;
+import com.talis.labs.arq.ResultCodec;
+
+public class TestResultCodec {
+
+	private static final String DATA =
+		"<http://example.org/a> <http://example.org/p> \"plain\" .\n" +
+		"<http://example.org/a> <http://example.org/p> \"chat\"@fr .\n" +
+		"<http://example.org/a> <http://example.org/p> \"42\"^^<http://www.w3.org/2001/XMLSchema#integer> .\n" +
+		"<http://example.org/a> <http://example.org/q> _:b0 .\n" +
+		"_:b0 <http://example.org/p> \"été\" .\n";
+
+	private static Model data() {
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader(DATA), null, "N-TRIPLES");
+		return model;
+	}
+
+	private static ResultSetRewindable select(Model model) {
+		QueryExecution qexec = QueryExecutionFactory.create("SELECT ?s ?p ?o ?x { ?s ?p ?o OPTIONAL { ?o ?p ?x } }", model);
+		try {
+			return ResultSetFactory.makeRewindable(qexec.execSelect());
+		} finally {
+			qexec.close();
+		}
+	}
+
+	@Test
+	public void testResultSet() {
+		ResultSetRewindable rs = select(data());
+		byte[] value = ResultCodec.encode(rs);
+		assertTrue(ResultCodec.isCurrent(value));
+		rs.reset();
+		ResultSet decoded = ResultCodec.decodeResultSet(value);
+		assertEquals(rs.getResultVars(), decoded.getResultVars());
+		assertTrue(ResultSetCompare.equalsByTerm(rs, decoded));
+	}
+
+	@Test
+	public void testModel() {
+		Model model = data();
+		Model decoded = ResultCodec.decodeModel(ResultCodec.encode(model), ModelFactory.createDefaultModel());
+		assertTrue(model.isIsomorphicWith(decoded));
+	}
+
+	@Test
+	public void testBoolean() {
+		assertTrue(ResultCodec.decodeBoolean(ResultCodec.encode(true)));
+		assertFalse(ResultCodec.decodeBoolean(ResultCodec.encode(false)));
+	}
+
+	@Test
+	public void testExpiring() {
+		byte[] value = ResultCodec.encodeValue(new Expiring(Boolean.TRUE, 1, 2, 3));
+		assertTrue(ResultCodec.isExpiring(value));
+		Expiring header = ResultCodec.decodeExpiring(value);
+		assertEquals(2, header.getSoftExpiry());
+		assertTrue(ResultCodec.decodeBoolean((byte[]) header.getValue()));
+		Expiring decoded = (Expiring) ResultCodec.decodeValue(value);
+		assertEquals(1, decoded.getCreated());
+		assertEquals(3, decoded.getHardExpiry());
+		assertEquals(Boolean.TRUE, decoded.getValue());
+	}
+
+	@Test
+	public void testCompressed() {
+		Model model = ModelFactory.createDefaultModel();
+		for (int i = 0; i < 1000; i++) {
+			model.add(model.createResource("http://example.org/resource/" + i), model.createProperty("http://example.org/p"), "value number " + i);
+		}
+		byte[] value = ResultCodec.encode(model);
+		int threshold = ResultCodec.COMPRESS_THRESHOLD;
+		try {
+			ResultCodec.COMPRESS_THRESHOLD = Integer.MAX_VALUE;
+			assertTrue(value.length < ResultCodec.encode(model).length);
+		} finally {
+			ResultCodec.COMPRESS_THRESHOLD = threshold;
+		}
+		assertTrue(model.isIsomorphicWith(ResultCodec.decodeModel(value, ModelFactory.createDefaultModel())));
+	}
+
+	@Test
+	public void testNotCurrent() {
+		byte[] value = ResultCodec.encode(true);
+		value[1]++;
+		assertFalse(ResultCodec.isCurrent(value));
+		assertFalse(ResultCodec.isCurrent("true".getBytes()));
+		assertFalse(ResultCodec.isCurrent(null));
+	}
+
+}
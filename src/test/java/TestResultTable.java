@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.resultset.ResultSetCompare;
+import com.hp.hpl.jena.sparql.util.Context;
+import com.talis.labs.arq.CachedQueryExecutionBase;
+import com.talis.labs.arq.NodeDictionary;
+import com.talis.labs.arq.ResultTable;
+import com.talis.labs.arq.ResultWeigher;
+
+public class TestResultTable {
+
+	private static final String QUERY = "SELECT ?s ?o ?x { ?s ?p ?o OPTIONAL { ?s <http://example.org/q> ?x } }";
+	private static ResultSet select(Model model) {
+		return QueryExecutionFactory.create(QUERY, model).execSelect();
+	}
+
+	@Test
+	public void testSameRows() {
+		Model model = Fixtures.data();
+		ResultTable table = ResultTable.create(select(model));
+		assertEquals(10, table.size());
+		assertTrue(ResultSetCompare.equalsByTerm(ResultSetFactory.makeRewindable(select(model)), table.cursor()));
+	}
+
+	@Test
+	public void testIndependentCursors() {
+		ResultTable table = ResultTable.create(select(Fixtures.data()));
+		ResultSet first = table.cursor();
+		ResultSet second = table.cursor();
+		first.nextBinding();
+		first.nextBinding();
+		assertEquals(2, first.getRowNumber());
+		assertEquals(0, second.getRowNumber());
+		int rows = 0;
+		while ( second.hasNext() ) {
+			second.nextBinding();
+			rows++;
+		}
+		assertEquals(10, rows);
+		assertTrue(first.hasNext());
+	}
+
+	@Test
+	public void testRenamedCursor() {
+		ResultTable table = ResultTable.create(select(Fixtures.data()));
+		ResultSet rs = table.cursor(Arrays.asList("a", "b", "c"));
+		assertEquals(Arrays.asList("a", "b", "c"), rs.getResultVars());
+		Binding binding = rs.nextBinding();
+		Node s = table.get(0, 0);
+		assertEquals(s, binding.get(Var.alloc("a")));
+		assertNull(binding.get(Var.alloc("s")));
+		assertFalse(binding.contains(Var.alloc("c")));
+		assertEquals(2, binding.size());
+	}
+
+	@Test
+	public void testWeighsOwnNodes() {
+		Model model = Fixtures.data();
+		ResultTable first = ResultTable.create(select(model));
+		ResultTable second = ResultTable.create(select(model));
+		assertEquals(ResultWeigher.weigh(first), ResultWeigher.weigh(second));
+	}
+
+	@Test
+	public void testSharedDictionary() {
+		Model model = Fixtures.data();
+		ResultTable first = ResultTable.create(select(model));
+		ResultTable second = ResultTable.create(select(model));
+		assertSame(first.get(3, 1), second.get(3, 1));
+	}
+
+	@Test
+	public void testRelease() {
+		Node literal = Node.createLiteral("released " + System.nanoTime());
+		Binding row = new BindingMap();
+		row.add(Var.alloc("o"), literal);
+		ResultTable first = ResultTable.create(Arrays.asList("o"), Arrays.asList(row));
+		ResultTable second = ResultTable.create(Arrays.asList("o"), Arrays.asList(row));
+		int size = NodeDictionary.current().size();
+		ResultSet cursor = first.cursor();
+		first.release();
+		assertEquals(size, NodeDictionary.current().size());
+		second.release();
+		assertEquals(size - 1, NodeDictionary.current().size());
+		// A released table still reads its own copy.
+		assertEquals(literal, cursor.nextBinding().get(Var.alloc("o")));
+		assertEquals(literal, second.get(0, 0));
+	}
+
+	@Test
+	public void testDistinctNodesOnce() {
+		Node literal = Node.createLiteral(new String(new char[1000]));
+		List<Binding> rows = new ArrayList<Binding>();
+		for (int i = 0; i < 10; i++) {
+			Binding row = new BindingMap();
+			row.add(Var.alloc("o"), literal);
+			rows.add(row);
+		}
+		ResultTable table = ResultTable.create(Arrays.asList("o"), rows);
+		assertEquals(literal, table.get(9, 0));
+		assertTrue(ResultWeigher.weigh(table) < 2 * ResultWeigher.weigh(literal));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testReadOnly() {
+		ResultTable table = ResultTable.create(select(Fixtures.data()));
+		table.cursor().nextBinding().add(Var.alloc("x"), Node.createURI("http://example.org/x"));
+	}
+
+	@Test
+	public void testResourceModel() {
+		Dataset dataset = DatasetFactory.create(Fixtures.data());
+		Query query = QueryFactory.create(QUERY);
+		for (int i = 0; i < 2; i++) {
+			Context context = ARQ.getContext().copy();
+			QueryExecution qexec = new CachedQueryExecutionBase(query, dataset, context, QueryEngineRegistry.get().find(query, dataset.asDatasetGraph(), context));
+			ResultSet rs = qexec.execSelect();
+			assertEquals(1, rs.nextSolution().getResource("s").listProperties().toList().size());
+		}
+		assertEquals(0, ResultTable.create(select(Fixtures.data())).cursor().nextSolution().getResource("s").listProperties().toList().size());
+	}
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.talis.labs.arq.CachedQueryEngineHTTP;
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.LocalBackend;
+import com.talis.labs.arq.QueryKey;
+
+public class TestSliceWindows {
+
+	private static final int ROWS = 10;
+
+	private final LocalBackend backend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+	private final AtomicInteger requests = new AtomicInteger();
+	private HttpServer server;
+	private String service;
+
+	// A service whose result is the numbers 1 to ROWS, sliced as asked.
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/sparql", new HttpHandler() {
+			@Override public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				String param = exchange.getRequestURI().getRawQuery();
+				Query query = QueryFactory.create(URLDecoder.decode(param.substring(param.indexOf("query=") + 6).split("&")[0], "UTF-8"));
+				long offset = query.hasOffset() ? query.getOffset() : 0;
+				long limit = query.hasLimit() ? query.getLimit() : ROWS;
+				StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\"><head><variable name=\"n\"/></head><results>");
+				for (long n = offset + 1; n <= Math.min(ROWS, offset + limit); n++) {
+					xml.append("<result><binding name=\"n\"><literal>" + n + "</literal></binding></result>");
+				}
+				byte[] body = xml.append("</results></sparql>").toString().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+xml");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		service = "http://localhost:" + server.getAddress().getPort() + "/sparql";
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+		CachedQueryEngineHTTP.SLICE_PAGE = 0;
+	}
+
+	private List<String> select(String modifiers) {
+		CachedQueryEngineHTTP qexec = new CachedQueryEngineHTTP(service, QueryFactory.create("SELECT ?n { ?s ?p ?n } " + modifiers), backend);
+		try {
+			List<String> numbers = new ArrayList<String>();
+			ResultSet results = qexec.execSelect();
+			while ( results.hasNext() ) {
+				numbers.add(results.nextSolution().getLiteral("n").getLexicalForm());
+			}
+			return numbers;
+		} finally {
+			qexec.close();
+		}
+	}
+
+	@Test
+	public void testFromComplete() {
+		assertEquals(ROWS, select("").size());
+		assertEquals("[3, 4, 5]", select("LIMIT 3 OFFSET 2").toString());
+		assertEquals("[9, 10]", select("OFFSET 8").toString());
+		assertEquals("[]", select("LIMIT 5 OFFSET 20").toString());
+		assertEquals(1, requests.get());
+	}
+
+	@Test
+	public void testFromLargerWindow() {
+		assertEquals("[1, 2, 3, 4, 5, 6]", select("LIMIT 6").toString());
+		assertEquals("[1, 2, 3]", select("LIMIT 3").toString());
+		assertEquals("[4, 5]", select("LIMIT 2 OFFSET 3").toString());
+		assertEquals(1, requests.get());
+
+		// A window which reached the end covers all the rows after it.
+		assertEquals("[9, 10]", select("LIMIT 5 OFFSET 8").toString());
+		assertEquals("[10]", select("OFFSET 9").toString());
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void testPages() {
+		CachedQueryEngineHTTP.SLICE_PAGE = 4;
+		assertEquals("[2, 3]", select("LIMIT 2 OFFSET 1").toString());
+		assertEquals("[4]", select("LIMIT 1 OFFSET 3").toString());
+		assertEquals("[1, 2, 3, 4]", select("LIMIT 4").toString());
+		assertEquals(1, requests.get());
+		assertEquals("[4, 5, 6]", select("LIMIT 3 OFFSET 3").toString());
+		// Inside the pages loaded for the window before.
+		assertEquals("[5, 6, 7, 8]", select("LIMIT 4 OFFSET 4").toString());
+		assertEquals(2, requests.get());
+		assertEquals("[9, 10]", select("LIMIT 3 OFFSET 8").toString());
+		assertEquals(3, requests.get());
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.resultset.ResultSetCompare;
+import com.talis.labs.arq.ResultTable;
+import com.talis.labs.arq.TeeResultSet;
+
+public class TestTeeResultSet {
+
+	private static ResultTable committed;
+
+	// Runs the commits it is given once they are asked for.
+	private static final List<Runnable> pending = new ArrayList<Runnable>();
+	private static final Executor later = new Executor() {
+		@Override public void execute(Runnable command) { pending.add(command); }
+	};
+
+	private static void runPending() {
+		for (Runnable command : pending) {
+			command.run();
+		}
+		pending.clear();
+	}
+
+	private static TeeResultSet tee(Model model, long maxBytes) {
+		committed = null;
+		pending.clear();
+		ResultSet rs = QueryExecutionFactory.create("SELECT * { ?s ?p ?o }", model).execSelect();
+		return new TeeResultSet(rs, maxBytes, later) {
+			@Override protected void commit(ResultTable table) { committed = table; }
+		};
+	}
+
+	@Test
+	public void testCommitWhenExhausted() {
+		Model model = Fixtures.data(100);
+		TeeResultSet tee = tee(model, Long.MAX_VALUE);
+		int rows = 0;
+		while ( tee.hasNext() ) {
+			assertNull(committed);
+			tee.nextBinding();
+			rows++;
+		}
+		assertEquals(100, rows);
+		assertNull(committed);
+		runPending();
+		assertEquals(100, committed.size());
+		ResultSet expected = QueryExecutionFactory.create("SELECT * { ?s ?p ?o }", model).execSelect();
+		assertTrue(ResultSetCompare.equalsByTerm(ResultSetFactory.makeRewindable(expected), committed.cursor()));
+	}
+
+	@Test
+	public void testDropWhenAbandoned() {
+		TeeResultSet tee = tee(Fixtures.data(100), Long.MAX_VALUE);
+		tee.nextBinding();
+		tee.abandon();
+		while ( tee.hasNext() ) {
+			tee.nextBinding();
+		}
+		runPending();
+		assertNull(committed);
+	}
+
+	@Test
+	public void testDropWhenTooLarge() {
+		TeeResultSet tee = tee(Fixtures.data(100), 1000);
+		int rows = 0;
+		while ( tee.hasNext() ) {
+			tee.nextBinding();
+			rows++;
+		}
+		assertEquals(100, rows);
+		runPending();
+		assertNull(committed);
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.query.QueryFactory;
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.GreedyDualCache;
+import com.talis.labs.arq.LocalBackend;
+import com.talis.labs.arq.OffHeapCache;
+import com.talis.labs.arq.QueryKey;
+import com.talis.labs.arq.TieredBackend;
+
+public class TestTieredBackend {
+
+	private final LocalBackend l1 = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+	private final LocalBackend l2 = new LocalBackend(new OffHeapCache<Pair<String, QueryKey>>(1024 * 1024));
+	private final TieredBackend tiered = new TieredBackend(l1, l2);
+
+	private static Pair<String, QueryKey> key(String service, String query) {
+		return new Pair<String, QueryKey>(service, QueryKey.create(QueryFactory.create(query)));
+	}
+
+	@Test
+	public void testPromotion() {
+		Pair<String, QueryKey> key = key("http://example.org/sparql", "ASK { ?s ?p ?o }");
+		l2.put(key, Boolean.TRUE);
+		assertNull(l1.get(key));
+		assertEquals(Boolean.TRUE, tiered.get(key));
+		assertEquals(Boolean.TRUE, l1.get(key));
+	}
+
+	@Test
+	public void testGetAll() {
+		Pair<String, QueryKey> k1 = key("http://example.org/sparql", "ASK { ?s ?p 1 }");
+		Pair<String, QueryKey> k2 = key("http://example.org/sparql", "ASK { ?s ?p 2 }");
+		Pair<String, QueryKey> k3 = key("http://example.org/sparql", "ASK { ?s ?p 3 }");
+		l1.put(k1, Boolean.TRUE);
+		l2.put(k3, Boolean.FALSE);
+		List<Object> values = tiered.getAll(Arrays.asList(k1, k2, k3));
+		assertEquals(Arrays.<Object>asList(Boolean.TRUE, null, Boolean.FALSE), values);
+		assertEquals(Boolean.FALSE, l1.get(k3));
+	}
+
+	@Test
+	public void testLoadAndInvalidate() throws Exception {
+		Pair<String, QueryKey> key = key("http://example.org/sparql", "ASK { ?s ?p ?o }");
+		Pair<String, QueryKey> other = key("http://example.org/other", "ASK { ?s ?p ?o }");
+		tiered.load(key, new Callable<Object>() {
+			@Override public Object call() { return Boolean.TRUE; }
+		});
+		tiered.put(other, Boolean.TRUE);
+		assertEquals(Boolean.TRUE, l1.get(key));
+		assertTrue(l2.get(key) instanceof byte[]);
+		tiered.invalidate("http://example.org/sparql");
+		assertNull(tiered.get(key));
+		assertEquals(Boolean.TRUE, tiered.get(other));
+	}
+
+	@Test
+	public void testCost() throws Exception {
+		// One entry: the value which took longer to compute is kept.
+		LocalBackend local = new LocalBackend(new GreedyDualCache<Pair<String, QueryKey>, Object>(1, 0, 1));
+		TieredBackend tiered = new TieredBackend(local, l2);
+		Pair<String, QueryKey> dear = key("http://example.org/sparql", "ASK { ?s ?p 1 }");
+		Pair<String, QueryKey> cheap = key("http://example.org/sparql", "ASK { ?s ?p 2 }");
+		tiered.load(dear, new Callable<Object>() {
+			@Override public Object call() throws InterruptedException { Thread.sleep(20); return Boolean.TRUE; }
+		});
+		tiered.put(cheap, Boolean.FALSE, 0);
+		assertEquals(Boolean.TRUE, local.get(dear));
+		assertNull(local.get(cheap));
+		assertEquals(Boolean.FALSE, tiered.get(cheap));
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.atlas.lib.Pair;
+
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.ResultSet;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.talis.labs.arq.CachedQueryEngineHTTP;
+import com.talis.labs.arq.ConcurrentCache;
+import com.talis.labs.arq.LocalBackend;
+import com.talis.labs.arq.QueryKey;
+
+public class TestTimeToLive {
+
+	private final LocalBackend backend = new LocalBackend(new ConcurrentCache<Pair<String, QueryKey>, Object>(100));
+	private final AtomicInteger requests = new AtomicInteger();
+	private HttpServer server;
+	private String service;
+
+	// A service which answers each request with the number of requests so far.
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/sparql", new HttpHandler() {
+			@Override public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = ("<?xml version=\"1.0\"?><sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">"
+						+ "<head><variable name=\"n\"/></head><results><result><binding name=\"n\"><literal>"
+						+ requests.incrementAndGet() + "</literal></binding></result></results></sparql>").getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/sparql-results+xml");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		service = "http://localhost:" + server.getAddress().getPort() + "/sparql";
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private String select(long soft, long hard) {
+		CachedQueryEngineHTTP qexec = new CachedQueryEngineHTTP(service, QueryFactory.create("SELECT ?n { ?s ?p ?n }"), backend);
+		qexec.setTimeToLive(soft, hard, TimeUnit.MILLISECONDS);
+		try {
+			ResultSet results = qexec.execSelect();
+			return results.nextSolution().getLiteral("n").getLexicalForm();
+		} finally {
+			qexec.close();
+		}
+	}
+
+	@Test
+	public void testFresh() {
+		assertEquals("1", select(10000, 20000));
+		assertEquals("1", select(10000, 20000));
+		assertEquals(1, requests.get());
+	}
+
+	@Test(timeout = 10000)
+	public void testStale() throws Exception {
+		assertEquals("1", select(100, 10000));
+		Thread.sleep(200);
+		// Served from the cache while it is refreshed in the background.
+		assertEquals("1", select(100, 10000));
+		String n;
+		while ( ( n = select(10000, 20000) ).equals("1") ) {
+			Thread.sleep(10);
+		}
+		assertEquals("2", n);
+	}
+
+	@Test
+	public void testExpired() throws Exception {
+		assertEquals("1", select(0, 100));
+		Thread.sleep(200);
+		assertEquals("2", select(0, 100));
+		assertEquals("2", select(0, 100));
+	}
+
+}